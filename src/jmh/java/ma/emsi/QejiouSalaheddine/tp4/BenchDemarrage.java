@@ -0,0 +1,49 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Temps jusqu'à la première réponse ({@link MesureDemarrage#premiereReponse()}) dans une JVM neuve :
+ * une seule mesure par fork, sans échauffement, donc chargement des classes (Tika, ONNX, LangChain4j),
+ * du modèle d'embedding et de l'index compris. Le ChatModel est simulé sans latence.
+ * Le temps de lancement de la JVM elle-même (et donc l'effet de l'archive AppCDS) n'est pas compris :
+ * le mesurer avec MesureDemarrage, qui l'affiche (voir le profil Maven "cds").
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(5)
+public class BenchDemarrage {
+
+    /** Modèle d'embedding et index chargés en arrière-plan (tp4.demarrage.rapide). */
+    @Param({"false", "true"})
+    public boolean rapide;
+
+    @Setup(Level.Trial)
+    public void preparer() {
+        System.setProperty("tp4.demarrage.rapide", String.valueOf(rapide));
+        System.setProperty("tp4.modele", "simule");
+        System.setProperty("tp4.simule.llm.latence.ms", "0");
+        System.setProperty("tp4.simule.llm.token.ms", "0");
+    }
+
+    @Benchmark
+    public String premiereReponse() {
+        return MesureDemarrage.premiereReponse();
+    }
+}
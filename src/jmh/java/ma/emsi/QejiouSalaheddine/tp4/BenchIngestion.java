@@ -0,0 +1,99 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.parser.apache.tika.ApacheTikaDocumentParser;
+import dev.langchain4j.data.document.splitter.DocumentSplitters;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.embedding.onnx.allminilml6v2.AllMiniLmL6V2EmbeddingModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Étapes de l'ingestion de rag.pdf : parsing Tika, découpage récursif (300, 20),
+ * puis embeddings par lots de différentes tailles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BenchIngestion {
+
+    /** Nombre de segments envoyés à embedAll à chaque appel. */
+    @Param({"1", "16", "64", "256"})
+    public int tailleLot;
+
+    private byte[] pdf;
+    private Document document;
+    private DocumentSplitter splitter;
+    private EmbeddingModel embeddingModel;
+    private List<TextSegment> segments;
+
+    @Setup(Level.Trial)
+    public void preparer() throws IOException {
+        try (InputStream in = BenchIngestion.class.getResourceAsStream("/rag.pdf")) {
+            if (in == null) {
+                throw new IllegalStateException("Ressource introuvable : /rag.pdf");
+            }
+            pdf = in.readAllBytes();
+        }
+        document = new ApacheTikaDocumentParser().parse(new ByteArrayInputStream(pdf));
+        splitter = DocumentSplitters.recursive(IndexPersistant.TAILLE_SEGMENT, IndexPersistant.CHEVAUCHEMENT);
+        embeddingModel = new AllMiniLmL6V2EmbeddingModel();
+
+        // Même volume de texte pour toutes les tailles de lot : 256 segments (répétés si le PDF est court)
+        List<TextSegment> decoupes = splitter.split(document);
+        segments = new ArrayList<>();
+        while (segments.size() < 256) {
+            segments.add(decoupes.get(segments.size() % decoupes.size()));
+        }
+    }
+
+    @Benchmark
+    public Document parsing() {
+        return new ApacheTikaDocumentParser().parse(new ByteArrayInputStream(pdf));
+    }
+
+    /** Lecture et découpage page par page ({@link LecteurParPages}), à comparer à parsing + decoupage. */
+    @Benchmark
+    public void parsingEtDecoupageParPages(Blackhole trou) {
+        LecteurParPages.decouper(new ByteArrayInputStream(pdf), "/rag.pdf", splitter, trou::consume);
+    }
+
+    @Benchmark
+    public List<TextSegment> decoupage() {
+        return splitter.split(document);
+    }
+
+    /** Embeddings des 256 segments, par lots de {@link #tailleLot}. */
+    @Benchmark
+    public void embeddings(Blackhole trou) {
+        for (int debut = 0; debut < segments.size(); debut += tailleLot) {
+            List<TextSegment> lot = segments.subList(debut, Math.min(debut + tailleLot, segments.size()));
+            List<Embedding> embeddings = embeddingModel.embedAll(lot).content();
+            trou.consume(embeddings);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.CosineSimilarity;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recherche des 2 plus proches voisins (comme les retrievers du TP) dans des magasins de 1k, 100k et 1M
+ * vecteurs aléatoires de dimension 384 (celle d'AllMiniLmL6V2), pour InMemoryEmbeddingStore,
+ * le parcours exact de ScanExactEmbeddingStore, MagasinPartitionne (même parcours exact, réparti sur tp4.partitions
+ * partitions interrogées en parallèle), OffHeapEmbeddingStore quantifié (int8, binaire) et HnswEmbeddingStore
+ * (sur ces vecteurs aléatoires, la construction du graphe HNSW prend environ une minute pour 20k vecteurs,
+ * et bien plus d'une heure pour 1M).
+ * <p>
+ * Pour les magasins approchés, la préparation affiche une ligne "Rappel" : rappel@2 par rapport à une recherche exacte
+ * sur {@link #REQUETES_RAPPEL} requêtes et, pour OffHeapEmbeddingStore, les octets hors tas par vecteur.
+ * Des vecteurs aléatoires sont le pire cas pour le codage binaire et HNSW : le rappel sur de vrais embeddings
+ * est plus élevé.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx12g", "--add-modules", "jdk.incubator.vector"})
+public class BenchRecherche {
+
+    private static final int DIMENSION = 384;
+    private static final int NOMBRE_REQUETES = 64;
+    private static final int REQUETES_RAPPEL = 16;
+
+    @Param({"1000", "100000", "1000000"})
+    public int taille;
+
+    @Param({"memoire", "exact", "partitionne", "int8", "binaire", "hnsw"})
+    public String store;
+
+    private EmbeddingStore<TextSegment> embeddingStore;
+    private List<Embedding> requetes;
+    private int prochaine;
+
+    @Setup(Level.Trial)
+    public void preparer() {
+        Random aleatoire = new Random(42);
+        embeddingStore = switch (store) {
+            case "memoire" -> new InMemoryEmbeddingStore<>();
+            case "exact" -> new ScanExactEmbeddingStore();
+            case "partitionne" -> MagasinPartitionne.depuisConfiguration();
+            case "int8" -> new OffHeapEmbeddingStore(OffHeapEmbeddingStore.Quantification.INT8);
+            case "binaire" -> new OffHeapEmbeddingStore(OffHeapEmbeddingStore.Quantification.BINAIRE);
+            case "hnsw" -> HnswEmbeddingStore.builder().build();
+            default -> throw new IllegalArgumentException("Store inconnu : " + store);
+        };
+        List<Embedding> embeddings = new ArrayList<>(taille);
+        List<TextSegment> segments = new ArrayList<>(taille);
+        for (int i = 0; i < taille; i++) {
+            embeddings.add(vecteurAleatoire(aleatoire));
+            segments.add(TextSegment.from("segment " + i));
+        }
+        embeddingStore.addAll(embeddings, segments);
+
+        requetes = new ArrayList<>(NOMBRE_REQUETES);
+        for (int i = 0; i < NOMBRE_REQUETES; i++) {
+            requetes.add(vecteurAleatoire(aleatoire));
+        }
+
+        if (embeddingStore instanceof OffHeapEmbeddingStore horsTas) {
+            System.out.println("Rappel " + taille + " vecteurs, " + horsTas.bilan(requetes.subList(0, REQUETES_RAPPEL), 2));
+        } else if (embeddingStore instanceof HnswEmbeddingStore) {
+            System.out.printf("Rappel %d vecteurs, HNSW : rappel@2 = %.3f%n", taille, rappel(embeddings, 2));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void liberer() throws Exception {
+        if (embeddingStore instanceof AutoCloseable fermable) {
+            fermable.close();
+        }
+    }
+
+    /** Rappel@k moyen du magasin sur les requêtes, par rapport à un parcours exact des vecteurs ajoutés. */
+    private double rappel(List<Embedding> embeddings, int k) {
+        double somme = 0;
+        List<Embedding> echantillon = requetes.subList(0, REQUETES_RAPPEL);
+        for (Embedding requete : echantillon) {
+            PriorityQueue<Map.Entry<String, Double>> meilleurs = new PriorityQueue<>(Map.Entry.comparingByValue());
+            for (int i = 0; i < embeddings.size(); i++) {
+                meilleurs.add(Map.entry("segment " + i, CosineSimilarity.between(requete, embeddings.get(i))));
+                if (meilleurs.size() > k) {
+                    meilleurs.poll();
+                }
+            }
+            Set<String> exacts = new HashSet<>();
+            meilleurs.forEach(entree -> exacts.add(entree.getKey()));
+            long retrouves = embeddingStore.search(EmbeddingSearchRequest.builder()
+                            .queryEmbedding(requete)
+                            .maxResults(k)
+                            .minScore(0.0)
+                            .build())
+                    .matches().stream()
+                    .filter(match -> exacts.contains(match.embedded().text()))
+                    .count();
+            somme += (double) retrouves / exacts.size();
+        }
+        return somme / echantillon.size();
+    }
+
+    @Benchmark
+    public EmbeddingSearchResult<TextSegment> recherche() {
+        Embedding requete = requetes.get(prochaine++ % NOMBRE_REQUETES);
+        return embeddingStore.search(EmbeddingSearchRequest.builder()
+                .queryEmbedding(requete)
+                .maxResults(2)
+                .minScore(0.0)
+                .build());
+    }
+
+    private static Embedding vecteurAleatoire(Random aleatoire) {
+        float[] vecteur = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            vecteur[i] = (float) aleatoire.nextGaussian();
+        }
+        return Embedding.from(vecteur);
+    }
+}
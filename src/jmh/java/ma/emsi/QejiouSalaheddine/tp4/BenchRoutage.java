@@ -0,0 +1,127 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.embedding.onnx.allminilml6v2.AllMiniLmL6V2EmbeddingModel;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
+import dev.langchain4j.rag.query.Query;
+import dev.langchain4j.rag.query.router.LanguageModelQueryRouter;
+import dev.langchain4j.rag.query.router.QueryRouter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routeurs de TestRoutage et TestPasDeRag (routage local + repli LLM), comparés aux routeurs
+ * LLM seuls d'origine. Le LLM est un {@link FauxChatModel} dont la latence simule l'appel à Gemini.
+ * Les benchmarks "...Recherche" mesurent routage + recherche (même latence simulée pour la recherche),
+ * à la suite ou avec {@link RouteurSpeculatif}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BenchRoutage {
+
+    private static final List<Query> QUESTIONS = List.of(
+            Query.from("Qu'est-ce que le RAG ?"),
+            Query.from("Comment préparer une sauce tomate ?"),
+            Query.from("Bonjour"),
+            Query.from("Peut-on utiliser des embeddings pour une recette ?"));
+
+    /** Latence simulée d'un appel au LLM (0 = coût du routeur seul). */
+    @Param({"0", "50"})
+    public long latenceMs;
+
+    private QueryRouter routeurTestRoutage;
+    private QueryRouter routeurLlmTestRoutage;
+    private QueryRouter routeurTestPasDeRag;
+    private QueryRouter routeurLlmTestPasDeRag;
+    private QueryRouter routeurLlmRecherche;
+    private QueryRouter routeurSpeculatifRecherche;
+    private int prochaine;
+
+    @Setup(Level.Trial)
+    public void preparer() {
+        EmbeddingModel embeddingModel = new AllMiniLmL6V2EmbeddingModel();
+        ContentRetriever ragRetriever = query -> List.of();
+        ContentRetriever cuisineRetriever = query -> List.of();
+
+        // LanguageModelQueryRouter attend le numéro de la source, QueryRouterPourEviterRag "oui" ou "non"
+        FauxChatModel numero = new FauxChatModel("1", latenceMs);
+        FauxChatModel oui = new FauxChatModel("oui", latenceMs);
+
+        routeurTestRoutage = TestRoutage.creerRouteur(embeddingModel, numero, ragRetriever, cuisineRetriever);
+        routeurLlmTestRoutage = new LanguageModelQueryRouter(numero, Map.of(
+                ragRetriever, "Informations sur l'IA, LangChain4j, et RAG (Retrieval-Augmented Generation)",
+                cuisineRetriever, "Recettes de cuisine, ingrédients, et techniques culinaires (sauce tomate, gâteau)"));
+        routeurTestPasDeRag = TestPasDeRag.creerRouteur(embeddingModel, oui, ragRetriever);
+        routeurLlmTestPasDeRag = new TestPasDeRag.QueryRouterPourEviterRag(oui, ragRetriever);
+
+        ContentRetriever retrieverLent = query -> {
+            FauxChatModel.attendre(latenceMs);
+            return List.of();
+        };
+        routeurLlmRecherche = new TestPasDeRag.QueryRouterPourEviterRag(oui, retrieverLent);
+        routeurSpeculatifRecherche = new RouteurSpeculatif(routeurLlmRecherche, List.of(retrieverLent));
+    }
+
+    private Query question() {
+        return QUESTIONS.get(prochaine++ % QUESTIONS.size());
+    }
+
+    @Benchmark
+    public Collection<ContentRetriever> testRoutage() {
+        return routeurTestRoutage.route(question());
+    }
+
+    @Benchmark
+    public Collection<ContentRetriever> testRoutageLlmSeul() {
+        return routeurLlmTestRoutage.route(question());
+    }
+
+    @Benchmark
+    public Collection<ContentRetriever> testPasDeRag() {
+        return routeurTestPasDeRag.route(question());
+    }
+
+    @Benchmark
+    public Collection<ContentRetriever> testPasDeRagLlmSeul() {
+        return routeurLlmTestPasDeRag.route(question());
+    }
+
+    @Benchmark
+    public List<Content> testPasDeRagLlmSeulRecherche() {
+        return rechercher(routeurLlmRecherche, question());
+    }
+
+    @Benchmark
+    public List<Content> testPasDeRagSpeculatifRecherche() {
+        return rechercher(routeurSpeculatifRecherche, question());
+    }
+
+    private static List<Content> rechercher(QueryRouter routeur, Query query) {
+        List<Content> contenus = new ArrayList<>();
+        for (ContentRetriever retriever : routeur.route(query)) {
+            contenus.addAll(retriever.retrieve(query));
+        }
+        return contenus;
+    }
+}
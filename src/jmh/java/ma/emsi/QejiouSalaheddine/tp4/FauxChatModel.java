@@ -0,0 +1,40 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.output.Response;
+
+import java.util.List;
+
+/**
+ * ChatModel local pour les benchmarks : renvoie toujours la même réponse après une latence fixe,
+ * sans appel réseau (les mesures ne dépendent ni de Gemini ni de la clé API).
+ */
+class FauxChatModel implements ChatLanguageModel {
+
+    private final String reponse;
+    private final long latenceMs;
+
+    FauxChatModel(String reponse, long latenceMs) {
+        this.reponse = reponse;
+        this.latenceMs = latenceMs;
+    }
+
+    @Override
+    public Response<AiMessage> generate(List<ChatMessage> messages) {
+        attendre(latenceMs);
+        return Response.from(AiMessage.from(reponse));
+    }
+
+    /** Latence simulée (aussi utilisée pour les faux retrievers). */
+    static void attendre(long latenceMs) {
+        if (latenceMs > 0) {
+            try {
+                Thread.sleep(latenceMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.aggregator.ContentAggregator;
+import dev.langchain4j.rag.content.aggregator.DefaultContentAggregator;
+import dev.langchain4j.rag.query.Query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compactage du contexte avant injection dans le prompt, à donner à
+ * DefaultRetrievalAugmentor.builder().contentAggregator(...).
+ * <ol>
+ *     <li>classement : celui de DefaultContentAggregator (fusion des sources par rang, doublons exacts retirés) ;</li>
+ *     <li>quasi-doublons : un segment dont les termes ({@link IndexBm25#analyser}) recouvrent à plus de 80 %
+ *         (Jaccard) ceux d'un segment mieux classé est retiré (ex : même passage dans le PDF et sur le Web) ;</li>
+ *     <li>segments voisins : les segments consécutifs d'une même page d'un document (métadonnées "source",
+ *         "page" et "index") sont fusionnés en un seul passage, sans répéter le chevauchement du découpage ;</li>
+ *     <li>budget : les passages sont gardés dans l'ordre du classement tant qu'ils tiennent dans le budget
+ *         de tokens (estimés à 4 caractères par token).</li>
+ * </ol>
+ */
+public class AgregateurContexte implements ContentAggregator {
+
+    static final String METADONNEE_INDEX = "index";
+    private static final double SEUIL_QUASI_DOUBLON = 0.8;
+    private static final int CHEVAUCHEMENT_MIN = 8;
+    private static final int CHEVAUCHEMENT_MAX = 200;
+
+    /** Passage en cours de construction : rang du meilleur segment, segments par index croissant. */
+    private static final class Passage {
+        int rang;
+        final TreeMap<Integer, TextSegment> segments = new TreeMap<>();
+        final TextSegment seul;
+
+        Passage(int rang, TextSegment seul) {
+            this.rang = rang;
+            this.seul = seul;
+        }
+    }
+
+    private final ContentAggregator classement = new DefaultContentAggregator();
+    private final int budgetTokens;
+
+    private final AtomicLong tokensRecus = new AtomicLong();
+    private final AtomicLong tokensInjectes = new AtomicLong();
+
+    public AgregateurContexte(int budgetTokens) {
+        this.budgetTokens = budgetTokens;
+    }
+
+    /** Budget tp4.contexte.tokens (1000 par défaut) ; 0 pour garder le DefaultContentAggregator seul. */
+    public static ContentAggregator depuisConfiguration() {
+        int budget = (int) Configuration.entier("tp4.contexte.tokens", 1_000);
+        return budget > 0 ? new AgregateurContexte(budget) : new DefaultContentAggregator();
+    }
+
+    @Override
+    public List<Content> aggregate(Map<Query, Collection<List<Content>>> queryToContents) {
+        List<Content> classes = classement.aggregate(queryToContents);
+        for (Content content : classes) {
+            tokensRecus.addAndGet(tokens(content.textSegment().text()));
+        }
+
+        List<TextSegment> uniques = retirerQuasiDoublons(classes);
+        List<TextSegment> passages = fusionnerVoisins(uniques);
+
+        List<Content> contexte = new ArrayList<>();
+        int restant = budgetTokens;
+        for (TextSegment passage : passages) {
+            int tokens = tokens(passage.text());
+            if (tokens <= restant) {
+                contexte.add(Content.from(passage));
+                restant -= tokens;
+            }
+        }
+        tokensInjectes.addAndGet(budgetTokens - restant);
+        return contexte;
+    }
+
+    private static List<TextSegment> retirerQuasiDoublons(List<Content> classes) {
+        List<TextSegment> uniques = new ArrayList<>();
+        List<Set<String>> termesGardes = new ArrayList<>();
+        for (Content content : classes) {
+            TextSegment segment = content.textSegment();
+            Set<String> termes = new HashSet<>(IndexBm25.analyser(segment.text()));
+            boolean doublon = false;
+            for (Set<String> garde : termesGardes) {
+                if (jaccard(termes, garde) >= SEUIL_QUASI_DOUBLON) {
+                    doublon = true;
+                    break;
+                }
+            }
+            if (!doublon) {
+                uniques.add(segment);
+                termesGardes.add(termes);
+            }
+        }
+        return uniques;
+    }
+
+    /** Regroupe les segments consécutifs d'un même document ; le passage prend le rang de son meilleur segment. */
+    private static List<TextSegment> fusionnerVoisins(List<TextSegment> segments) {
+        List<Passage> passages = new ArrayList<>();
+        Map<String, Map<Integer, Passage>> parSource = new HashMap<>();
+        for (int rang = 0; rang < segments.size(); rang++) {
+            TextSegment segment = segments.get(rang);
+            String source = segment.metadata().getString(IndexPersistant.METADONNEE_SOURCE);
+            Integer index = index(segment);
+            if (source != null && segment.metadata().containsKey(LecteurParPages.METADONNEE_PAGE)) {
+                // Les index du découpage recommencent à chaque page
+                source += "#" + segment.metadata().getInteger(LecteurParPages.METADONNEE_PAGE);
+            }
+            if (source == null || index == null) {
+                passages.add(new Passage(rang, segment));
+                continue;
+            }
+            Map<Integer, Passage> voisins = parSource.computeIfAbsent(source, s -> new HashMap<>());
+            Passage avant = voisins.get(index - 1);
+            Passage apres = voisins.get(index + 1);
+            Passage passage = avant != null ? avant : apres != null ? apres : new Passage(rang, null);
+            if (passage.segments.isEmpty()) {
+                passages.add(passage);
+            }
+            passage.segments.put(index, segment);
+            voisins.put(index, passage);
+            if (avant != null && apres != null && avant != apres) {
+                // Le segment relie deux passages : le second rejoint le premier
+                for (Map.Entry<Integer, TextSegment> entree : apres.segments.entrySet()) {
+                    avant.segments.put(entree.getKey(), entree.getValue());
+                    voisins.put(entree.getKey(), avant);
+                }
+                avant.rang = Math.min(avant.rang, apres.rang);
+                passages.remove(apres);
+            }
+        }
+
+        passages.sort((a, b) -> Integer.compare(a.rang, b.rang));
+        List<TextSegment> resultat = new ArrayList<>(passages.size());
+        for (Passage passage : passages) {
+            resultat.add(passage.seul != null ? passage.seul : assembler(passage.segments));
+        }
+        return resultat;
+    }
+
+    private static TextSegment assembler(TreeMap<Integer, TextSegment> segments) {
+        if (segments.size() == 1) {
+            return segments.firstEntry().getValue();
+        }
+        StringBuilder texte = new StringBuilder();
+        for (TextSegment segment : segments.values()) {
+            String suite = segment.text();
+            int chevauchement = chevauchement(texte, suite);
+            if (!texte.isEmpty() && chevauchement == 0) {
+                texte.append(' ');
+            }
+            texte.append(suite, chevauchement, suite.length());
+        }
+        Metadata metadonnees = segments.firstEntry().getValue().metadata().copy();
+        return TextSegment.from(texte.toString(), metadonnees);
+    }
+
+    /** Longueur du plus long début de suite qui termine déjà le texte (chevauchement du découpage), ou 0. */
+    private static int chevauchement(CharSequence texte, String suite) {
+        int max = Math.min(CHEVAUCHEMENT_MAX, Math.min(texte.length(), suite.length()));
+        for (int longueur = max; longueur >= CHEVAUCHEMENT_MIN; longueur--) {
+            boolean egal = true;
+            int debut = texte.length() - longueur;
+            for (int i = 0; i < longueur && egal; i++) {
+                egal = texte.charAt(debut + i) == suite.charAt(i);
+            }
+            if (egal) {
+                return longueur;
+            }
+        }
+        return 0;
+    }
+
+    private static Integer index(TextSegment segment) {
+        String index = segment.metadata().getString(METADONNEE_INDEX);
+        if (index == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(index);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static double jaccard(Set<String> a, Set<String> b) {
+        if (a.isEmpty() || b.isEmpty()) {
+            return a.equals(b) ? 1 : 0;
+        }
+        int communs = 0;
+        for (String terme : a) {
+            if (b.contains(terme)) {
+                communs++;
+            }
+        }
+        return (double) communs / (a.size() + b.size() - communs);
+    }
+
+    private static int tokens(String texte) {
+        return (texte.length() + 3) / 4;
+    }
+
+    /** Part des tokens retrouvés qui a été injectée dans le prompt (1 = rien retiré). */
+    public double tauxInjection() {
+        long recus = tokensRecus.get();
+        return recus == 0 ? 1 : (double) tokensInjectes.get() / recus;
+    }
+}
@@ -0,0 +1,163 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
+import dev.langchain4j.rag.query.Query;
+import dev.langchain4j.service.Result;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache sémantique devant un assistant : une question très proche d'une question déjà posée
+ * (similarité cosinus des embeddings >= seuil) reçoit la réponse déjà générée, sans appel à Gemini.
+ * <p>
+ * Pour ne pas servir une réponse construite sur d'autres passages, les segments retrouvés pour
+ * la nouvelle question doivent être les mêmes que ceux de la question en cache : ils sont comparés
+ * par hash SHA-256 de leur texte, donc un passage modifié dans le document ne correspond plus.
+ * Les segments d'une réponse générée sont ceux que l'assistant a injectés ({@link Result#sources()}) ;
+ * le retriever n'est appelé en plus que pour vérifier une question proche d'une question en cache.
+ * Le cache est limité en taille par éviction LRU, et vidé par {@link #invalider()} (appelé après chaque
+ * ré-ingestion à chaud, voir {@link IngestionIncrementale#siModification}).
+ * <p>
+ * L'assistant enveloppé n'a pas de mémoire de conversation : une réponse ne dépend que de la question
+ * et des passages, elle peut donc être resservie telle quelle (questions autonomes, type FAQ).
+ */
+public class AssistantAvecCacheSemantique implements Assistant {
+
+    /** Assistant sans mémoire de conversation, qui renvoie aussi les segments injectés (comme ModeLot.AssistantLot). */
+    public interface AssistantSansMemoire {
+        Result<String> chat(String question);
+    }
+
+    private record Entree(float[] question, Set<String> sources, String reponse) {
+    }
+
+    private final AssistantSansMemoire assistant;
+    private final EmbeddingModel embeddingModel;
+    private final ContentRetriever contentRetriever;
+    private final double seuil;
+    private final Map<Long, Entree> entrees;
+
+    private long prochaineCle;
+
+    private final AtomicLong succes = new AtomicLong();
+    private final AtomicLong echecs = new AtomicLong();
+
+    /**
+     * @param seuil     similarité cosinus minimale entre deux questions (ex : 0.95)
+     * @param tailleMax nombre maximal de réponses gardées
+     */
+    public AssistantAvecCacheSemantique(AssistantSansMemoire assistant, EmbeddingModel embeddingModel,
+                                        ContentRetriever contentRetriever, double seuil, int tailleMax) {
+        this.assistant = assistant;
+        this.embeddingModel = embeddingModel;
+        this.contentRetriever = contentRetriever;
+        this.seuil = seuil;
+        this.entrees = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entree> eldest) {
+                return size() > tailleMax;
+            }
+        };
+    }
+
+    @Override
+    public String chat(String userMessage) {
+        float[] question = normaliser(embeddingModel.embed(userMessage).content().vector());
+
+        // Questions en cache assez proches, de la plus proche à la moins proche
+        List<Map.Entry<Long, Entree>> candidates = new ArrayList<>();
+        synchronized (entrees) {
+            for (Map.Entry<Long, Entree> entree : entrees.entrySet()) {
+                if (produit(question, entree.getValue().question()) >= seuil) {
+                    candidates.add(Map.entry(entree.getKey(), entree.getValue()));
+                }
+            }
+        }
+        if (!candidates.isEmpty()) {
+            candidates.sort(Comparator.comparingDouble(
+                    (Map.Entry<Long, Entree> entree) -> produit(question, entree.getValue().question())).reversed());
+            Set<String> sources = empreintes(contentRetriever.retrieve(Query.from(userMessage)));
+            for (Map.Entry<Long, Entree> candidate : candidates) {
+                if (candidate.getValue().sources().equals(sources)) {
+                    synchronized (entrees) {
+                        entrees.get(candidate.getKey()); // marque l'entrée comme récemment utilisée
+                    }
+                    succes.incrementAndGet();
+                    System.out.println(String.format("Réponse servie depuis le cache sémantique (similarité %.3f).",
+                            produit(question, candidate.getValue().question())));
+                    return candidate.getValue().reponse();
+                }
+            }
+        }
+
+        echecs.incrementAndGet();
+        Result<String> resultat = assistant.chat(userMessage);
+        synchronized (entrees) {
+            entrees.put(prochaineCle++, new Entree(question, empreintes(resultat.sources()), resultat.content()));
+        }
+        return resultat.content();
+    }
+
+    /** Vide le cache (ex : après une ré-ingestion des documents). */
+    public void invalider() {
+        synchronized (entrees) {
+            entrees.clear();
+        }
+    }
+
+    public long succes() {
+        return succes.get();
+    }
+
+    public long echecs() {
+        return echecs.get();
+    }
+
+    /** Empreinte des segments : hash SHA-256 du texte de chacun. */
+    private static Set<String> empreintes(List<Content> contents) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 indisponible", e);
+        }
+        Set<String> sources = new HashSet<>();
+        for (Content content : contents == null ? List.<Content>of() : contents) {
+            if (content.textSegment() != null) {
+                sources.add(HexFormat.of().formatHex(digest.digest(
+                        content.textSegment().text().getBytes(StandardCharsets.UTF_8))));
+            }
+        }
+        return sources;
+    }
+
+    private static double produit(float[] a, float[] b) {
+        double produit = 0;
+        for (int i = 0; i < a.length; i++) {
+            produit += a[i] * b[i];
+        }
+        return produit;
+    }
+
+    private static float[] normaliser(float[] vecteur) {
+        double norme = Math.sqrt(produit(vecteur, vecteur));
+        float[] normalise = new float[vecteur.length];
+        for (int i = 0; i < vecteur.length; i++) {
+            normalise[i] = norme == 0 ? 0 : (float) (vecteur[i] / norme);
+        }
+        return normalise;
+    }
+}
@@ -0,0 +1,12 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.service.TokenStream;
+
+/**
+ * Variante en streaming de {@link Assistant} : la réponse arrive token par token,
+ * ce qui permet d'afficher le début de la réponse sans attendre la fin de la génération.
+ * LangChain4j l'implémente automatiquement avec un StreamingChatLanguageModel.
+ */
+public interface AssistantStreaming {
+    TokenStream chat(String userMessage);
+}
@@ -0,0 +1,333 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.agent.tool.ToolSpecification;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.output.Response;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Couche de résilience devant un ChatLanguageModel (ex : GoogleAiGeminiChatModel), pour que les erreurs
+ * de quota sous charge n'arrêtent plus la conversation.
+ * <ul>
+ *     <li>concurrence adaptative AIMD : au plus {@link #limite()} appels en cours ; la limite augmente
+ *         de 1 par "tour" d'appels réussis et est divisée par 2 à chaque refus de quota (429) ;</li>
+ *     <li>nouvelles tentatives sur les erreurs passagères (quota, 5xx, délais réseau, erreurs simulées),
+ *         après une attente exponentielle tirée au hasard (full jitter) pour ne pas relancer tous ensemble ;</li>
+ *     <li>délai maximal par appel, attente d'une place et tentatives comprises : au-delà, l'appel en cours
+ *         est interrompu et une RuntimeException est levée ;</li>
+ *     <li>appels identiques simultanés (mêmes messages, mêmes outils) fusionnés : un seul appel au modèle,
+ *         dont la réponse est partagée (ex : même prompt de routage pour plusieurs sessions).</li>
+ * </ul>
+ * Les compteurs (refus de quota, nouvelles tentatives, appels fusionnés, délais dépassés) sont exposés
+ * par les méthodes du même nom, et cumulés dans {@link Metriques} (résumé à l'arrêt, JMX) avec -Dtp4.metriques=true.
+ * <p>
+ * Les erreurs sont classées sur le statut renvoyé par l'API : code HTTP (429, 500, 502, 503, 504) ou nom de
+ * statut gRPC (RESOURCE_EXHAUSTED, UNAVAILABLE, ...) comme mot entier du message, pour qu'un nombre comme
+ * "1500" ou une durée "500ms" ne soient pas pris pour un code.
+ */
+public class ChatModelResilient implements ChatLanguageModel {
+
+    private static final ExecutorService APPELS = Executors.newVirtualThreadPerTaskExecutor();
+    /** Code HTTP ou statut gRPC de refus de quota, en mot entier. */
+    private static final Pattern STATUT_QUOTA = Pattern.compile("\\b(429|RESOURCE_EXHAUSTED)\\b");
+    /** Codes HTTP et statuts gRPC d'erreurs serveur passagères, en mot entier. */
+    private static final Pattern STATUT_PASSAGER =
+            Pattern.compile("\\b(500|502|503|504|UNAVAILABLE|INTERNAL|DEADLINE_EXCEEDED|ABORTED)\\b");
+    /** Début du message des erreurs de {@link LatenceSimulee}. */
+    private static final String ERREUR_SIMULEE = "Erreur simulée";
+
+    /** Clé de fusion des appels identiques. */
+    private record Cle(List<ChatMessage> messages, Object outils) {
+    }
+
+    private enum Issue { SUCCES, REFUS_QUOTA, ECHEC }
+
+    private final ChatLanguageModel chatModel;
+    private final Limiteur limiteur;
+    private final int tentatives;
+    private final long attenteBaseNanos;
+    private final long attenteMaxNanos;
+    private final long delaiNanos;
+    private final Map<Cle, CompletableFuture<Response<AiMessage>>> enCours = new ConcurrentHashMap<>();
+
+    private final AtomicLong appels = new AtomicLong();
+    private final AtomicLong refusQuota = new AtomicLong();
+    private final AtomicLong reessais = new AtomicLong();
+    private final AtomicLong fusionnes = new AtomicLong();
+    private final AtomicLong delaisDepasses = new AtomicLong();
+
+    /**
+     * @param concurrenceInitiale appels simultanés autorisés au départ
+     * @param concurrenceMax      plafond de la limite adaptative
+     * @param tentatives          nombre maximal de tentatives par appel (1 = pas de nouvelle tentative)
+     * @param attenteBase         attente maximale avant la 2e tentative, doublée à chaque tentative
+     * @param attenteMax          plafond de l'attente entre deux tentatives
+     * @param delai               délai maximal d'un appel, attentes et tentatives comprises
+     */
+    public ChatModelResilient(ChatLanguageModel chatModel, int concurrenceInitiale, int concurrenceMax,
+                              int tentatives, Duration attenteBase, Duration attenteMax, Duration delai) {
+        if (concurrenceInitiale < 1 || concurrenceMax < concurrenceInitiale || tentatives < 1) {
+            throw new IllegalArgumentException("Paramètres de résilience du ChatModel invalides");
+        }
+        this.chatModel = chatModel;
+        this.limiteur = new Limiteur(concurrenceInitiale, concurrenceMax);
+        this.tentatives = tentatives;
+        this.attenteBaseNanos = attenteBase.toNanos();
+        this.attenteMaxNanos = attenteMax.toNanos();
+        this.delaiNanos = delai.toNanos();
+    }
+
+    /**
+     * Paramètres tp4.llm.concurrence (4 au départ), tp4.llm.concurrence.max (32), tp4.llm.tentatives (4),
+     * tp4.llm.attente.ms (500), tp4.llm.attente.max.ms (20000) ; délai tp4.llm.delai.ms (60000)
+     * ou celui donné (timeout de Modeles.chatModel).
+     */
+    public static ChatModelResilient depuisConfiguration(ChatLanguageModel chatModel, Duration delai) {
+        return new ChatModelResilient(chatModel,
+                (int) Configuration.entier("tp4.llm.concurrence", 4),
+                (int) Configuration.entier("tp4.llm.concurrence.max", 32),
+                (int) Configuration.entier("tp4.llm.tentatives", 4),
+                Configuration.millisecondes("tp4.llm.attente.ms", 500),
+                Configuration.millisecondes("tp4.llm.attente.max.ms", 20_000),
+                delai != null ? delai : Configuration.millisecondes("tp4.llm.delai.ms", 60_000));
+    }
+
+    @Override
+    public Response<AiMessage> generate(List<ChatMessage> messages) {
+        return appel(new Cle(List.copyOf(messages), null), () -> chatModel.generate(messages));
+    }
+
+    @Override
+    public Response<AiMessage> generate(List<ChatMessage> messages, List<ToolSpecification> outils) {
+        return appel(new Cle(List.copyOf(messages), List.copyOf(outils)), () -> chatModel.generate(messages, outils));
+    }
+
+    @Override
+    public Response<AiMessage> generate(List<ChatMessage> messages, ToolSpecification outil) {
+        return appel(new Cle(List.copyOf(messages), outil), () -> chatModel.generate(messages, outil));
+    }
+
+    private Response<AiMessage> appel(Cle cle, Supplier<Response<AiMessage>> generation) {
+        long echeance = System.nanoTime() + delaiNanos;
+        appels.incrementAndGet();
+
+        // Un seul appel en cours par prompt ; les appelants suivants attendent sa réponse (avec leur propre délai)
+        CompletableFuture<Response<AiMessage>> nouveau = new CompletableFuture<>();
+        CompletableFuture<Response<AiMessage>> existant = enCours.putIfAbsent(cle, nouveau);
+        if (existant != null) {
+            fusionnes.incrementAndGet();
+            Metriques.compter(Metriques.Compteur.FUSION);
+            return attendre(existant, echeance);
+        }
+        try {
+            Response<AiMessage> reponse = avecTentatives(generation, echeance);
+            nouveau.complete(reponse);
+            return reponse;
+        } catch (RuntimeException e) {
+            nouveau.completeExceptionally(e);
+            throw e;
+        } finally {
+            enCours.remove(cle, nouveau);
+        }
+    }
+
+    private Response<AiMessage> avecTentatives(Supplier<Response<AiMessage>> generation, long echeance) {
+        for (int tentative = 1; ; tentative++) {
+            if (!limiteur.acquerir(echeance)) {
+                throw delaiDepasse();
+            }
+            long debut = System.nanoTime();
+            Future<Response<AiMessage>> future = APPELS.submit(generation::get);
+            RuntimeException erreur;
+            try {
+                Response<AiMessage> reponse = future.get(Math.max(0, echeance - System.nanoTime()), TimeUnit.NANOSECONDS);
+                limiteur.liberer(Issue.SUCCES, debut);
+                return reponse;
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                limiteur.liberer(Issue.ECHEC, debut);
+                throw delaiDepasse();
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                limiteur.liberer(Issue.ECHEC, debut);
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Appel au ChatModel interrompu", e);
+            } catch (ExecutionException e) {
+                erreur = e.getCause() instanceof RuntimeException cause ? cause : new RuntimeException(e.getCause());
+            }
+
+            boolean quota = refusQuota(erreur);
+            if (quota) {
+                refusQuota.incrementAndGet();
+                Metriques.compter(Metriques.Compteur.REFUS_QUOTA);
+            }
+            limiteur.liberer(quota ? Issue.REFUS_QUOTA : Issue.ECHEC, debut);
+            if (tentative >= tentatives || !(quota || passagere(erreur))) {
+                throw erreur;
+            }
+            // Full jitter : attente tirée entre 0 et base * 2^(tentative - 1), plafonnée
+            long plafond = Math.min(attenteMaxNanos, attenteBaseNanos << Math.min(tentative - 1, 30));
+            long attente = ThreadLocalRandom.current().nextLong(plafond + 1);
+            if (System.nanoTime() + attente >= echeance) {
+                throw erreur; // pas le temps d'une nouvelle tentative
+            }
+            reessais.incrementAndGet();
+            Metriques.compter(Metriques.Compteur.REESSAI);
+            try {
+                TimeUnit.NANOSECONDS.sleep(attente);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw erreur;
+            }
+        }
+    }
+
+    private Response<AiMessage> attendre(CompletableFuture<Response<AiMessage>> future, long echeance) {
+        try {
+            return future.get(Math.max(0, echeance - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw delaiDepasse();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Appel au ChatModel interrompu", e);
+        } catch (ExecutionException | CancellationException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    private RuntimeException delaiDepasse() {
+        delaisDepasses.incrementAndGet();
+        Metriques.compter(Metriques.Compteur.DELAI_DEPASSE);
+        return new RuntimeException("Délai de " + delaiNanos / 1_000_000 + " ms dépassé pour l'appel au ChatModel");
+    }
+
+    /** Refus de quota de l'API (HTTP 429, RESOURCE_EXHAUSTED). */
+    static boolean refusQuota(Throwable erreur) {
+        for (Throwable t = erreur; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && STATUT_QUOTA.matcher(t.getMessage()).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Erreur passagère : erreur serveur (5xx, UNAVAILABLE, INTERNAL, ...), délai ou coupure réseau
+     * (IOException, TimeoutException), erreur du modèle simulé.
+     */
+    static boolean passagere(Throwable erreur) {
+        for (Throwable t = erreur; t != null; t = t.getCause()) {
+            if (t instanceof IOException || t instanceof TimeoutException) {
+                return true;
+            }
+            String message = t.getMessage();
+            if (message != null && (STATUT_PASSAGER.matcher(message).find() || message.startsWith(ERREUR_SIMULEE))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long appels() {
+        return appels.get();
+    }
+
+    public long refusQuota() {
+        return refusQuota.get();
+    }
+
+    public long reessais() {
+        return reessais.get();
+    }
+
+    public long fusionnes() {
+        return fusionnes.get();
+    }
+
+    public long delaisDepasses() {
+        return delaisDepasses.get();
+    }
+
+    /** Nombre d'appels simultanés actuellement autorisés. */
+    public int limite() {
+        return limiteur.limite();
+    }
+
+    @Override
+    public String toString() {
+        return "ChatModelResilient[limite=" + limite() + ", appels=" + appels() + ", refusQuota=" + refusQuota()
+                + ", reessais=" + reessais() + ", fusionnes=" + fusionnes() + ", delaisDepasses=" + delaisDepasses() + "]";
+    }
+
+    /**
+     * Limite de concurrence AIMD (comme la fenêtre de congestion de TCP) : +1/limite par succès,
+     * soit +1 quand toute la fenêtre a réussi ; /2 sur refus de quota, une seule fois pour les appels
+     * partis avant la dernière réduction (ils ont vu la même surcharge).
+     */
+    private static final class Limiteur {
+
+        private final int max;
+        private double limite;
+        private int enCours;
+        private long derniereReduction = System.nanoTime();
+
+        Limiteur(int initiale, int max) {
+            this.limite = initiale;
+            this.max = max;
+        }
+
+        synchronized boolean acquerir(long echeance) {
+            while (enCours >= (int) limite) {
+                long restant = echeance - System.nanoTime();
+                if (restant <= 0) {
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, restant);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            enCours++;
+            return true;
+        }
+
+        synchronized void liberer(Issue issue, long debut) {
+            enCours--;
+            if (issue == Issue.SUCCES) {
+                limite = Math.min(max, limite + 1 / limite);
+            } else if (issue == Issue.REFUS_QUOTA && debut - derniereReduction > 0) {
+                limite = Math.max(1, limite / 2);
+                derniereReduction = System.nanoTime();
+            }
+            notifyAll();
+        }
+
+        synchronized int limite() {
+            return (int) limite;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.StreamingResponseHandler;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
+import dev.langchain4j.model.output.FinishReason;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.model.output.TokenUsage;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * ChatModel local (sans réseau) à la place de Gemini, pour les tests de charge et de latence :
+ * latence et erreurs simulées ({@link LatenceSimulee}), réponses déterministes.
+ * <p>
+ * La réponse est la première règle dont le motif apparaît dans le dernier message utilisateur,
+ * sinon le modèle de réponse où {{question}} est remplacé par la première ligne de ce message
+ * (la question, avant le contexte ajouté par le RAG). Les règles par défaut répondent aux prompts
+ * de routage : "1" pour LanguageModelQueryRouter, "oui" pour QueryRouterPourEviterRag.
+ * <p>
+ * En streaming, la réponse est envoyée mot par mot après la latence simulée.
+ */
+public class ChatModelSimule implements ChatLanguageModel, StreamingChatLanguageModel {
+
+    private record Regle(Pattern motif, String reponse) {
+    }
+
+    private final LatenceSimulee latence;
+    private final String modeleReponse;
+    private final List<Regle> regles;
+    private final Duration delaiToken;
+
+    private ChatModelSimule(Builder builder) {
+        this.latence = builder.latence;
+        this.modeleReponse = builder.modeleReponse;
+        this.regles = List.copyOf(builder.regles);
+        this.delaiToken = builder.delaiToken;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public Response<AiMessage> generate(List<ChatMessage> messages) {
+        latence.attendre("LLM");
+        return reponse(messages);
+    }
+
+    @Override
+    public void generate(List<ChatMessage> messages, StreamingResponseHandler<AiMessage> handler) {
+        // Comme un vrai modèle en streaming : la réponse arrive sur un autre thread
+        Thread.ofVirtual().name("llm-simule").start(() -> {
+            try {
+                latence.attendre("LLM");
+                Response<AiMessage> reponse = reponse(messages);
+                String[] mots = reponse.content().text().split("(?<= )");
+                for (String mot : mots) {
+                    handler.onNext(mot);
+                    if (!delaiToken.isZero()) {
+                        Thread.sleep(delaiToken.toMillis());
+                    }
+                }
+                handler.onComplete(reponse);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                handler.onError(e);
+            } catch (RuntimeException e) {
+                handler.onError(e);
+            }
+        });
+    }
+
+    private Response<AiMessage> reponse(List<ChatMessage> messages) {
+        String dernier = dernierMessageUtilisateur(messages);
+        String texte = null;
+        for (Regle regle : regles) {
+            if (regle.motif().matcher(dernier).find()) {
+                texte = regle.reponse();
+                break;
+            }
+        }
+        if (texte == null) {
+            String question = dernier.strip().lines().findFirst().orElse("");
+            texte = modeleReponse.replace("{{question}}", question);
+        }
+        int tokensEntree = 0;
+        for (ChatMessage message : messages) {
+            if (message instanceof UserMessage userMessage && userMessage.hasSingleText()) {
+                tokensEntree += userMessage.singleText().length() / 4;
+            }
+        }
+        return Response.from(AiMessage.from(texte), new TokenUsage(tokensEntree, texte.length() / 4), FinishReason.STOP);
+    }
+
+    private static String dernierMessageUtilisateur(List<ChatMessage> messages) {
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            if (messages.get(i) instanceof UserMessage userMessage && userMessage.hasSingleText()) {
+                return userMessage.singleText();
+            }
+        }
+        return "";
+    }
+
+    public static class Builder {
+
+        private LatenceSimulee latence = new LatenceSimulee(0, 0, 0, 42);
+        private String modeleReponse = "Réponse simulée à la question : {{question}}";
+        private final List<Regle> regles = new ArrayList<>(List.of(
+                new Regle(Pattern.compile("UNIQUEMENT par 'oui' ou 'non'"), "oui"),
+                new Regle(Pattern.compile("data source", Pattern.CASE_INSENSITIVE), "1")));
+        private Duration delaiToken = Duration.ZERO;
+
+        public Builder latence(LatenceSimulee latence) {
+            this.latence = latence;
+            return this;
+        }
+
+        /** Modèle de réponse ; {{question}} est remplacé par la question de l'utilisateur. */
+        public Builder modeleReponse(String modeleReponse) {
+            this.modeleReponse = modeleReponse;
+            return this;
+        }
+
+        /** Réponse fixe quand l'expression régulière apparaît dans le message ; prioritaire sur les règles par défaut. */
+        public Builder regle(String expression, String reponse) {
+            regles.add(0, new Regle(Pattern.compile(expression), reponse));
+            return this;
+        }
+
+        /** Délai entre deux mots en streaming. */
+        public Builder delaiToken(Duration delaiToken) {
+            this.delaiToken = delaiToken;
+            return this;
+        }
+
+        public ChatModelSimule build() {
+            return new ChatModelSimule(this);
+        }
+    }
+}
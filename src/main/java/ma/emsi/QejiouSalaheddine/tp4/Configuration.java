@@ -0,0 +1,91 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Lecture de la configuration, dans cet ordre :
+ * <ol>
+ *     <li>propriété système (-Dtp4.modele=simule) ;</li>
+ *     <li>variable d'environnement (TP4_MODELE : majuscules, points remplacés par des _) ;</li>
+ *     <li>fichier tp4.properties du répertoire courant, sinon du classpath.</li>
+ * </ol>
+ */
+public final class Configuration {
+
+    private static final Properties FICHIER = chargerFichier();
+
+    private Configuration() {
+    }
+
+    /** Valeur de la clé, ou null si elle n'est définie nulle part (une valeur vide compte comme absente). */
+    public static String valeur(String cle) {
+        String valeur = System.getProperty(cle);
+        if (valeur == null || valeur.isEmpty()) {
+            valeur = System.getenv(cle.toUpperCase(Locale.ROOT).replace('.', '_'));
+        }
+        if (valeur == null || valeur.isEmpty()) {
+            valeur = FICHIER.getProperty(cle);
+        }
+        return valeur == null || valeur.isEmpty() ? null : valeur.trim();
+    }
+
+    public static String valeur(String cle, String defaut) {
+        String valeur = valeur(cle);
+        return valeur == null ? defaut : valeur;
+    }
+
+    public static long entier(String cle, long defaut) {
+        String valeur = valeur(cle);
+        return valeur == null ? defaut : Long.parseLong(valeur);
+    }
+
+    public static double decimal(String cle, double defaut) {
+        String valeur = valeur(cle);
+        return valeur == null ? defaut : Double.parseDouble(valeur);
+    }
+
+    /** Durée exprimée en millisecondes dans la configuration. */
+    public static Duration millisecondes(String cle, long defaut) {
+        return Duration.ofMillis(entier(cle, defaut));
+    }
+
+    /** Valeur obligatoire (ex : clé d'API) ; l'exception explique comment la définir. */
+    public static String obligatoire(String cle) {
+        String valeur = valeur(cle);
+        if (valeur == null) {
+            throw new IllegalStateException("La variable d'environnement "
+                    + cle.toUpperCase(Locale.ROOT).replace('.', '_') + " n'est pas définie.");
+        }
+        return valeur;
+    }
+
+    private static Properties chargerFichier() {
+        Properties proprietes = new Properties();
+        Path local = Path.of("tp4.properties");
+        try {
+            if (Files.exists(local)) {
+                try (Reader reader = Files.newBufferedReader(local, StandardCharsets.UTF_8)) {
+                    proprietes.load(reader);
+                }
+            } else {
+                try (InputStream in = Configuration.class.getResourceAsStream("/tp4.properties")) {
+                    if (in != null) {
+                        proprietes.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Fichier tp4.properties illisible (" + e.getMessage() + "), il est ignoré.");
+        }
+        return proprietes;
+    }
+}
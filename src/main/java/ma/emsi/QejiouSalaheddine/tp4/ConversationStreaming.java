@@ -0,0 +1,88 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.model.output.Response;
+
+import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Boucle de conversation pour un {@link AssistantStreaming} : les tokens sont affichés dès leur arrivée,
+ * et chaque tour affiche le temps jusqu'au premier token et le temps total.
+ */
+public class ConversationStreaming {
+
+    /** Mesures d'un tour : temps jusqu'au premier token, temps total, nombre de fragments reçus. */
+    public record Mesure(long premierTokenMs, long totalMs, int fragments) {
+    }
+
+    /**
+     * Gère la boucle de conversation avec l'assistant en streaming.
+     */
+    public static void conversationAvec(AssistantStreaming assistant) {
+        try (Scanner scanner = new Scanner(System.in)) {
+            while (true) {
+                System.out.println("==================================================");
+                System.out.println("Posez votre question : ");
+                String question = scanner.nextLine();
+                if (question.isBlank()) {
+                    continue;
+                }
+                if ("fin".equalsIgnoreCase(question)) {
+                    System.out.println("Conversation terminée.");
+                    break;
+                }
+                System.out.println("==================================================");
+                System.out.print("Assistant : ");
+                try {
+                    Mesure mesure = repondre(assistant, question, token -> {
+                        System.out.print(token);
+                        System.out.flush();
+                    });
+                    System.out.println();
+                    System.out.println("[premier token : " + mesure.premierTokenMs() + " ms, total : "
+                            + mesure.totalMs() + " ms]");
+                } catch (RuntimeException e) {
+                    System.out.println();
+                    System.err.println("Erreur lors de la génération de la réponse : " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Envoie la question, transmet chaque token à la sortie et bloque jusqu'à la fin de la réponse.
+     */
+    public static Mesure repondre(AssistantStreaming assistant, String question, Consumer<String> sortie) {
+        long debut = System.nanoTime();
+        AtomicLong premierToken = new AtomicLong(-1);
+        AtomicInteger fragments = new AtomicInteger();
+        CompletableFuture<Response<AiMessage>> fin = new CompletableFuture<>();
+
+        assistant.chat(question)
+                .onNext(token -> {
+                    premierToken.compareAndSet(-1, System.nanoTime());
+                    fragments.incrementAndGet();
+                    sortie.accept(token);
+                })
+                .onComplete(fin::complete)
+                .onError(fin::completeExceptionally)
+                .start();
+
+        try {
+            fin.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Réponse interrompue", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause().getMessage(), e.getCause());
+        }
+        long finNanos = System.nanoTime();
+        long premier = premierToken.get() < 0 ? finNanos : premierToken.get();
+        return new Mesure((premier - debut) / 1_000_000, (finNanos - debut) / 1_000_000, fragments.get());
+    }
+}
@@ -0,0 +1,114 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Signal de disponibilité (readiness) du démarrage rapide : les composants lents (modèle d'embedding ONNX,
+ * index des documents) sont chargés en arrière-plan sur des threads virtuels, pendant que le reste démarre.
+ * <p>
+ * L'application est prête quand tous les composants démarrés sont chargés. À ce moment, le temps depuis
+ * le lancement de la JVM est affiché, et le fichier tp4.pret.fichier est créé s'il est configuré
+ * (sonde de disponibilité d'un orchestrateur). ServeurChat expose le même état sur /pret.
+ */
+public final class Disponibilite {
+
+    private static final long LANCEMENT_JVM_MS = ProcessHandle.current().info().startInstant()
+            .map(Instant::toEpochMilli)
+            .orElse(System.currentTimeMillis());
+
+    private static final Map<String, CompletableFuture<?>> COMPOSANTS = new LinkedHashMap<>();
+    private static boolean signale;
+
+    private Disponibilite() {
+    }
+
+    /** Démarrage rapide demandé avec -Dtp4.demarrage.rapide=true. */
+    public static boolean demarrageRapide() {
+        return Boolean.parseBoolean(Configuration.valeur("tp4.demarrage.rapide", "false"));
+    }
+
+    /** Lance le chargement d'un composant sur un thread virtuel ; le futur échoue si le chargement échoue. */
+    public static <T> CompletableFuture<T> charger(String nom, Supplier<T> chargement) {
+        CompletableFuture<T> futur = new CompletableFuture<>();
+        synchronized (Disponibilite.class) {
+            COMPOSANTS.put(nom, futur);
+            signale = false;
+        }
+        Thread.ofVirtual().name("chargement-" + nom).start(() -> {
+            long debut = System.nanoTime();
+            try {
+                futur.complete(chargement.get());
+                System.out.println("Démarrage : " + nom + " prêt en " + (System.nanoTime() - debut) / 1_000_000
+                        + " ms (" + depuisLancementMs() + " ms depuis le lancement de la JVM).");
+                signalerSiPret();
+            } catch (RuntimeException | Error e) {
+                System.err.println("Démarrage : échec du chargement de " + nom + " : " + e.getMessage());
+                futur.completeExceptionally(e);
+            }
+        });
+        return futur;
+    }
+
+    /** Attend le résultat d'un composant ; l'erreur de chargement est relancée telle quelle. */
+    public static <T> T attendre(CompletableFuture<T> composant) {
+        try {
+            return composant.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    /** Tous les composants démarrés sont chargés (vrai s'il n'y en a aucun). */
+    public static synchronized boolean pret() {
+        for (CompletableFuture<?> composant : COMPOSANTS.values()) {
+            if (!composant.isDone() || composant.isCompletedExceptionally()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** État de chaque composant, ex : "modele-embedding=pret index-rag.pdf=en-cours". */
+    public static synchronized String etat() {
+        StringBuilder etat = new StringBuilder();
+        for (Map.Entry<String, CompletableFuture<?>> composant : COMPOSANTS.entrySet()) {
+            CompletableFuture<?> futur = composant.getValue();
+            etat.append(etat.isEmpty() ? "" : " ").append(composant.getKey()).append('=')
+                    .append(!futur.isDone() ? "en-cours" : futur.isCompletedExceptionally() ? "echec" : "pret");
+        }
+        return etat.toString();
+    }
+
+    public static long depuisLancementMs() {
+        return System.currentTimeMillis() - LANCEMENT_JVM_MS;
+    }
+
+    private static void signalerSiPret() {
+        synchronized (Disponibilite.class) {
+            if (signale || !pret()) {
+                return;
+            }
+            signale = true;
+        }
+        System.out.println("Application prête en " + depuisLancementMs() + " ms depuis le lancement de la JVM.");
+        String fichier = Configuration.valeur("tp4.pret.fichier");
+        if (fichier != null) {
+            try {
+                Files.writeString(Path.of(fichier), "pret " + depuisLancementMs() + " ms\n");
+            } catch (IOException e) {
+                System.err.println("Impossible d'écrire le fichier de disponibilité " + fichier + " : " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * EmbeddingModel chargé en arrière-plan (démarrage rapide) : la création du modèle (runtime ONNX, poids
+ * de all-MiniLM-L6-v2) et un premier embedding d'échauffement se font sur un thread virtuel, pendant
+ * que le main continue (ChatModel, index, serveur). Les appels attendent la fin du chargement.
+ */
+public class EmbeddingModelDiffere implements EmbeddingModel {
+
+    private static final String ECHAUFFEMENT = "Qu'est-ce que le RAG ?";
+
+    private final CompletableFuture<EmbeddingModel> embeddingModel;
+
+    public EmbeddingModelDiffere(Supplier<EmbeddingModel> creation) {
+        this.embeddingModel = Disponibilite.charger("modele-embedding", () -> {
+            EmbeddingModel modele = creation.get();
+            modele.embed(ECHAUFFEMENT); // première inférence : initialisation de la session ONNX
+            return modele;
+        });
+    }
+
+    @Override
+    public Response<Embedding> embed(String text) {
+        return modele().embed(text);
+    }
+
+    @Override
+    public Response<Embedding> embed(TextSegment textSegment) {
+        return modele().embed(textSegment);
+    }
+
+    @Override
+    public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+        return modele().embedAll(textSegments);
+    }
+
+    @Override
+    public int dimension() {
+        return modele().dimension();
+    }
+
+    private EmbeddingModel modele() {
+        return Disponibilite.attendre(embeddingModel);
+    }
+}
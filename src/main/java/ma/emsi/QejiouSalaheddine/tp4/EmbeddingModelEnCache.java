@@ -0,0 +1,212 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Couche d'embedding des questions devant un EmbeddingModel (ex : AllMiniLmL6V2EmbeddingModel).
+ * <ul>
+ *     <li>cache LRU des embeddings de questions, clé = texte normalisé : une question routée vers plusieurs
+ *         retrievers (ou reposée plus tard) n'est calculée qu'une fois ;</li>
+ *     <li>une question déjà en cours de calcul n'est pas recalculée : les appelants partagent le même résultat ;</li>
+ *     <li>micro-lots : les questions qui arrivent en même temps (serveur, routage parallèle) sont regroupées
+ *         pendant une courte fenêtre en un seul appel embedAll, donc une seule inférence ONNX.</li>
+ * </ul>
+ * Les embedAll (ingestion des documents) passent directement au modèle : ils sont déjà en lot.
+ */
+public class EmbeddingModelEnCache implements EmbeddingModel {
+
+    private record Demande(String cle, TextSegment segment, CompletableFuture<Embedding> resultat) {
+    }
+
+    private final EmbeddingModel embeddingModel;
+    private final Map<String, Embedding> entrees;
+    private final Map<String, CompletableFuture<Embedding>> enCours = new ConcurrentHashMap<>();
+    private final BlockingQueue<Demande> file = new LinkedBlockingQueue<>();
+    private final long fenetreNanos;
+    private final int tailleLotMax;
+
+    private final AtomicLong succes = new AtomicLong();
+    private final AtomicLong echecs = new AtomicLong();
+    private final AtomicLong lots = new AtomicLong();
+    private final AtomicLong questionsEnLot = new AtomicLong();
+
+    /**
+     * @param tailleMax    nombre maximal d'embeddings de questions gardés en cache
+     * @param fenetre      attente maximale pour compléter un lot après la première question
+     * @param tailleLotMax nombre maximal de questions dans un lot
+     * @param travailleurs nombre de lots calculés en parallèle
+     */
+    public EmbeddingModelEnCache(EmbeddingModel embeddingModel, int tailleMax, Duration fenetre,
+                                 int tailleLotMax, int travailleurs) {
+        this.embeddingModel = embeddingModel;
+        this.fenetreNanos = fenetre.toNanos();
+        this.tailleLotMax = tailleLotMax;
+        // LinkedHashMap en ordre d'accès : l'entrée la moins récemment utilisée est évincée en premier
+        this.entrees = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Embedding> eldest) {
+                return size() > tailleMax;
+            }
+        };
+        for (int i = 0; i < travailleurs; i++) {
+            Thread.ofVirtual().name("embeddings-questions-" + i).start(this::traiterLots);
+        }
+    }
+
+    /** Paramètres tp4.embedding.cache (1000), tp4.embedding.lot.fenetre.ms (1), tp4.embedding.lot.max (32). */
+    public static EmbeddingModelEnCache depuisConfiguration(EmbeddingModel embeddingModel) {
+        return new EmbeddingModelEnCache(embeddingModel,
+                (int) Configuration.entier("tp4.embedding.cache", 1_000),
+                Configuration.millisecondes("tp4.embedding.lot.fenetre.ms", 1),
+                (int) Configuration.entier("tp4.embedding.lot.max", 32),
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    @Override
+    public Response<Embedding> embed(String text) {
+        return embed(TextSegment.from(text));
+    }
+
+    @Override
+    public Response<Embedding> embed(TextSegment textSegment) {
+        String cle = normaliser(textSegment.text());
+        synchronized (entrees) {
+            Embedding embedding = entrees.get(cle);
+            if (embedding != null) {
+                succes.incrementAndGet();
+                return Response.from(embedding);
+            }
+        }
+        echecs.incrementAndGet();
+
+        // Une seule demande par texte en cours de calcul ; les appelants suivants attendent la même
+        CompletableFuture<Embedding> nouveau = new CompletableFuture<>();
+        CompletableFuture<Embedding> resultat = enCours.putIfAbsent(cle, nouveau);
+        if (resultat == null) {
+            resultat = nouveau;
+            file.add(new Demande(cle, textSegment, nouveau));
+        }
+        try {
+            return Response.from(resultat.join());
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof Error erreur) {
+                throw erreur;
+            }
+            throw e;
+        }
+    }
+
+    /** Lot de segments (ingestion) : pas de cache, appel direct au modèle. */
+    @Override
+    public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+        return embeddingModel.embedAll(textSegments);
+    }
+
+    @Override
+    public int dimension() {
+        return embeddingModel.dimension();
+    }
+
+    private void traiterLots() {
+        List<Demande> lot = new ArrayList<>(tailleLotMax);
+        while (true) {
+            try {
+                lot.add(file.take());
+                // Compléter le lot avec les questions déjà en attente, puis pendant la fenêtre
+                file.drainTo(lot, tailleLotMax - lot.size());
+                long limite = System.nanoTime() + fenetreNanos;
+                while (lot.size() < tailleLotMax) {
+                    Demande suivante = file.poll(limite - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (suivante == null) {
+                        break;
+                    }
+                    lot.add(suivante);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            calculer(lot);
+            lot.clear();
+        }
+    }
+
+    private void calculer(List<Demande> lot) {
+        List<TextSegment> segments = new ArrayList<>(lot.size());
+        for (Demande demande : lot) {
+            segments.add(demande.segment());
+        }
+        try {
+            List<Embedding> embeddings = embeddingModel.embedAll(segments).content();
+            if (embeddings == null || embeddings.size() != lot.size()) {
+                throw new IllegalStateException("Le modèle a renvoyé " + (embeddings == null ? 0 : embeddings.size())
+                        + " embeddings pour " + lot.size() + " questions.");
+            }
+            lots.incrementAndGet();
+            questionsEnLot.addAndGet(lot.size());
+            synchronized (entrees) {
+                for (int i = 0; i < lot.size(); i++) {
+                    entrees.put(lot.get(i).cle(), embeddings.get(i));
+                }
+            }
+            for (int i = 0; i < lot.size(); i++) {
+                Demande demande = lot.get(i);
+                enCours.remove(demande.cle());
+                demande.resultat().complete(embeddings.get(i));
+            }
+        } catch (Throwable e) {
+            // Toute erreur (y compris une Error levée par le modèle) est transmise aux appelants en attente :
+            // le thread de lots continue, et les clés sont libérées pour qu'une nouvelle demande relance le calcul
+            for (Demande demande : lot) {
+                enCours.remove(demande.cle());
+                demande.resultat().completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Espaces réduits et minuscules : all-MiniLM-L6-v2 est un modèle "uncased",
+     * la casse ne change donc pas l'embedding.
+     */
+    static String normaliser(String texte) {
+        return texte.strip().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    public long succes() {
+        return succes.get();
+    }
+
+    public long echecs() {
+        return echecs.get();
+    }
+
+    public double tauxSucces() {
+        long total = succes.get() + echecs.get();
+        return total == 0 ? 0 : (double) succes.get() / total;
+    }
+
+    /** Nombre moyen de questions par appel au modèle (1 sans concurrence). */
+    public double tailleMoyenneLot() {
+        long nombre = lots.get();
+        return nombre == 0 ? 0 : (double) questionsEnLot.get() / nombre;
+    }
+}
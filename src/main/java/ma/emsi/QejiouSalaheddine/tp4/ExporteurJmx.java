@@ -0,0 +1,155 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Exporte un MBean par étape (ma.emsi.tp4:type=Metriques,etape=...), par distribution
+ * (ma.emsi.tp4:type=Metriques,distribution=...) et par compteur (ma.emsi.tp4:type=Metriques,compteur=...),
+ * lisibles avec JConsole ou VisualVM.
+ */
+public class ExporteurJmx implements ExporteurMetriques {
+
+    /** Attributs JMX d'une étape (latences en millisecondes). */
+    public interface EtapeMBean {
+        long getNombre();
+
+        long getErreurs();
+
+        double getMoyenneMs();
+
+        double getP50Ms();
+
+        double getP90Ms();
+
+        double getP99Ms();
+
+        double getP999Ms();
+
+        double getMaxMs();
+    }
+
+    private record EtapeJmx(Metriques.Etape etape) implements EtapeMBean {
+        public long getNombre() {
+            return Metriques.statistiques(etape).nombre();
+        }
+
+        public long getErreurs() {
+            return Metriques.statistiques(etape).erreurs();
+        }
+
+        public double getMoyenneMs() {
+            return Metriques.statistiques(etape).moyenneMs();
+        }
+
+        public double getP50Ms() {
+            return Metriques.statistiques(etape).p50Ms();
+        }
+
+        public double getP90Ms() {
+            return Metriques.statistiques(etape).p90Ms();
+        }
+
+        public double getP99Ms() {
+            return Metriques.statistiques(etape).p99Ms();
+        }
+
+        public double getP999Ms() {
+            return Metriques.statistiques(etape).p999Ms();
+        }
+
+        public double getMaxMs() {
+            return Metriques.statistiques(etape).maxMs();
+        }
+    }
+
+    /** Attributs JMX d'une distribution (valeurs brutes : caractères, ou millièmes pour les scores). */
+    public interface DistributionMBean {
+        long getNombre();
+
+        double getMoyenne();
+
+        long getP50();
+
+        long getP90();
+
+        long getP99();
+
+        long getMax();
+    }
+
+    private record DistributionJmx(Metriques.Distribution distribution) implements DistributionMBean {
+        public long getNombre() {
+            return Metriques.distribution(distribution).getTotalCount();
+        }
+
+        public double getMoyenne() {
+            return Metriques.distribution(distribution).getMean();
+        }
+
+        public long getP50() {
+            return Metriques.distribution(distribution).getValueAtPercentile(50);
+        }
+
+        public long getP90() {
+            return Metriques.distribution(distribution).getValueAtPercentile(90);
+        }
+
+        public long getP99() {
+            return Metriques.distribution(distribution).getValueAtPercentile(99);
+        }
+
+        public long getMax() {
+            return Metriques.distribution(distribution).getMaxValue();
+        }
+    }
+
+    /** Attribut JMX d'un compteur. */
+    public interface CompteurMBean {
+        long getValeur();
+    }
+
+    private record CompteurJmx(Metriques.Compteur compteur) implements CompteurMBean {
+        public long getValeur() {
+            return Metriques.compteur(compteur);
+        }
+    }
+
+    @Override
+    public void exporter() {
+        MBeanServer serveur = ManagementFactory.getPlatformMBeanServer();
+        for (Metriques.Etape etape : Metriques.Etape.values()) {
+            try {
+                ObjectName nom = new ObjectName("ma.emsi.tp4:type=Metriques,etape=" + etape.nom());
+                if (!serveur.isRegistered(nom)) {
+                    serveur.registerMBean(new StandardMBean(new EtapeJmx(etape), EtapeMBean.class), nom);
+                }
+            } catch (JMException e) {
+                System.err.println("Impossible d'exporter les métriques de " + etape.nom() + " : " + e.getMessage());
+            }
+        }
+        for (Metriques.Distribution distribution : Metriques.Distribution.values()) {
+            try {
+                ObjectName nom = new ObjectName("ma.emsi.tp4:type=Metriques,distribution=" + distribution.nom());
+                if (!serveur.isRegistered(nom)) {
+                    serveur.registerMBean(new StandardMBean(new DistributionJmx(distribution), DistributionMBean.class), nom);
+                }
+            } catch (JMException e) {
+                System.err.println("Impossible d'exporter la distribution " + distribution.nom() + " : " + e.getMessage());
+            }
+        }
+        for (Metriques.Compteur compteur : Metriques.Compteur.values()) {
+            try {
+                ObjectName nom = new ObjectName("ma.emsi.tp4:type=Metriques,compteur=" + compteur.nom());
+                if (!serveur.isRegistered(nom)) {
+                    serveur.registerMBean(new StandardMBean(new CompteurJmx(compteur), CompteurMBean.class), nom);
+                }
+            } catch (JMException e) {
+                System.err.println("Impossible d'exporter le compteur " + compteur.nom() + " : " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+/**
+ * Publication des {@link Metriques} vers un système de supervision (JMX, Micrometer, ...).
+ * Les valeurs sont lues dans Metriques au moment où le système les demande.
+ */
+public interface ExporteurMetriques {
+
+    void exporter();
+}
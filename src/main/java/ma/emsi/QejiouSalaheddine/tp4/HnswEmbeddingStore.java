@@ -0,0 +1,563 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.RelevanceScore;
+import dev.langchain4j.store.embedding.filter.Filter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * EmbeddingStore approximatif basé sur un graphe HNSW (Hierarchical Navigable Small World),
+ * utilisable à la place d'InMemoryEmbeddingStore dans EmbeddingStoreContentRetriever.builder().
+ * Une recherche parcourt O(log n) nœuds au lieu de comparer la requête à tous les vecteurs.
+ * <ul>
+ *     <li>m : nombre de voisins par nœud (2 * m au niveau 0) ;</li>
+ *     <li>efConstruction : largeur de la recherche lors des insertions (qualité du graphe) ;</li>
+ *     <li>efSearch : largeur de la recherche lors des requêtes (compromis rappel / latence).</li>
+ * </ul>
+ * Les insertions sont incrémentales ; les suppressions marquent les nœuds sans les retirer du graphe.
+ * Les nœuds marqués restent parcourus par les recherches : quand ils forment un quart du graphe,
+ * celui-ci est reconstruit avec les seuls nœuds vivants (sous le verrou d'écriture).
+ * Le graphe peut être sauvegardé sur disque puis rechargé sans reconstruction.
+ */
+public class HnswEmbeddingStore implements EmbeddingStore<TextSegment> {
+
+    private static final int MAGIC = 0x54503448; // "TP4H"
+    private static final ProduitScalaire PRODUIT = ProduitScalaire.meilleur();
+    private static final double TAUX_RECONSTRUCTION = 0.25;
+
+    private final int m;
+    private final int efConstruction;
+    private volatile int efSearch;
+    private final double mL;
+    private final Random random;
+
+    private final List<Noeud> noeuds = new ArrayList<>();
+    private final Map<String, Integer> indexParId = new HashMap<>();
+    private int pointEntree = -1;
+    private int niveauMax = -1;
+    private int supprimes;
+
+    private final ReadWriteLock verrou = new ReentrantReadWriteLock();
+
+    private static final class Noeud {
+        final String id;
+        final float[] vecteur; // normalisé : produit scalaire = similarité cosinus
+        final TextSegment segment;
+        final int[][] voisins; // un tableau de voisins par niveau
+        boolean supprime;
+
+        Noeud(String id, float[] vecteur, TextSegment segment, int niveau) {
+            this.id = id;
+            this.vecteur = vecteur;
+            this.segment = segment;
+            this.voisins = new int[niveau + 1][];
+            for (int l = 0; l <= niveau; l++) {
+                voisins[l] = new int[0];
+            }
+        }
+
+        int niveau() {
+            return voisins.length - 1;
+        }
+    }
+
+    private record Candidat(int noeud, float distance) {
+    }
+
+    private static final Comparator<Candidat> PLUS_PROCHE = Comparator.comparingDouble(Candidat::distance);
+
+    private HnswEmbeddingStore(Builder builder) {
+        this.m = builder.m;
+        this.efConstruction = builder.efConstruction;
+        this.efSearch = builder.efSearch;
+        this.mL = 1.0 / Math.log(m);
+        this.random = new Random(builder.graine);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /** efSearch peut être ajusté à chaud pour régler le rappel. */
+    public void efSearch(int efSearch) {
+        this.efSearch = efSearch;
+    }
+
+    public int taille() {
+        verrou.readLock().lock();
+        try {
+            return noeuds.size() - supprimes;
+        } finally {
+            verrou.readLock().unlock();
+        }
+    }
+
+    // --- Ajouts ---
+
+    @Override
+    public String add(Embedding embedding) {
+        String id = UUID.randomUUID().toString();
+        add(id, embedding);
+        return id;
+    }
+
+    @Override
+    public void add(String id, Embedding embedding) {
+        inserer(id, embedding, null);
+    }
+
+    @Override
+    public String add(Embedding embedding, TextSegment textSegment) {
+        String id = UUID.randomUUID().toString();
+        inserer(id, embedding, textSegment);
+        return id;
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings) {
+        List<String> ids = new ArrayList<>(embeddings.size());
+        for (Embedding embedding : embeddings) {
+            ids.add(add(embedding));
+        }
+        return ids;
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings, List<TextSegment> textSegments) {
+        if (embeddings.size() != textSegments.size()) {
+            throw new IllegalArgumentException("Le nombre d'embeddings et de segments doit être identique");
+        }
+        List<String> ids = new ArrayList<>(embeddings.size());
+        for (int i = 0; i < embeddings.size(); i++) {
+            ids.add(add(embeddings.get(i), textSegments.get(i)));
+        }
+        return ids;
+    }
+
+    private void inserer(String id, Embedding embedding, TextSegment segment) {
+        float[] vecteur = normaliser(embedding.vector());
+        verrou.writeLock().lock();
+        try {
+            Integer existant = indexParId.get(id);
+            if (existant != null && !noeuds.get(existant).supprime) {
+                noeuds.get(existant).supprime = true;
+                supprimes++;
+            }
+            relier(id, vecteur, segment);
+            reconstruireSiNecessaire();
+        } finally {
+            verrou.writeLock().unlock();
+        }
+    }
+
+    /** Sous le verrou d'écriture : ajoute un nœud (vecteur déjà normalisé) et le connecte au graphe. */
+    private void relier(String id, float[] vecteur, TextSegment segment) {
+        int niveau = (int) Math.floor(-Math.log(1.0 - random.nextDouble()) * mL);
+        int nouveau = noeuds.size();
+        noeuds.add(new Noeud(id, vecteur, segment, niveau));
+        indexParId.put(id, nouveau);
+
+        if (pointEntree < 0) {
+            pointEntree = nouveau;
+            niveauMax = niveau;
+            return;
+        }
+
+        // Descente gloutonne dans les niveaux supérieurs au niveau du nouveau nœud
+        int entree = pointEntree;
+        for (int l = niveauMax; l > niveau; l--) {
+            entree = rechercherNiveau(vecteur, List.of(entree), 1, l).get(0).noeud();
+        }
+
+        // Connexion du nœud à chaque niveau où il apparaît
+        List<Integer> entrees = List.of(entree);
+        for (int l = Math.min(niveau, niveauMax); l >= 0; l--) {
+            List<Candidat> candidats = rechercherNiveau(vecteur, entrees, efConstruction, l);
+            int[] voisins = selectionnerVoisins(candidats, m);
+            noeuds.get(nouveau).voisins[l] = voisins;
+            for (int voisin : voisins) {
+                connecter(voisin, nouveau, l);
+            }
+            entrees = candidats.stream().map(Candidat::noeud).toList();
+        }
+
+        if (niveau > niveauMax) {
+            pointEntree = nouveau;
+            niveauMax = niveau;
+        }
+    }
+
+    /** Ajoute le lien voisin → nouveau, en élaguant la liste du voisin si elle dépasse sa capacité. */
+    private void connecter(int voisin, int nouveau, int niveau) {
+        Noeud noeud = noeuds.get(voisin);
+        int[] liens = noeud.voisins[niveau];
+        int capacite = niveau == 0 ? 2 * m : m;
+        int[] etendus = new int[liens.length + 1];
+        System.arraycopy(liens, 0, etendus, 0, liens.length);
+        etendus[liens.length] = nouveau;
+        if (etendus.length <= capacite) {
+            noeud.voisins[niveau] = etendus;
+            return;
+        }
+        List<Candidat> candidats = new ArrayList<>(etendus.length);
+        for (int lien : etendus) {
+            candidats.add(new Candidat(lien, distance(noeud.vecteur, noeuds.get(lien).vecteur)));
+        }
+        candidats.sort(PLUS_PROCHE);
+        noeud.voisins[niveau] = selectionnerVoisins(candidats, capacite);
+    }
+
+    /**
+     * Heuristique de sélection des voisins (algorithme 4 de l'article HNSW) : un candidat est gardé
+     * s'il est plus proche du nœud que de tous les voisins déjà gardés, ce qui préserve des liens
+     * vers des régions différentes. Les places restantes sont complétées avec les plus proches écartés.
+     */
+    private int[] selectionnerVoisins(List<Candidat> candidatsTries, int nombre) {
+        List<Candidat> gardes = new ArrayList<>(nombre);
+        List<Candidat> ecartes = new ArrayList<>();
+        for (Candidat candidat : candidatsTries) {
+            if (gardes.size() >= nombre) {
+                break;
+            }
+            float[] vecteur = noeuds.get(candidat.noeud()).vecteur;
+            boolean diversifie = true;
+            for (Candidat garde : gardes) {
+                if (distance(vecteur, noeuds.get(garde.noeud()).vecteur) < candidat.distance()) {
+                    diversifie = false;
+                    break;
+                }
+            }
+            if (diversifie) {
+                gardes.add(candidat);
+            } else {
+                ecartes.add(candidat);
+            }
+        }
+        for (int i = 0; i < ecartes.size() && gardes.size() < nombre; i++) {
+            gardes.add(ecartes.get(i));
+        }
+        return gardes.stream().mapToInt(Candidat::noeud).toArray();
+    }
+
+    // --- Recherche ---
+
+    @Override
+    public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+        float[] requete = normaliser(request.queryEmbedding().vector());
+        Filter filtre = request.filter();
+        verrou.readLock().lock();
+        try {
+            if (pointEntree < 0) {
+                return new EmbeddingSearchResult<>(List.of());
+            }
+            int entree = pointEntree;
+            for (int l = niveauMax; l > 0; l--) {
+                entree = rechercherNiveau(requete, List.of(entree), 1, l).get(0).noeud();
+            }
+            // Avec un filtre, une partie des candidats sera écartée : on élargit la recherche
+            int ef = Math.max(efSearch, request.maxResults()) * (filtre == null ? 1 : 4);
+            List<Candidat> candidats = rechercherNiveau(requete, List.of(entree), ef, 0);
+
+            List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(request.maxResults());
+            for (Candidat candidat : candidats) {
+                if (matches.size() >= request.maxResults()) {
+                    break;
+                }
+                Noeud noeud = noeuds.get(candidat.noeud());
+                double score = RelevanceScore.fromCosineSimilarity(1.0 - candidat.distance());
+                if (noeud.supprime || score < request.minScore()) {
+                    continue;
+                }
+                if (filtre != null && (noeud.segment == null || !filtre.test(noeud.segment.metadata()))) {
+                    continue;
+                }
+                matches.add(new EmbeddingMatch<>(score, noeud.id, Embedding.from(noeud.vecteur), noeud.segment));
+            }
+            return new EmbeddingSearchResult<>(matches);
+        } finally {
+            verrou.readLock().unlock();
+        }
+    }
+
+    /**
+     * Recherche gloutonne en largeur ef dans un niveau du graphe (algorithme 2 de l'article HNSW).
+     * Retourne les ef nœuds les plus proches trouvés, triés par distance croissante.
+     */
+    private List<Candidat> rechercherNiveau(float[] requete, List<Integer> entrees, int ef, int niveau) {
+        BitSet visites = new BitSet(noeuds.size());
+        PriorityQueue<Candidat> aExplorer = new PriorityQueue<>(PLUS_PROCHE);
+        PriorityQueue<Candidat> resultats = new PriorityQueue<>(PLUS_PROCHE.reversed());
+        for (int entree : entrees) {
+            visites.set(entree);
+            Candidat candidat = new Candidat(entree, distance(requete, noeuds.get(entree).vecteur));
+            aExplorer.add(candidat);
+            resultats.add(candidat);
+            if (resultats.size() > ef) {
+                resultats.poll();
+            }
+        }
+        while (!aExplorer.isEmpty()) {
+            Candidat courant = aExplorer.poll();
+            if (courant.distance() > resultats.peek().distance() && resultats.size() >= ef) {
+                break;
+            }
+            for (int voisin : noeuds.get(courant.noeud()).voisins[niveau]) {
+                if (visites.get(voisin)) {
+                    continue;
+                }
+                visites.set(voisin);
+                float d = distance(requete, noeuds.get(voisin).vecteur);
+                if (resultats.size() < ef || d < resultats.peek().distance()) {
+                    Candidat candidat = new Candidat(voisin, d);
+                    aExplorer.add(candidat);
+                    resultats.add(candidat);
+                    if (resultats.size() > ef) {
+                        resultats.poll();
+                    }
+                }
+            }
+        }
+        List<Candidat> tries = new ArrayList<>(resultats);
+        tries.sort(PLUS_PROCHE);
+        return tries;
+    }
+
+    // --- Suppressions ---
+
+    @Override
+    public void remove(String id) {
+        removeAll(List.of(id));
+    }
+
+    @Override
+    public void removeAll(Collection<String> ids) {
+        verrou.writeLock().lock();
+        try {
+            for (String id : ids) {
+                Integer index = indexParId.remove(id);
+                if (index != null && !noeuds.get(index).supprime) {
+                    noeuds.get(index).supprime = true;
+                    supprimes++;
+                }
+            }
+            reconstruireSiNecessaire();
+        } finally {
+            verrou.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeAll(Filter filter) {
+        verrou.writeLock().lock();
+        try {
+            for (Noeud noeud : noeuds) {
+                if (!noeud.supprime && noeud.segment != null && filter.test(noeud.segment.metadata())) {
+                    noeud.supprime = true;
+                    indexParId.remove(noeud.id);
+                    supprimes++;
+                }
+            }
+            reconstruireSiNecessaire();
+        } finally {
+            verrou.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeAll() {
+        verrou.writeLock().lock();
+        try {
+            noeuds.clear();
+            indexParId.clear();
+            pointEntree = -1;
+            niveauMax = -1;
+            supprimes = 0;
+        } finally {
+            verrou.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sous le verrou d'écriture : quand les nœuds supprimés atteignent TAUX_RECONSTRUCTION du graphe,
+     * le graphe est reconstruit en réinsérant les nœuds vivants (les liens vers les nœuds supprimés disparaissent).
+     */
+    private void reconstruireSiNecessaire() {
+        if (supprimes == 0 || supprimes < TAUX_RECONSTRUCTION * noeuds.size()) {
+            return;
+        }
+        List<Noeud> vivants = noeuds.stream().filter(noeud -> !noeud.supprime).toList();
+        noeuds.clear();
+        indexParId.clear();
+        pointEntree = -1;
+        niveauMax = -1;
+        supprimes = 0;
+        for (Noeud noeud : vivants) {
+            relier(noeud.id, noeud.vecteur, noeud.segment);
+        }
+    }
+
+    // --- Sérialisation ---
+
+    /**
+     * Sauvegarde le graphe (paramètres, vecteurs, segments et liens) dans un fichier.
+     */
+    public void sauvegarder(Path fichier) throws IOException {
+        Path temporaire = fichier.resolveSibling(fichier.getFileName() + ".tmp");
+        verrou.readLock().lock();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaire)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(efSearch);
+            out.writeInt(pointEntree);
+            out.writeInt(niveauMax);
+            out.writeInt(noeuds.size());
+            for (Noeud noeud : noeuds) {
+                IndexPersistant.ecrireChaine(out, noeud.id);
+                out.writeBoolean(noeud.supprime);
+                out.writeInt(noeud.vecteur.length);
+                for (float composante : noeud.vecteur) {
+                    out.writeFloat(composante);
+                }
+                out.writeBoolean(noeud.segment != null);
+                if (noeud.segment != null) {
+                    IndexPersistant.ecrireSegment(out, noeud.segment);
+                }
+                out.writeInt(noeud.niveau());
+                for (int[] liens : noeud.voisins) {
+                    out.writeInt(liens.length);
+                    for (int lien : liens) {
+                        out.writeInt(lien);
+                    }
+                }
+            }
+        } finally {
+            verrou.readLock().unlock();
+        }
+        Files.move(temporaire, fichier, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Recharge un graphe sauvegardé par {@link #sauvegarder(Path)}.
+     */
+    public static HnswEmbeddingStore charger(Path fichier) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(fichier)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("format inconnu");
+            }
+            HnswEmbeddingStore store = HnswEmbeddingStore.builder()
+                    .m(in.readInt())
+                    .efConstruction(in.readInt())
+                    .efSearch(in.readInt())
+                    .build();
+            store.pointEntree = in.readInt();
+            store.niveauMax = in.readInt();
+            int nombre = in.readInt();
+            for (int i = 0; i < nombre; i++) {
+                String id = IndexPersistant.lireChaine(in);
+                boolean supprime = in.readBoolean();
+                float[] vecteur = new float[in.readInt()];
+                for (int j = 0; j < vecteur.length; j++) {
+                    vecteur[j] = in.readFloat();
+                }
+                TextSegment segment = in.readBoolean() ? IndexPersistant.lireSegment(in) : null;
+                Noeud noeud = new Noeud(id, vecteur, segment, in.readInt());
+                for (int l = 0; l < noeud.voisins.length; l++) {
+                    int[] liens = new int[in.readInt()];
+                    for (int j = 0; j < liens.length; j++) {
+                        liens[j] = in.readInt();
+                    }
+                    noeud.voisins[l] = liens;
+                }
+                noeud.supprime = supprime;
+                store.noeuds.add(noeud);
+                if (supprime) {
+                    store.supprimes++;
+                } else {
+                    store.indexParId.put(id, i);
+                }
+            }
+            return store;
+        }
+    }
+
+    // --- Calculs vectoriels ---
+
+    private static float distance(float[] a, float[] b) {
+        return 1 - PRODUIT.produit(a, b, 0, a.length);
+    }
+
+    private static float[] normaliser(float[] vecteur) {
+        double norme = 0;
+        for (float composante : vecteur) {
+            norme += composante * composante;
+        }
+        norme = Math.sqrt(norme);
+        float[] normalise = new float[vecteur.length];
+        for (int i = 0; i < vecteur.length; i++) {
+            normalise[i] = norme == 0 ? 0 : (float) (vecteur[i] / norme);
+        }
+        return normalise;
+    }
+
+    public static class Builder {
+
+        private int m = 16;
+        private int efConstruction = 200;
+        private int efSearch = 50;
+        private long graine = 42;
+
+        public Builder m(int m) {
+            this.m = m;
+            return this;
+        }
+
+        public Builder efConstruction(int efConstruction) {
+            this.efConstruction = efConstruction;
+            return this;
+        }
+
+        public Builder efSearch(int efSearch) {
+            this.efSearch = efSearch;
+            return this;
+        }
+
+        /** Graine du tirage des niveaux, pour obtenir un graphe reproductible. */
+        public Builder graine(long graine) {
+            this.graine = graine;
+            return this;
+        }
+
+        public HnswEmbeddingStore build() {
+            if (m < 2 || efConstruction < 1 || efSearch < 1) {
+                throw new IllegalArgumentException("Paramètres HNSW invalides : m >= 2, efConstruction >= 1, efSearch >= 1");
+            }
+            return new HnswEmbeddingStore(this);
+        }
+    }
+}
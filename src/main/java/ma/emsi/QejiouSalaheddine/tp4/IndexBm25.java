@@ -0,0 +1,189 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.segment.TextSegment;
+
+import java.io.ByteArrayOutputStream;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Index lexical (BM25) sur les mêmes TextSegment que l'index vectoriel, pour retrouver les termes exacts
+ * (noms de recettes, codes, sigles) que la similarité dense rate souvent.
+ * <ul>
+ *     <li>analyseur français / anglais : minuscules, sans accents, mots vides retirés, pluriels en -s / -x
+ *         ramenés au singulier (les termes contenant des chiffres sont gardés tels quels) ;</li>
+ *     <li>listes de postings compactes : pour chaque terme, suite (écart de numéro de segment, fréquence)
+ *         codée en entiers de longueur variable dans un seul byte[].</li>
+ * </ul>
+ * L'index est immuable : il est reconstruit à partir des segments à chaque chargement (quelques ms).
+ */
+public class IndexBm25 {
+
+    /** Un segment trouvé et son score BM25. */
+    public record Resultat(TextSegment segment, double score) {
+    }
+
+    private record Postings(byte[] donnees, int frequenceDocuments) {
+    }
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private static final Set<String> MOTS_VIDES = Set.of(
+            // français
+            "a", "au", "aux", "avec", "ce", "ces", "cette", "d", "dans", "de", "des", "du", "elle", "en", "est",
+            "et", "il", "ils", "je", "l", "la", "le", "les", "leur", "lui", "mais", "me", "mes", "ne", "nous", "on",
+            "ou", "par", "pas", "pour", "qu", "que", "qui", "s", "sa", "se", "ses", "son", "sont", "sur", "t", "ta",
+            "te", "tu", "un", "une", "vos", "votre", "vous", "y", "comment", "quel", "quelle", "quels", "quelles",
+            // anglais
+            "an", "and", "are", "as", "at", "be", "by", "for", "from", "how", "in", "is", "it", "of", "or",
+            "the", "this", "to", "was", "what", "which", "with");
+
+    private final List<TextSegment> segments;
+    private final int[] longueurs;
+    private final double longueurMoyenne;
+    private final Map<String, Postings> postings;
+
+    private IndexBm25(List<TextSegment> segments, int[] longueurs, Map<String, Postings> postings) {
+        this.segments = segments;
+        this.longueurs = longueurs;
+        this.postings = postings;
+        long total = 0;
+        for (int longueur : longueurs) {
+            total += longueur;
+        }
+        this.longueurMoyenne = longueurs.length == 0 ? 0 : (double) total / longueurs.length;
+    }
+
+    /** Construit l'index des segments (dans l'ordre : le numéro d'un segment est sa position). */
+    public static IndexBm25 construire(List<TextSegment> segments) {
+        Map<String, ByteArrayOutputStream> flux = new HashMap<>();
+        Map<String, int[]> dernierEtNombre = new HashMap<>(); // terme -> {dernier segment, nombre de segments}
+        int[] longueurs = new int[segments.size()];
+
+        for (int numero = 0; numero < segments.size(); numero++) {
+            List<String> termes = analyser(segments.get(numero).text());
+            longueurs[numero] = termes.size();
+            Map<String, Integer> frequences = new HashMap<>();
+            for (String terme : termes) {
+                frequences.merge(terme, 1, Integer::sum);
+            }
+            for (Map.Entry<String, Integer> entree : frequences.entrySet()) {
+                int[] etat = dernierEtNombre.computeIfAbsent(entree.getKey(), t -> new int[]{0, 0});
+                ByteArrayOutputStream sortie = flux.computeIfAbsent(entree.getKey(), t -> new ByteArrayOutputStream());
+                ecrireVarInt(sortie, numero - etat[0]);
+                ecrireVarInt(sortie, entree.getValue());
+                etat[0] = numero;
+                etat[1]++;
+            }
+        }
+
+        Map<String, Postings> postings = new HashMap<>(flux.size() * 2);
+        flux.forEach((terme, sortie) -> postings.put(terme, new Postings(sortie.toByteArray(), dernierEtNombre.get(terme)[1])));
+        return new IndexBm25(List.copyOf(segments), longueurs, postings);
+    }
+
+    /** Les n segments de meilleur score BM25 pour la requête (score > 0), du meilleur au moins bon. */
+    public List<Resultat> rechercher(String requete, int n) {
+        double[] scores = new double[segments.size()];
+        int nombreSegments = segments.size();
+        for (String terme : new LinkedHashSet<>(analyser(requete))) {
+            Postings liste = postings.get(terme);
+            if (liste == null) {
+                continue;
+            }
+            double idf = Math.log(1 + (nombreSegments - liste.frequenceDocuments() + 0.5) / (liste.frequenceDocuments() + 0.5));
+            byte[] donnees = liste.donnees();
+            int[] position = {0};
+            int numero = 0;
+            while (position[0] < donnees.length) {
+                numero += lireVarInt(donnees, position);
+                int frequence = lireVarInt(donnees, position);
+                double normalisation = K1 * (1 - B + B * longueurs[numero] / longueurMoyenne);
+                scores[numero] += idf * frequence * (K1 + 1) / (frequence + normalisation);
+            }
+        }
+
+        // Top-n avec un tas minimum de taille n
+        PriorityQueue<Integer> tas = new PriorityQueue<>(n + 1, (a, b) -> Double.compare(scores[a], scores[b]));
+        for (int numero = 0; numero < scores.length; numero++) {
+            if (scores[numero] > 0) {
+                tas.add(numero);
+                if (tas.size() > n) {
+                    tas.poll();
+                }
+            }
+        }
+        List<Resultat> resultats = new ArrayList<>(tas.size());
+        while (!tas.isEmpty()) {
+            int numero = tas.poll();
+            resultats.add(new Resultat(segments.get(numero), scores[numero]));
+        }
+        return resultats.reversed();
+    }
+
+    public int nombreTermes() {
+        return postings.size();
+    }
+
+    /** Taille des listes de postings, en octets. */
+    public long taillePostings() {
+        long taille = 0;
+        for (Postings liste : postings.values()) {
+            taille += liste.donnees().length;
+        }
+        return taille;
+    }
+
+    /** Découpe en termes : minuscules, sans accents, sans mots vides, pluriels simples retirés. */
+    static List<String> analyser(String texte) {
+        String sansAccents = Normalizer.normalize(texte, Normalizer.Form.NFD).replaceAll("\\p{M}", "");
+        List<String> termes = new ArrayList<>();
+        for (String mot : sansAccents.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (mot.isEmpty() || MOTS_VIDES.contains(mot)) {
+                continue;
+            }
+            termes.add(raciniser(mot));
+        }
+        return termes;
+    }
+
+    /** Racinisation légère commune au français et à l'anglais : "tomates" -> "tomate", "gateaux" -> "gateau". */
+    private static String raciniser(String mot) {
+        if (mot.length() <= 3 || mot.chars().anyMatch(Character::isDigit)) {
+            return mot;
+        }
+        char fin = mot.charAt(mot.length() - 1);
+        if ((fin == 's' || fin == 'x') && mot.charAt(mot.length() - 2) != 's') {
+            return mot.substring(0, mot.length() - 1);
+        }
+        return mot;
+    }
+
+    private static void ecrireVarInt(ByteArrayOutputStream sortie, int valeur) {
+        while ((valeur & ~0x7F) != 0) {
+            sortie.write((valeur & 0x7F) | 0x80);
+            valeur >>>= 7;
+        }
+        sortie.write(valeur);
+    }
+
+    private static int lireVarInt(byte[] donnees, int[] position) {
+        int valeur = 0;
+        int decalage = 0;
+        byte octet;
+        do {
+            octet = donnees[position[0]++];
+            valeur |= (octet & 0x7F) << decalage;
+            decalage += 7;
+        } while ((octet & 0x80) != 0);
+        return valeur;
+    }
+}
@@ -0,0 +1,557 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Index d'embeddings persistant sur disque, pour ne pas refaire l'ingestion à chaque démarrage.
+ * Pour chaque document, les vecteurs sont écrits dans un fichier .vec (relu par memory-mapping)
+ * et les segments (texte + métadonnées) dans un fichier .seg.
+ * Les fichiers sont identifiés par un hash du contenu du document et des paramètres du découpage :
+ * un document inchangé est rechargé en quelques millisecondes, un document modifié est ré-ingéré
+ * par {@link PipelineIngestion}, qui ajoute chaque lot aux fichiers au fur et à mesure.
+ */
+public class IndexPersistant {
+
+    /** Paramètres du découpage, identiques à ceux utilisés dans le TP : recursive(300, 20). */
+    static final int TAILLE_SEGMENT = 300;
+    static final int CHEVAUCHEMENT = 20;
+
+    /** Nombre de requêtes pour le rappel affiché au chargement d'un magasin hors tas. */
+    private static final int REQUETES_RAPPEL = 16;
+
+    /** Métadonnée ajoutée à chaque segment pour retrouver le document d'origine. */
+    static final String METADONNEE_SOURCE = "source";
+
+    private static final int MAGIC = 0x54503456; // "TP4V"
+    private static final int VERSION = 2;
+    private static final int TAILLE_ENTETE = 3 * Integer.BYTES;
+
+    private final Path repertoire;
+
+    public IndexPersistant(Path repertoire) {
+        this.repertoire = repertoire;
+    }
+
+    /**
+     * Index placé dans le répertoire donné par tp4.index.dir (voir {@link Configuration}, par défaut : index-rag).
+     */
+    public static IndexPersistant parDefaut() {
+        return new IndexPersistant(repertoireParDefaut());
+    }
+
+    /** Répertoire tp4.index.dir, partagé avec les autres fichiers persistants (mémoires, cache web). */
+    static Path repertoireParDefaut() {
+        return Path.of(Configuration.valeur("tp4.index.dir", "index-rag"));
+    }
+
+    /**
+     * Résultat du chargement d'un document : la clé (hash) de l'index, les segments,
+     * leurs embeddings et le magasin en mémoire prêt pour un EmbeddingStoreContentRetriever
+     * (null avec {@link #chargerVecteurs}).
+     */
+    public record Index(String cle,
+                        List<TextSegment> segments,
+                        List<Embedding> embeddings,
+                        EmbeddingStore<TextSegment> embeddingStore) {
+    }
+
+    /**
+     * Charge l'index d'une ressource du classpath (ex : "/rag.pdf").
+     * Relit les fichiers .vec/.seg si la ressource n'a pas changé, sinon parse, découpe,
+     * calcule les embeddings et sauvegarde le nouvel index.
+     */
+    public Index charger(String resourceName, EmbeddingModel embeddingModel) {
+        return charger(resourceName, embeddingModel, true);
+    }
+
+    /**
+     * Comme {@link #charger}, mais sans construire de magasin : segments et embeddings seulement,
+     * pour les ajouter à un magasin partagé (ex : MagasinPartitionne) sans garder chaque vecteur en double.
+     */
+    public Index chargerVecteurs(String resourceName, EmbeddingModel embeddingModel) {
+        return charger(resourceName, embeddingModel, false);
+    }
+
+    /**
+     * Ingère ensemble, avec un seul {@link PipelineIngestion} (réglages tp4.pipeline.*), les ressources dont l'index
+     * sur disque n'est pas à jour : parsing, découpage et embeddings des différents documents se recouvrent
+     * au lieu de se suivre. Les appels suivants à {@link #charger} relisent ces index depuis le disque.
+     */
+    public void preparer(List<String> resourceNames, EmbeddingModel embeddingModel) {
+        Map<String, Path> aIngerer = new LinkedHashMap<>();
+        for (String resourceName : resourceNames) {
+            Path base = base(resourceName, calculerCle(resourceName));
+            if (!Files.exists(fichier(base, ".vec")) || !Files.exists(fichier(base, ".seg"))) {
+                aIngerer.put(resourceName, base);
+            }
+        }
+        if (aIngerer.isEmpty()) {
+            return;
+        }
+        System.out.println("Ingestion de " + String.join(", ", aIngerer.keySet()) + " (aucun index à jour sur le disque)...");
+        try {
+            ingerer(aIngerer, embeddingModel);
+        } catch (IOException e) {
+            System.err.println("Impossible de sauvegarder les index (" + e.getMessage()
+                    + "), chaque document sera ingéré à son chargement.");
+        }
+    }
+
+    private Index charger(String resourceName, EmbeddingModel embeddingModel, boolean avecMagasin) {
+        String cle = calculerCle(resourceName);
+        Path base = base(resourceName, cle);
+
+        if (Files.exists(fichier(base, ".vec")) && Files.exists(fichier(base, ".seg"))) {
+            try {
+                long debut = System.nanoTime();
+                Index index = relire(cle, base, avecMagasin);
+                if (index != null) {
+                    System.out.println("Index de " + resourceName + " rechargé depuis le disque ("
+                            + index.segments().size() + " segments, " + (System.nanoTime() - debut) / 1_000_000 + " ms).");
+                    return index;
+                }
+                System.err.println("Index de " + resourceName + " incohérent, nouvelle ingestion.");
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Index de " + resourceName + " illisible (" + e.getMessage() + "), nouvelle ingestion.");
+            }
+        }
+
+        // Document nouveau ou modifié : ingestion par le pipeline, chaque lot est ajouté aux fichiers .vec/.seg
+        System.out.println("Ingestion de " + resourceName + " (aucun index à jour sur le disque)...");
+        try {
+            ingerer(Map.of(resourceName, base), embeddingModel);
+            Index index = relire(cle, base, avecMagasin);
+            if (index != null) {
+                return index;
+            }
+            throw new IOException("index écrit incohérent");
+        } catch (IOException e) {
+            // L'index sur disque n'est qu'un cache : on refait l'ingestion en mémoire
+            System.err.println("Impossible de sauvegarder l'index de " + resourceName + " (" + e.getMessage()
+                    + "), ingestion en mémoire.");
+        }
+        List<TextSegment> segments = new ArrayList<>();
+        List<Embedding> embeddings = new ArrayList<>();
+        PipelineIngestion.Rapport rapport = PipelineIngestion.depuisConfiguration(embeddingModel).ingerer(
+                List.of(PipelineIngestion.Source.ressource(resourceName)), (lot, vecteurs) -> {
+                    synchronized (segments) {
+                        segments.addAll(lot);
+                        embeddings.addAll(vecteurs);
+                    }
+                });
+        if (rapport.erreurs() > 0) {
+            throw new RuntimeException("Erreur lors du chargement de " + resourceName + " (" + rapport + ")");
+        }
+        return avecMagasin
+                ? creerIndex(cle, segments, embeddings, base)
+                : new Index(cle, segments, embeddings, null);
+    }
+
+    /** Relit un index sauvegardé, ou null si les deux fichiers ne correspondent pas. */
+    private static Index relire(String cle, Path base, boolean avecMagasin) throws IOException {
+        List<Embedding> embeddings = lireVecteurs(fichier(base, ".vec"));
+        List<TextSegment> segments = lireSegments(fichier(base, ".seg"));
+        if (embeddings.size() != segments.size()) {
+            return null;
+        }
+        return avecMagasin
+                ? creerIndex(cle, segments, embeddings, base)
+                : new Index(cle, segments, embeddings, null);
+    }
+
+    /**
+     * Ingère les ressources avec le pipeline et écrit l'index de chacune ; les lots, qui peuvent mélanger
+     * plusieurs documents, sont répartis d'après la métadonnée "source". Sans erreur, les anciennes versions
+     * sont supprimées ; sinon aucun fichier n'est gardé (IOException).
+     */
+    private void ingerer(Map<String, Path> bases, EmbeddingModel embeddingModel) throws IOException {
+        Files.createDirectories(repertoire);
+        Map<String, EcritureIndex> ecritures = new HashMap<>();
+        try {
+            for (Map.Entry<String, Path> entree : bases.entrySet()) {
+                Path base = entree.getValue();
+                ecritures.put(entree.getKey(), new EcritureIndex(fichier(base, ".vec"), fichier(base, ".seg")));
+            }
+            PipelineIngestion.Rapport rapport = PipelineIngestion.depuisConfiguration(embeddingModel).ingerer(
+                    bases.keySet().stream().map(PipelineIngestion.Source::ressource).toList(),
+                    (segments, embeddings) -> repartir(segments, embeddings, ecritures));
+            if (rapport.erreurs() > 0) {
+                throw new IOException(rapport.erreurs() + " erreur(s) pendant l'ingestion");
+            }
+            for (Map.Entry<String, Path> entree : bases.entrySet()) {
+                int nombre = ecritures.get(entree.getKey()).terminer();
+                supprimerAnciennesVersions(entree.getKey(), entree.getValue());
+                System.out.println("Document " + entree.getKey() + " découpé en " + nombre
+                        + " segments, index sauvegardé dans " + repertoire + ".");
+            }
+            System.out.println("Ingestion terminée : " + rapport);
+        } finally {
+            for (EcritureIndex ecriture : ecritures.values()) {
+                ecriture.close();
+            }
+        }
+    }
+
+    private static void repartir(List<TextSegment> segments, List<Embedding> embeddings,
+                                 Map<String, EcritureIndex> ecritures) throws IOException {
+        Map<String, List<Integer>> positions = new LinkedHashMap<>();
+        for (int i = 0; i < segments.size(); i++) {
+            positions.computeIfAbsent(segments.get(i).metadata().getString(METADONNEE_SOURCE), source -> new ArrayList<>())
+                    .add(i);
+        }
+        for (Map.Entry<String, List<Integer>> entree : positions.entrySet()) {
+            EcritureIndex ecriture = ecritures.get(entree.getKey());
+            if (ecriture == null) {
+                throw new IOException("segment d'une source inattendue : " + entree.getKey());
+            }
+            ecriture.ajouter(entree.getValue().stream().map(segments::get).toList(),
+                    entree.getValue().stream().map(embeddings::get).toList());
+        }
+    }
+
+    /** Fichiers de l'index d'une ressource, sans extension : nom de la ressource et clé. */
+    private Path base(String resourceName, String cle) {
+        return repertoire.resolve(nomFichier(resourceName) + "-" + cle);
+    }
+
+    /** Clé de la ressource, calculée en flux sans garder le document en mémoire. */
+    private static String calculerCle(String resourceName) {
+        InputStream inputStream = IndexPersistant.class.getResourceAsStream(resourceName);
+        if (inputStream == null) {
+            throw new RuntimeException("Erreur : Le fichier " + resourceName + " n'est pas trouvé.");
+        }
+        try (InputStream contenu = new BufferedInputStream(inputStream)) {
+            return calculerCle(contenu);
+        } catch (IOException e) {
+            throw new RuntimeException("Erreur lors du chargement de " + resourceName, e);
+        }
+    }
+
+    /**
+     * Construit le magasin choisi par tp4.store (voir {@link Configuration}) :
+     * "exact" (ScanExactEmbeddingStore, par défaut), "memoire" (InMemoryEmbeddingStore), "hnsw" (HnswEmbeddingStore, dont le graphe
+     * est sauvegardé à côté des fichiers .vec/.seg pour ne pas le reconstruire), ou
+     * "horstas" / "int8" / "binaire" (OffHeapEmbeddingStore, vecteurs hors du tas Java).
+     */
+    private static Index creerIndex(String cle, List<TextSegment> segments, List<Embedding> embeddings, Path base) {
+        EmbeddingStore<TextSegment> embeddingStore = "hnsw".equals(Configuration.valeur("tp4.store"))
+                ? chargerGraphe(fichier(base, ".hnsw"))
+                : nouveauStore();
+        if (embeddingStore instanceof HnswEmbeddingStore hnsw && hnsw.taille() > 0) {
+            return new Index(cle, segments, embeddings, Instrumentation.embeddingStore(hnsw));
+        }
+        embeddingStore.addAll(embeddings, segments);
+        if (embeddingStore instanceof OffHeapEmbeddingStore horsTas) {
+            // Coût de la quantification, mesuré avec les premiers segments du document comme requêtes
+            System.out.println("Magasin hors tas " + horsTas.bilan(
+                    embeddings.subList(0, Math.min(REQUETES_RAPPEL, embeddings.size())), 2) + ".");
+        }
+        if (embeddingStore instanceof HnswEmbeddingStore hnsw) {
+            try {
+                hnsw.sauvegarder(fichier(base, ".hnsw"));
+            } catch (IOException e) {
+                System.err.println("Impossible de sauvegarder le graphe HNSW : " + e.getMessage());
+            }
+        }
+        return new Index(cle, segments, embeddings, Instrumentation.embeddingStore(embeddingStore));
+    }
+
+    /** Magasin vide du type choisi par tp4.store (voir {@link #creerIndex}). */
+    static EmbeddingStore<TextSegment> nouveauStore() {
+        String type = Configuration.valeur("tp4.store", "exact");
+        return switch (type) {
+            case "exact" -> new ScanExactEmbeddingStore();
+            case "memoire" -> new InMemoryEmbeddingStore<>();
+            case "hnsw" -> HnswEmbeddingStore.builder().build();
+            case "horstas" -> new OffHeapEmbeddingStore(OffHeapEmbeddingStore.Quantification.AUCUNE);
+            case "int8" -> new OffHeapEmbeddingStore(OffHeapEmbeddingStore.Quantification.INT8);
+            case "binaire" -> new OffHeapEmbeddingStore(OffHeapEmbeddingStore.Quantification.BINAIRE);
+            default -> throw new IllegalArgumentException("tp4.store inconnu : " + type);
+        };
+    }
+
+    private static Path fichier(Path base, String extension) {
+        return base.resolveSibling(base.getFileName() + extension);
+    }
+
+    private static HnswEmbeddingStore chargerGraphe(Path fichier) {
+        if (Files.exists(fichier)) {
+            try {
+                return HnswEmbeddingStore.charger(fichier);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Graphe HNSW illisible (" + e.getMessage() + "), reconstruction.");
+            }
+        }
+        return HnswEmbeddingStore.builder().build();
+    }
+
+    /**
+     * Hash SHA-256 du contenu et des paramètres du découpage : toute modification de l'un ou de l'autre
+     * produit une nouvelle clé, donc une nouvelle ingestion.
+     */
+    static String calculerCle(InputStream contenu) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(("recursive:" + TAILLE_SEGMENT + ":" + CHEVAUCHEMENT + ":v" + VERSION)
+                    .getBytes(StandardCharsets.UTF_8));
+            try (DigestInputStream lecture = new DigestInputStream(contenu, digest)) {
+                lecture.transferTo(OutputStream.nullOutputStream());
+            }
+            return HexFormat.of().formatHex(digest.digest(), 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 indisponible", e);
+        }
+    }
+
+    private static String nomFichier(String resourceName) {
+        return resourceName.replaceFirst("^/+", "").replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    // --- Fichier des vecteurs : en-tête (magic, nombre, dimension) puis les floats à la suite ---
+
+    /**
+     * Écriture d'un index au fur et à mesure de l'ingestion : les lots sont ajoutés à la fin de fichiers temporaires,
+     * le nombre de segments et la dimension sont écrits dans les en-têtes par {@link #terminer()},
+     * puis les fichiers prennent leur nom définitif. Sans terminer(), close() supprime les fichiers temporaires.
+     */
+    private static final class EcritureIndex implements AutoCloseable {
+
+        private final Path fichierVecteurs;
+        private final Path fichierSegments;
+        private final Path temporaireVecteurs;
+        private final Path temporaireSegments;
+        private final FileChannel vecteurs;
+        private final FileChannel canalSegments;
+        private final DataOutputStream segments;
+        private int nombre;
+        private int dimension;
+        private boolean termine;
+
+        EcritureIndex(Path fichierVecteurs, Path fichierSegments) throws IOException {
+            this.fichierVecteurs = fichierVecteurs;
+            this.fichierSegments = fichierSegments;
+            this.temporaireVecteurs = fichierVecteurs.resolveSibling(fichierVecteurs.getFileName() + ".tmp");
+            this.temporaireSegments = fichierSegments.resolveSibling(fichierSegments.getFileName() + ".tmp");
+            this.vecteurs = FileChannel.open(temporaireVecteurs, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            this.canalSegments = FileChannel.open(temporaireSegments, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            this.segments = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(canalSegments)));
+            ecrireTout(vecteurs, ByteBuffer.allocate(TAILLE_ENTETE).putInt(MAGIC).putInt(0).putInt(0).flip());
+            segments.writeInt(MAGIC);
+            segments.writeInt(0);
+        }
+
+        synchronized void ajouter(List<TextSegment> lot, List<Embedding> embeddings) throws IOException {
+            if (dimension == 0 && !embeddings.isEmpty()) {
+                dimension = embeddings.get(0).dimension();
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(embeddings.size() * dimension * Float.BYTES);
+            for (Embedding embedding : embeddings) {
+                buffer.asFloatBuffer().put(embedding.vector());
+                buffer.position(buffer.position() + dimension * Float.BYTES);
+            }
+            ecrireTout(vecteurs, buffer.flip());
+            for (TextSegment segment : lot) {
+                ecrireSegment(segments, segment);
+            }
+            nombre += lot.size();
+        }
+
+        /** Complète les en-têtes, force l'écriture sur disque et renomme les fichiers ; renvoie le nombre de segments. */
+        synchronized int terminer() throws IOException {
+            segments.flush();
+            ecrireTout(canalSegments, ByteBuffer.allocate(Integer.BYTES).putInt(nombre).flip(), Integer.BYTES);
+            ecrireTout(vecteurs, ByteBuffer.allocate(2 * Integer.BYTES).putInt(nombre).putInt(dimension).flip(),
+                    Integer.BYTES);
+            vecteurs.force(true);
+            canalSegments.force(true);
+            segments.close();
+            vecteurs.close();
+            Files.move(temporaireVecteurs, fichierVecteurs, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(temporaireSegments, fichierSegments, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            termine = true;
+            return nombre;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (termine) {
+                return;
+            }
+            try {
+                segments.close();
+                vecteurs.close();
+            } finally {
+                Files.deleteIfExists(temporaireVecteurs);
+                Files.deleteIfExists(temporaireSegments);
+            }
+        }
+
+        private static void ecrireTout(FileChannel canal, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                canal.write(buffer);
+            }
+        }
+
+        private static void ecrireTout(FileChannel canal, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += canal.write(buffer, position);
+            }
+        }
+    }
+
+    private static List<Embedding> lireVecteurs(Path fichier) throws IOException {
+        try (FileChannel channel = FileChannel.open(fichier, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("format inconnu");
+            }
+            int nombre = buffer.getInt();
+            int dimension = buffer.getInt();
+            if (TAILLE_ENTETE + (long) nombre * dimension * Float.BYTES != channel.size()) {
+                throw new IOException("taille incorrecte");
+            }
+            FloatBuffer vecteurs = buffer.asFloatBuffer();
+            List<Embedding> embeddings = new ArrayList<>(nombre);
+            for (int i = 0; i < nombre; i++) {
+                float[] vecteur = new float[dimension];
+                vecteurs.get(vecteur);
+                embeddings.add(Embedding.from(vecteur));
+            }
+            return embeddings;
+        }
+    }
+
+    // --- Fichier des segments : texte et métadonnées typées de chaque segment ---
+
+    private static List<TextSegment> lireSegments(Path fichier) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(fichier)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("format inconnu");
+            }
+            int nombre = in.readInt();
+            List<TextSegment> segments = new ArrayList<>(nombre);
+            for (int i = 0; i < nombre; i++) {
+                segments.add(lireSegment(in));
+            }
+            return segments;
+        }
+    }
+
+    /** Écrit le texte et les métadonnées typées d'un segment (format partagé avec HnswEmbeddingStore). */
+    static void ecrireSegment(DataOutputStream out, TextSegment segment) throws IOException {
+        ecrireChaine(out, segment.text());
+        Map<String, Object> metadonnees = segment.metadata().toMap();
+        out.writeInt(metadonnees.size());
+        for (Map.Entry<String, Object> entree : metadonnees.entrySet()) {
+            ecrireChaine(out, entree.getKey());
+            ecrireValeur(out, entree.getValue());
+        }
+    }
+
+    static TextSegment lireSegment(DataInputStream in) throws IOException {
+        String texte = lireChaine(in);
+        int nombreMetadonnees = in.readInt();
+        Map<String, Object> metadonnees = new LinkedHashMap<>();
+        for (int j = 0; j < nombreMetadonnees; j++) {
+            String cle = lireChaine(in);
+            metadonnees.put(cle, lireValeur(in));
+        }
+        return TextSegment.from(texte, Metadata.from(metadonnees));
+    }
+
+    private static void ecrireValeur(DataOutputStream out, Object valeur) throws IOException {
+        if (valeur instanceof Integer entier) {
+            out.writeByte('I');
+            out.writeInt(entier);
+        } else if (valeur instanceof Long entier) {
+            out.writeByte('L');
+            out.writeLong(entier);
+        } else if (valeur instanceof Float reel) {
+            out.writeByte('F');
+            out.writeFloat(reel);
+        } else if (valeur instanceof Double reel) {
+            out.writeByte('D');
+            out.writeDouble(reel);
+        } else if (valeur instanceof UUID uuid) {
+            out.writeByte('U');
+            ecrireChaine(out, uuid.toString());
+        } else {
+            out.writeByte('S');
+            ecrireChaine(out, String.valueOf(valeur));
+        }
+    }
+
+    private static Object lireValeur(DataInputStream in) throws IOException {
+        int type = in.readByte();
+        return switch (type) {
+            case 'I' -> in.readInt();
+            case 'L' -> in.readLong();
+            case 'F' -> in.readFloat();
+            case 'D' -> in.readDouble();
+            case 'U' -> UUID.fromString(lireChaine(in));
+            case 'S' -> lireChaine(in);
+            default -> throw new IOException("type de métadonnée inconnu : " + type);
+        };
+    }
+
+    // writeUTF est limité à 64 Ko : on écrit la longueur puis les octets UTF-8
+    static void ecrireChaine(DataOutputStream out, String chaine) throws IOException {
+        byte[] octets = chaine.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(octets.length);
+        out.write(octets);
+    }
+
+    static String lireChaine(DataInputStream in) throws IOException {
+        byte[] octets = new byte[in.readInt()];
+        in.readFully(octets);
+        return new String(octets, StandardCharsets.UTF_8);
+    }
+
+    private void supprimerAnciennesVersions(String resourceName, Path base) throws IOException {
+        try (DirectoryStream<Path> fichiers = Files.newDirectoryStream(repertoire, nomFichier(resourceName) + "-*")) {
+            for (Path fichier : fichiers) {
+                String nom = fichier.getFileName().toString();
+                if (!nom.startsWith(base.getFileName() + ".")) {
+                    Files.deleteIfExists(fichier);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.splitter.DocumentSplitters;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.filter.Filter;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Ingestion "live" : les documents sont surveillés avec un WatchService et ré-ingérés à chaud.
+ * <p>
+ * Quand un fichier change, il est re-parsé et re-découpé, chaque segment est identifié par le hash de son texte
+ * et sa position (page et index du découpage), et seuls les segments nouveaux passent par le modèle d'embedding ;
+ * les segments disparus sont retirés du magasin. Un segment conservé garde donc des métadonnées "page" et "index"
+ * exactes (la fusion des voisins dans {@link AgregateurContexte} en dépend) ; un segment décalé par une insertion
+ * est ré-ingéré. Le coût d'une ré-ingestion suit la taille de la modification, à la page près, pas celle du corpus.
+ * <p>
+ * Les embeddings sont calculés sans bloquer les recherches ; l'ajout des nouveaux segments et la suppression
+ * des anciens se font ensuite sous un verrou d'écriture, et les recherches passent par {@link #embeddingStore()}
+ * sous le verrou de lecture : une question voit l'ancienne version du document ou la nouvelle, jamais un mélange.
+ */
+public class IngestionIncrementale implements AutoCloseable {
+
+    /** Bilan d'une synchronisation de fichier. */
+    public record Bilan(Path fichier, int conserves, int ajoutes, int supprimes, Duration duree) {
+    }
+
+    private static final Duration ATTENTE_STABILITE = Duration.ofMillis(300);
+    /** Nombre de segments par appel à embedAll. */
+    private static final int TAILLE_LOT = 64;
+
+    private final EmbeddingModel embeddingModel;
+    private final EmbeddingStore<TextSegment> embeddingStore;
+    private final EmbeddingStore<TextSegment> vue;
+    private final ReadWriteLock verrou = new ReentrantReadWriteLock();
+    private final DocumentSplitter splitter =
+            DocumentSplitters.recursive(IndexPersistant.TAILLE_SEGMENT, IndexPersistant.CHEVAUCHEMENT);
+
+    /** Par fichier : identité de segment (hash et position) -> id dans le magasin. Modifié seulement sous le moniteur de this. */
+    private final Map<Path, Map<String, String>> segmentsParFichier = new HashMap<>();
+    private final List<WatchService> surveillances = new CopyOnWriteArrayList<>();
+    private final List<Runnable> ecouteurs = new CopyOnWriteArrayList<>();
+
+    public IngestionIncrementale(EmbeddingModel embeddingModel, EmbeddingStore<TextSegment> embeddingStore) {
+        this.embeddingModel = embeddingModel;
+        this.embeddingStore = embeddingStore;
+        this.vue = new VueCoherente();
+    }
+
+    /**
+     * Mode live pour une ressource du TP (ex : "/rag.pdf") : le fichier correspondant du répertoire tp4.documents.dir
+     * (src/main/resources par défaut) est ingéré puis surveillé. Le magasin est celui choisi par tp4.store.
+     */
+    public static IngestionIncrementale demarrer(String resourceName, EmbeddingModel embeddingModel) {
+        Path fichier = Path.of(Configuration.valeur("tp4.documents.dir", "src/main/resources"),
+                resourceName.startsWith("/") ? resourceName.substring(1) : resourceName);
+        IngestionIncrementale ingestion = new IngestionIncrementale(embeddingModel, IndexPersistant.nouveauStore());
+        try {
+            ingestion.surveiller(fichier);
+        } catch (IOException e) {
+            throw new RuntimeException("Impossible de surveiller " + fichier, e);
+        }
+        return ingestion;
+    }
+
+    /**
+     * Action à exécuter après chaque synchronisation qui a ajouté ou retiré des segments
+     * (ex : vider un cache de réponses construit sur l'ancienne version).
+     */
+    public void siModification(Runnable ecouteur) {
+        ecouteurs.add(ecouteur);
+    }
+
+    /** Magasin à donner aux retrievers : les recherches ne voient jamais une mise à jour à moitié appliquée. */
+    public EmbeddingStore<TextSegment> embeddingStore() {
+        return vue;
+    }
+
+    /**
+     * Met le magasin à jour pour ce fichier (ajout, modification ou suppression).
+     * En cas d'erreur de lecture (fichier en cours d'écriture, ...), l'ancienne version reste indexée.
+     */
+    public synchronized Bilan synchroniser(Path fichier) {
+        long debut = System.nanoTime();
+        Path cle = fichier.toAbsolutePath().normalize();
+        Map<String, String> anciens = segmentsParFichier.getOrDefault(cle, Map.of());
+
+        // 1. Découper la nouvelle version et identifier chaque segment par le hash de son texte et sa position
+        Map<String, TextSegment> nouveaux = new LinkedHashMap<>();
+        for (TextSegment segment : Files.exists(cle) ? decouper(cle) : List.<TextSegment>of()) {
+            nouveaux.put(identite(segment), segment);
+        }
+
+        // 2. Embeddings des seuls segments nouveaux, sans bloquer les recherches
+        List<String> identitesAjoutees = new ArrayList<>();
+        List<TextSegment> aAjouter = new ArrayList<>();
+        nouveaux.forEach((identite, segment) -> {
+            if (!anciens.containsKey(identite)) {
+                identitesAjoutees.add(identite);
+                aAjouter.add(segment);
+            }
+        });
+        List<String> obsoletes = new ArrayList<>();
+        anciens.forEach((identite, id) -> {
+            if (!nouveaux.containsKey(identite)) {
+                obsoletes.add(id);
+            }
+        });
+        List<Embedding> embeddings = embedder(aAjouter);
+
+        // 3. Remplacement atomique pour les recherches : ajouts puis suppressions sous le verrou d'écriture
+        List<String> ids;
+        verrou.writeLock().lock();
+        try {
+            ids = aAjouter.isEmpty() ? List.of() : embeddingStore.addAll(embeddings, aAjouter);
+            if (!obsoletes.isEmpty()) {
+                embeddingStore.removeAll(obsoletes);
+            }
+        } finally {
+            verrou.writeLock().unlock();
+        }
+
+        Map<String, String> courants = new HashMap<>();
+        anciens.forEach((identite, id) -> {
+            if (nouveaux.containsKey(identite)) {
+                courants.put(identite, id);
+            }
+        });
+        for (int i = 0; i < ids.size(); i++) {
+            courants.put(identitesAjoutees.get(i), ids.get(i));
+        }
+        if (courants.isEmpty()) {
+            segmentsParFichier.remove(cle);
+        } else {
+            segmentsParFichier.put(cle, courants);
+        }
+
+        Bilan bilan = new Bilan(cle, courants.size() - ids.size(), ids.size(), obsoletes.size(),
+                Duration.ofNanos(System.nanoTime() - debut));
+        System.out.println("Ingestion de " + cle.getFileName() + " : " + bilan.conserves() + " segments conservés, "
+                + bilan.ajoutes() + " ajoutés, " + bilan.supprimes() + " supprimés ("
+                + bilan.duree().toMillis() + " ms).");
+        if (bilan.ajoutes() > 0 || bilan.supprimes() > 0) {
+            ecouteurs.forEach(Runnable::run);
+        }
+        return bilan;
+    }
+
+    /** Synchronise tous les fichiers du répertoire (premier niveau). */
+    public List<Bilan> synchroniserRepertoire(Path repertoire) throws IOException {
+        List<Bilan> bilans = new ArrayList<>();
+        try (Stream<Path> fichiers = Files.list(repertoire)) {
+            for (Path fichier : fichiers.filter(IngestionIncrementale::estDocument).sorted().toList()) {
+                try {
+                    bilans.add(synchroniser(fichier));
+                } catch (RuntimeException e) {
+                    System.err.println("Ingestion de " + fichier.getFileName() + " impossible : " + e.getMessage());
+                }
+            }
+        }
+        return bilans;
+    }
+
+    /**
+     * Ingère puis surveille un fichier, ou tous les fichiers d'un répertoire, sur un thread virtuel.
+     * Les événements rapprochés (un éditeur écrit souvent en plusieurs fois) sont regroupés.
+     */
+    public void surveiller(Path fichierOuRepertoire) throws IOException {
+        Path cible = fichierOuRepertoire.toAbsolutePath().normalize();
+        Path repertoire;
+        Predicate<Path> filtre;
+        if (Files.isDirectory(cible)) {
+            repertoire = cible;
+            filtre = IngestionIncrementale::estDocument;
+            synchroniserRepertoire(cible);
+        } else {
+            repertoire = cible.getParent();
+            filtre = cible::equals;
+            synchroniser(cible);
+        }
+
+        WatchService service = repertoire.getFileSystem().newWatchService();
+        repertoire.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        surveillances.add(service);
+        Thread.ofVirtual().name("surveillance-" + cible.getFileName())
+                .start(() -> boucleSurveillance(service, repertoire, filtre));
+        System.out.println("Surveillance de " + cible + " (ré-ingestion à chaud).");
+    }
+
+    private void boucleSurveillance(WatchService service, Path repertoire, Predicate<Path> filtre) {
+        try {
+            while (true) {
+                Set<Path> modifies = new LinkedHashSet<>();
+                collecter(service.take(), repertoire, filtre, modifies);
+                WatchKey suivante;
+                while ((suivante = service.poll(ATTENTE_STABILITE.toMillis(), TimeUnit.MILLISECONDS)) != null) {
+                    collecter(suivante, repertoire, filtre, modifies);
+                }
+                for (Path fichier : modifies) {
+                    try {
+                        synchroniser(fichier);
+                    } catch (RuntimeException e) {
+                        System.err.println("Ré-ingestion de " + fichier.getFileName() + " impossible ("
+                                + e.getMessage() + "), l'ancienne version reste indexée.");
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // surveillance arrêtée
+        }
+    }
+
+    private void collecter(WatchKey cle, Path repertoire, Predicate<Path> filtre, Set<Path> modifies) {
+        for (WatchEvent<?> evenement : cle.pollEvents()) {
+            if (evenement.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Événements perdus : on revérifie tous les fichiers connus du répertoire
+                synchronized (this) {
+                    segmentsParFichier.keySet().stream()
+                            .filter(fichier -> repertoire.equals(fichier.getParent()))
+                            .forEach(modifies::add);
+                }
+                continue;
+            }
+            Path fichier = repertoire.resolve((Path) evenement.context()).toAbsolutePath().normalize();
+            if (filtre.test(fichier)) {
+                modifies.add(fichier);
+            }
+        }
+        cle.reset();
+    }
+
+    /** Découpe le fichier page par page en le lisant en flux (un fichier vide ne donne aucun segment). */
+    private List<TextSegment> decouper(Path fichier) {
+        List<TextSegment> segments = new ArrayList<>();
+        try {
+            if (Files.size(fichier) == 0) {
+                return segments;
+            }
+            try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(fichier))) {
+                LecteurParPages.decouper(inputStream, "/" + fichier.getFileName(), splitter, segments::addAll);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Erreur lors de la lecture de " + fichier, e);
+        }
+        return segments;
+    }
+
+    /** Embeddings par lots de {@link #TAILLE_LOT} segments. */
+    private List<Embedding> embedder(List<TextSegment> segments) {
+        List<Embedding> embeddings = new ArrayList<>(segments.size());
+        for (int debut = 0; debut < segments.size(); debut += TAILLE_LOT) {
+            List<TextSegment> lot = segments.subList(debut, Math.min(debut + TAILLE_LOT, segments.size()));
+            embeddings.addAll(embeddingModel.embedAll(lot).content());
+        }
+        return embeddings;
+    }
+
+    /** Fichiers ordinaires, hors fichiers cachés et temporaires d'éditeurs. */
+    private static boolean estDocument(Path fichier) {
+        String nom = fichier.getFileName().toString();
+        return !nom.startsWith(".") && !nom.endsWith("~") && !nom.endsWith(".tmp") && !Files.isDirectory(fichier);
+    }
+
+    /**
+     * Hash du texte suivi de la position du segment : un segment identique mais décalé (texte inséré plus haut
+     * dans la page) change d'identité, pour que ses métadonnées "page" et "index" soient rafraîchies.
+     */
+    private static String identite(TextSegment segment) {
+        Integer page = segment.metadata().getInteger(LecteurParPages.METADONNEE_PAGE);
+        return hash(segment.text()) + "@" + (page == null ? "" : page) + ":"
+                + segment.metadata().getString(AgregateurContexte.METADONNEE_INDEX);
+    }
+
+    private static String hash(String texte) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(texte.getBytes(StandardCharsets.UTF_8)), 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (WatchService service : surveillances) {
+            try {
+                service.close();
+            } catch (IOException e) {
+                System.err.println("Erreur à l'arrêt de la surveillance : " + e.getMessage());
+            }
+        }
+    }
+
+    /** Vue du magasin : recherches sous le verrou de lecture, modifications sous le verrou d'écriture. */
+    private final class VueCoherente implements EmbeddingStore<TextSegment> {
+
+        @Override
+        public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+            verrou.readLock().lock();
+            try {
+                return embeddingStore.search(request);
+            } finally {
+                verrou.readLock().unlock();
+            }
+        }
+
+        @Override
+        public String add(Embedding embedding) {
+            return ecrire(() -> embeddingStore.add(embedding));
+        }
+
+        @Override
+        public void add(String id, Embedding embedding) {
+            ecrire(() -> {
+                embeddingStore.add(id, embedding);
+                return null;
+            });
+        }
+
+        @Override
+        public String add(Embedding embedding, TextSegment textSegment) {
+            return ecrire(() -> embeddingStore.add(embedding, textSegment));
+        }
+
+        @Override
+        public List<String> addAll(List<Embedding> embeddings) {
+            return ecrire(() -> embeddingStore.addAll(embeddings));
+        }
+
+        @Override
+        public List<String> addAll(List<Embedding> embeddings, List<TextSegment> textSegments) {
+            return ecrire(() -> embeddingStore.addAll(embeddings, textSegments));
+        }
+
+        @Override
+        public void remove(String id) {
+            ecrire(() -> {
+                embeddingStore.remove(id);
+                return null;
+            });
+        }
+
+        @Override
+        public void removeAll(Collection<String> ids) {
+            ecrire(() -> {
+                embeddingStore.removeAll(ids);
+                return null;
+            });
+        }
+
+        @Override
+        public void removeAll(Filter filter) {
+            ecrire(() -> {
+                embeddingStore.removeAll(filter);
+                return null;
+            });
+        }
+
+        @Override
+        public void removeAll() {
+            ecrire(() -> {
+                embeddingStore.removeAll();
+                return null;
+            });
+        }
+
+        private <T> T ecrire(Supplier<T> modification) {
+            verrou.writeLock().lock();
+            try {
+                return modification.get();
+            } finally {
+                verrou.writeLock().unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.agent.tool.ToolSpecification;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.StreamingResponseHandler;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.rag.query.router.QueryRouter;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.filter.Filter;
+import dev.langchain4j.web.search.WebSearchEngine;
+import dev.langchain4j.web.search.WebSearchRequest;
+import dev.langchain4j.web.search.WebSearchResults;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Décorateurs qui alimentent {@link Metriques} : ChatModel, en streaming ou non (appel LLM, tailles du prompt
+ * et de la réponse),
+ * EmbeddingModel (embeddings des documents / des questions), EmbeddingStore (recherche vectorielle et scores),
+ * QueryRouter (décision de routage) et WebSearchEngine (recherche Web).
+ * <p>
+ * Quand les métriques sont désactivées, chaque méthode renvoie l'objet d'origine : aucun coût.
+ */
+public final class Instrumentation {
+
+    private Instrumentation() {
+    }
+
+    /**
+     * Journal détaillé de LangChain4j (niveau FINE sur la console), comme au Test 2.
+     * Remplacé par les métriques : à n'activer que pour déboguer, avec -Dtp4.log.fine=true (lent sous charge).
+     */
+    public static void journalDetaille() {
+        if (!Boolean.getBoolean("tp4.log.fine")) {
+            return;
+        }
+        Logger packageLogger = Logger.getLogger("dev.langchain4j");
+        packageLogger.setLevel(Level.FINE);
+        ConsoleHandler handler = new ConsoleHandler();
+        handler.setLevel(Level.FINE);
+        packageLogger.addHandler(handler);
+    }
+
+    public static ChatLanguageModel chatModel(ChatLanguageModel chatModel) {
+        return Metriques.ACTIF ? new ChatModelInstrumente(chatModel) : chatModel;
+    }
+
+    /** En streaming, l'appel LLM est mesuré jusqu'à la réponse complète (onComplete) ou l'erreur. */
+    public static StreamingChatLanguageModel streamingChatModel(StreamingChatLanguageModel streamingModel) {
+        return Metriques.ACTIF ? new StreamingChatModelInstrumente(streamingModel) : streamingModel;
+    }
+
+    public static EmbeddingModel embeddingModel(EmbeddingModel embeddingModel) {
+        return Metriques.ACTIF ? new EmbeddingModelInstrumente(embeddingModel) : embeddingModel;
+    }
+
+    public static EmbeddingStore<TextSegment> embeddingStore(EmbeddingStore<TextSegment> embeddingStore) {
+        return Metriques.ACTIF ? new EmbeddingStoreInstrumente(embeddingStore) : embeddingStore;
+    }
+
+    public static QueryRouter queryRouter(QueryRouter queryRouter) {
+        if (!Metriques.ACTIF) {
+            return queryRouter;
+        }
+        return query -> mesurer(Metriques.Etape.ROUTAGE, () -> queryRouter.route(query));
+    }
+
+    public static WebSearchEngine webSearchEngine(WebSearchEngine webSearchEngine) {
+        if (!Metriques.ACTIF) {
+            return webSearchEngine;
+        }
+        return new WebSearchEngine() {
+            @Override
+            public WebSearchResults search(WebSearchRequest webSearchRequest) {
+                return mesurer(Metriques.Etape.RECHERCHE_WEB, () -> webSearchEngine.search(webSearchRequest));
+            }
+        };
+    }
+
+    /** Exécute l'action en enregistrant sa latence (et l'erreur éventuelle) pour l'étape. */
+    static <T> T mesurer(Metriques.Etape etape, Supplier<T> action) {
+        long debut = Metriques.debut();
+        try {
+            T resultat = action.get();
+            Metriques.fin(etape, debut);
+            return resultat;
+        } catch (RuntimeException e) {
+            Metriques.echec(etape, debut);
+            throw e;
+        }
+    }
+
+    private static final class ChatModelInstrumente implements ChatLanguageModel {
+
+        private final ChatLanguageModel chatModel;
+
+        ChatModelInstrumente(ChatLanguageModel chatModel) {
+            this.chatModel = chatModel;
+        }
+
+        @Override
+        public Response<AiMessage> generate(List<ChatMessage> messages) {
+            return appel(messages, () -> chatModel.generate(messages));
+        }
+
+        @Override
+        public Response<AiMessage> generate(List<ChatMessage> messages, List<ToolSpecification> outils) {
+            return appel(messages, () -> chatModel.generate(messages, outils));
+        }
+
+        @Override
+        public Response<AiMessage> generate(List<ChatMessage> messages, ToolSpecification outil) {
+            return appel(messages, () -> chatModel.generate(messages, outil));
+        }
+
+        private static Response<AiMessage> appel(List<ChatMessage> messages, Supplier<Response<AiMessage>> generation) {
+            enregistrerPrompt(messages);
+            Response<AiMessage> reponse = mesurer(Metriques.Etape.APPEL_LLM, generation);
+            Metriques.enregistrer(Metriques.Distribution.TAILLE_REPONSE, taille(reponse.content()));
+            return reponse;
+        }
+
+        static void enregistrerPrompt(List<ChatMessage> messages) {
+            long taillePrompt = 0;
+            for (ChatMessage message : messages) {
+                taillePrompt += taille(message);
+            }
+            Metriques.enregistrer(Metriques.Distribution.TAILLE_PROMPT, taillePrompt);
+        }
+
+        static long taille(ChatMessage message) {
+            String texte = null;
+            if (message instanceof UserMessage userMessage && userMessage.hasSingleText()) {
+                texte = userMessage.singleText();
+            } else if (message instanceof SystemMessage systemMessage) {
+                texte = systemMessage.text();
+            } else if (message instanceof AiMessage aiMessage) {
+                texte = aiMessage.text();
+            }
+            return texte == null ? 0 : texte.length();
+        }
+    }
+
+    private static final class StreamingChatModelInstrumente implements StreamingChatLanguageModel {
+
+        private final StreamingChatLanguageModel streamingModel;
+
+        StreamingChatModelInstrumente(StreamingChatLanguageModel streamingModel) {
+            this.streamingModel = streamingModel;
+        }
+
+        @Override
+        public void generate(List<ChatMessage> messages, StreamingResponseHandler<AiMessage> handler) {
+            streamingModel.generate(messages, mesure(messages, handler));
+        }
+
+        @Override
+        public void generate(List<ChatMessage> messages, List<ToolSpecification> outils,
+                             StreamingResponseHandler<AiMessage> handler) {
+            streamingModel.generate(messages, outils, mesure(messages, handler));
+        }
+
+        @Override
+        public void generate(List<ChatMessage> messages, ToolSpecification outil,
+                             StreamingResponseHandler<AiMessage> handler) {
+            streamingModel.generate(messages, outil, mesure(messages, handler));
+        }
+
+        /** Handler qui enregistre la latence et la taille de la réponse à la fin du flux, puis transmet. */
+        private static StreamingResponseHandler<AiMessage> mesure(List<ChatMessage> messages,
+                                                                  StreamingResponseHandler<AiMessage> handler) {
+            ChatModelInstrumente.enregistrerPrompt(messages);
+            long debut = Metriques.debut();
+            return new StreamingResponseHandler<>() {
+                @Override
+                public void onNext(String token) {
+                    handler.onNext(token);
+                }
+
+                @Override
+                public void onComplete(Response<AiMessage> reponse) {
+                    Metriques.fin(Metriques.Etape.APPEL_LLM, debut);
+                    Metriques.enregistrer(Metriques.Distribution.TAILLE_REPONSE, ChatModelInstrumente.taille(reponse.content()));
+                    handler.onComplete(reponse);
+                }
+
+                @Override
+                public void onError(Throwable erreur) {
+                    Metriques.echec(Metriques.Etape.APPEL_LLM, debut);
+                    handler.onError(erreur);
+                }
+            };
+        }
+    }
+
+    private static final class EmbeddingModelInstrumente implements EmbeddingModel {
+
+        private final EmbeddingModel embeddingModel;
+
+        EmbeddingModelInstrumente(EmbeddingModel embeddingModel) {
+            this.embeddingModel = embeddingModel;
+        }
+
+        /** Une seule chaîne : c'est l'embedding d'une question (retrievers, routeurs, caches). */
+        @Override
+        public Response<Embedding> embed(String text) {
+            return mesurer(Metriques.Etape.EMBEDDING_REQUETE, () -> embeddingModel.embed(text));
+        }
+
+        @Override
+        public Response<Embedding> embed(TextSegment textSegment) {
+            return mesurer(Metriques.Etape.EMBEDDING_REQUETE, () -> embeddingModel.embed(textSegment));
+        }
+
+        /** Lot de segments : embeddings des documents (ingestion). */
+        @Override
+        public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+            return mesurer(Metriques.Etape.EMBEDDING, () -> embeddingModel.embedAll(textSegments));
+        }
+
+        @Override
+        public int dimension() {
+            return embeddingModel.dimension();
+        }
+    }
+
+    private static final class EmbeddingStoreInstrumente implements EmbeddingStore<TextSegment> {
+
+        private final EmbeddingStore<TextSegment> embeddingStore;
+
+        EmbeddingStoreInstrumente(EmbeddingStore<TextSegment> embeddingStore) {
+            this.embeddingStore = embeddingStore;
+        }
+
+        @Override
+        public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+            EmbeddingSearchResult<TextSegment> resultat =
+                    mesurer(Metriques.Etape.RECHERCHE_VECTORIELLE, () -> embeddingStore.search(request));
+            for (EmbeddingMatch<TextSegment> match : resultat.matches()) {
+                Metriques.enregistrer(Metriques.Distribution.SCORE_RETRIEVAL, Math.round(match.score() * 1000));
+            }
+            return resultat;
+        }
+
+        @Override
+        public String add(Embedding embedding) {
+            return embeddingStore.add(embedding);
+        }
+
+        @Override
+        public void add(String id, Embedding embedding) {
+            embeddingStore.add(id, embedding);
+        }
+
+        @Override
+        public String add(Embedding embedding, TextSegment textSegment) {
+            return embeddingStore.add(embedding, textSegment);
+        }
+
+        @Override
+        public List<String> addAll(List<Embedding> embeddings) {
+            return embeddingStore.addAll(embeddings);
+        }
+
+        @Override
+        public List<String> addAll(List<Embedding> embeddings, List<TextSegment> textSegments) {
+            return embeddingStore.addAll(embeddings, textSegments);
+        }
+
+        @Override
+        public void remove(String id) {
+            embeddingStore.remove(id);
+        }
+
+        @Override
+        public void removeAll(Collection<String> ids) {
+            embeddingStore.removeAll(ids);
+        }
+
+        @Override
+        public void removeAll(Filter filter) {
+            embeddingStore.removeAll(filter);
+        }
+
+        @Override
+        public void removeAll() {
+            embeddingStore.removeAll();
+        }
+    }
+}
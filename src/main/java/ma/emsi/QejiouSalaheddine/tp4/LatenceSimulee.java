@@ -0,0 +1,57 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import java.util.Random;
+
+/**
+ * Latence et erreurs d'un service simulé : latence log-normale (médiane, dispersion sigma)
+ * et taux d'erreur, tirés d'un générateur à graine fixe pour rejouer les mêmes séquences.
+ */
+public class LatenceSimulee {
+
+    private final double medianeMs;
+    private final double sigma;
+    private final double tauxErreur;
+    private final Random aleatoire;
+
+    /**
+     * @param medianeMs  latence médiane
+     * @param sigma      dispersion log-normale (0 : latence constante ; 0.5 : p99 ≈ 3,2 × la médiane)
+     * @param tauxErreur probabilité qu'un appel échoue (0 à 1)
+     */
+    public LatenceSimulee(double medianeMs, double sigma, double tauxErreur, long graine) {
+        this.medianeMs = medianeMs;
+        this.sigma = sigma;
+        this.tauxErreur = tauxErreur;
+        this.aleatoire = new Random(graine);
+    }
+
+    /** Latence et taux d'erreur lus dans la configuration, sous le préfixe donné (ex : tp4.simule.llm). */
+    public static LatenceSimulee depuisConfiguration(String prefixe, double medianeMsParDefaut) {
+        return new LatenceSimulee(
+                Configuration.decimal(prefixe + ".latence.ms", medianeMsParDefaut),
+                Configuration.decimal(prefixe + ".latence.sigma", 0.5),
+                Configuration.decimal(prefixe + ".erreurs", 0.0),
+                Configuration.entier(prefixe + ".graine", 42));
+    }
+
+    /** Attend une latence tirée au hasard, puis échoue éventuellement. */
+    public void attendre(String service) {
+        long latence;
+        boolean echec;
+        synchronized (aleatoire) {
+            latence = Math.round(medianeMs * Math.exp(sigma * aleatoire.nextGaussian()));
+            echec = aleatoire.nextDouble() < tauxErreur;
+        }
+        if (latence > 0) {
+            try {
+                Thread.sleep(latence);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(service + " simulé interrompu", e);
+            }
+        }
+        if (echec) {
+            throw new RuntimeException("Erreur simulée de " + service + " (après " + latence + " ms)");
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.segment.TextSegment;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Lecture d'un document page par page, au lieu de ApacheTikaDocumentParser.parse() qui construit
+ * tout le texte en un seul Document avant le découpage.
+ * <p>
+ * Tika produit le texte sous forme d'événements SAX ; pour un PDF, chaque page est un élément
+ * &lt;div class="page"&gt;. Le texte d'une page est transmis dès la fin de la page puis oublié :
+ * la mémoire utilisée ne dépend que de la taille d'une page, pas de celle du document.
+ * Les autres formats (texte, Word...) n'ont pas de pages : ils sont transmis par sections d'au moins
+ * {@link #TAILLE_SECTION} caractères, coupées en fin de paragraphe (ou de ligne), avec le numéro de page 0.
+ */
+public final class LecteurParPages {
+
+    /** Métadonnée ajoutée aux segments d'un PDF : numéro de page, à partir de 1. */
+    public static final String METADONNEE_PAGE = "page";
+
+    static final int TAILLE_SECTION = 32_000;
+
+    /** Texte d'une page (PDF) ou d'une section (numero = 0). */
+    public record Page(int numero, String texte) {
+    }
+
+    private LecteurParPages() {
+    }
+
+    /**
+     * Lit le document et appelle le consommateur pour chaque page non vide, dans l'ordre.
+     * Le temps passé dans Tika est compté dans l'étape "parse" des métriques, sans le temps du consommateur.
+     */
+    public static void lire(InputStream inputStream, Consumer<Page> consommateur) {
+        GestionnairePages gestionnaire = new GestionnairePages(consommateur);
+        try {
+            new AutoDetectParser().parse(inputStream, gestionnaire, new org.apache.tika.metadata.Metadata(),
+                    new ParseContext());
+        } catch (IOException | SAXException | TikaException e) {
+            throw new RuntimeException("Erreur lors de la lecture du document : " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Lit et découpe le document page par page : chaque page devient un Document (métadonnées "source"
+     * et "page") passé au splitter, et ses segments sont transmis au consommateur.
+     * Les numéros "index" des segments restent ceux du découpage de leur page.
+     */
+    public static void decouper(InputStream inputStream, String source, DocumentSplitter splitter,
+                                Consumer<List<TextSegment>> consommateur) {
+        lire(inputStream, page -> consommateur.accept(decouper(page, source, splitter)));
+    }
+
+    static List<TextSegment> decouper(Page page, String source, DocumentSplitter splitter) {
+        Document document = document(page, source);
+        return Instrumentation.mesurer(Metriques.Etape.DECOUPAGE, () -> splitter.split(document));
+    }
+
+    /** Document d'une page, avec les métadonnées "source" et "page" (pour un PDF). */
+    static Document document(Page page, String source) {
+        Metadata metadonnees = new Metadata().put(IndexPersistant.METADONNEE_SOURCE, source);
+        if (page.numero() > 0) {
+            metadonnees.put(METADONNEE_PAGE, page.numero());
+        }
+        return Document.from(page.texte(), metadonnees);
+    }
+
+    /** Accumule le texte du corps du document et le transmet page par page. */
+    private static final class GestionnairePages extends DefaultHandler {
+
+        private final Consumer<Page> consommateur;
+        private final StringBuilder texte = new StringBuilder();
+        private boolean dansCorps;
+        private int pages;
+        private int profondeurPage = -1; // profondeur des <div> dans la page courante, -1 hors page
+        private long debut = Metriques.debut();
+
+        GestionnairePages(Consumer<Page> consommateur) {
+            this.consommateur = consommateur;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            String nom = nom(localName, qName);
+            if ("body".equals(nom)) {
+                dansCorps = true;
+            } else if ("div".equals(nom)) {
+                if (profondeurPage >= 0) {
+                    profondeurPage++;
+                } else if ("page".equals(attributes.getValue("class"))) {
+                    transmettre(0); // texte éventuel avant la première page
+                    profondeurPage = 0;
+                    pages++;
+                }
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            String nom = nom(localName, qName);
+            if ("body".equals(nom)) {
+                dansCorps = false;
+            } else if ("div".equals(nom) && profondeurPage >= 0) {
+                if (profondeurPage == 0) {
+                    transmettre(pages);
+                    profondeurPage = -1;
+                } else {
+                    profondeurPage--;
+                }
+            } else if ("p".equals(nom) && profondeurPage < 0 && texte.length() >= TAILLE_SECTION) {
+                transmettre(0);
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (!dansCorps) {
+                return;
+            }
+            texte.append(ch, start, length);
+            // Format sans pages ni paragraphes (ex : un fichier texte est un seul <p>) : couper à une fin de ligne
+            if (profondeurPage < 0 && texte.length() >= 2 * TAILLE_SECTION) {
+                int finLigne = texte.lastIndexOf("\n");
+                if (finLigne > 0) {
+                    String reste = texte.substring(finLigne + 1);
+                    texte.setLength(finLigne);
+                    transmettre(0);
+                    texte.append(reste);
+                }
+            }
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) {
+            characters(ch, start, length);
+        }
+
+        @Override
+        public void endDocument() {
+            transmettre(0);
+        }
+
+        private void transmettre(int numero) {
+            String contenu = texte.toString().strip();
+            texte.setLength(0);
+            if (contenu.isEmpty()) {
+                return;
+            }
+            Metriques.fin(Metriques.Etape.PARSING, debut);
+            consommateur.accept(new Page(numero, contenu));
+            debut = Metriques.debut();
+        }
+
+        private static String nom(String localName, String qName) {
+            return localName == null || localName.isEmpty() ? qName : localName;
+        }
+    }
+}
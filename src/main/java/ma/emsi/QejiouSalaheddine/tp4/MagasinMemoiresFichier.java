@@ -0,0 +1,219 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.ChatMessageDeserializer;
+import dev.langchain4j.data.message.ChatMessageSerializer;
+import dev.langchain4j.store.memory.chat.ChatMemoryStore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ChatMemoryStore persistant : les conversations survivent à un redémarrage sans être rejouées.
+ * <p>
+ * Le fichier est un journal en ajout seul (append-only). Chaque enregistrement contient un type, l'identifiant
+ * de session et des messages en JSON (ChatMessageSerializer) :
+ * <ul>
+ *     <li>'A' (ajout) : messages ajoutés à la fin de la liste précédente, le cas courant (un tour = 2 messages) ;</li>
+ *     <li>'R' (remplacement) : liste complète, quand le début a changé (éviction, résumé) ;</li>
+ *     <li>'S' (suppression) : session effacée.</li>
+ * </ul>
+ * Au démarrage, le journal est relu pour retrouver le dernier état de chaque session ; un enregistrement
+ * tronqué par un arrêt brutal est ignoré, et coupé du fichier avant que de nouveaux enregistrements y soient
+ * ajoutés. Le journal est ensuite compacté (un remplacement par session) s'il contient surtout des
+ * enregistrements obsolètes.
+ */
+public class MagasinMemoiresFichier implements ChatMemoryStore {
+
+    private static final int MAGIC = 0x5450344D; // "TP4M"
+
+    private final Path fichier;
+    private final Map<String, List<ChatMessage>> sessions = new LinkedHashMap<>();
+    private DataOutputStream journal;
+
+    public MagasinMemoiresFichier(Path fichier) {
+        this.fichier = fichier;
+        try {
+            Files.createDirectories(fichier.toAbsolutePath().getParent());
+            int enregistrements = Files.exists(fichier) ? relire() : 0;
+            if (enregistrements > 2 * sessions.size() + 100 || !Files.exists(fichier)) {
+                compacter();
+            }
+            journal = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(fichier, StandardOpenOption.APPEND)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Impossible d'ouvrir le journal des mémoires " + fichier, e);
+        }
+    }
+
+    /** Journal index-rag/memoires.log (répertoire tp4.index.dir). */
+    public static MagasinMemoiresFichier parDefaut() {
+        return new MagasinMemoiresFichier(IndexPersistant.repertoireParDefaut().resolve("memoires.log"));
+    }
+
+    @Override
+    public synchronized List<ChatMessage> getMessages(Object memoryId) {
+        return new ArrayList<>(sessions.getOrDefault(memoryId.toString(), List.of()));
+    }
+
+    @Override
+    public synchronized void updateMessages(Object memoryId, List<ChatMessage> messages) {
+        String session = memoryId.toString();
+        List<ChatMessage> anciens = sessions.get(session);
+        if (anciens != null && messages.size() >= anciens.size()
+                && messages.subList(0, anciens.size()).equals(anciens)) {
+            List<ChatMessage> ajoutes = messages.subList(anciens.size(), messages.size());
+            if (ajoutes.isEmpty()) {
+                return;
+            }
+            ecrire('A', session, ajoutes);
+        } else {
+            ecrire('R', session, messages);
+        }
+        sessions.put(session, List.copyOf(messages));
+    }
+
+    @Override
+    public synchronized void deleteMessages(Object memoryId) {
+        String session = memoryId.toString();
+        if (sessions.remove(session) != null) {
+            ecrire('S', session, List.of());
+        }
+    }
+
+    public synchronized int nombreSessions() {
+        return sessions.size();
+    }
+
+    private void ecrire(char type, String session, List<ChatMessage> messages) {
+        try {
+            ecrireEnregistrement(journal, type, session, messages);
+            journal.flush();
+        } catch (IOException e) {
+            System.err.println("Impossible d'écrire dans le journal des mémoires : " + e.getMessage());
+        }
+    }
+
+    private static void ecrireEnregistrement(DataOutputStream out, char type, String session,
+                                             List<ChatMessage> messages) throws IOException {
+        out.writeByte(type);
+        IndexPersistant.ecrireChaine(out, session);
+        IndexPersistant.ecrireChaine(out, ChatMessageSerializer.messagesToJson(messages));
+    }
+
+    /**
+     * Relit le journal et renvoie le nombre d'enregistrements lus. Un dernier enregistrement tronqué est coupé
+     * du fichier : sinon les ajouts suivants seraient écrits après ses octets et illisibles au redémarrage.
+     */
+    private int relire() throws IOException {
+        int enregistrements = 0;
+        long finComplete;
+        Compteur compteur = new Compteur(new BufferedInputStream(Files.newInputStream(fichier)));
+        try (DataInputStream in = new DataInputStream(compteur)) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("format inconnu");
+            }
+            finComplete = compteur.lus;
+            while (true) {
+                int type;
+                String session;
+                List<ChatMessage> messages;
+                try {
+                    type = in.readByte();
+                    session = IndexPersistant.lireChaine(in);
+                    messages = ChatMessageDeserializer.messagesFromJson(IndexPersistant.lireChaine(in));
+                } catch (EOFException e) {
+                    break; // fin du journal, ou dernier enregistrement tronqué
+                }
+                switch (type) {
+                    case 'A' -> {
+                        List<ChatMessage> courants = new ArrayList<>(sessions.getOrDefault(session, List.of()));
+                        courants.addAll(messages);
+                        sessions.put(session, courants);
+                    }
+                    case 'R' -> sessions.put(session, new ArrayList<>(messages));
+                    case 'S' -> sessions.remove(session);
+                    default -> throw new IOException("type d'enregistrement inconnu : " + type);
+                }
+                enregistrements++;
+                finComplete = compteur.lus;
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Journal des mémoires illisible (" + e.getMessage() + "), sessions relues : "
+                    + sessions.size() + ".");
+            return Integer.MAX_VALUE; // forcer la réécriture d'un journal propre
+        }
+        if (Files.size(fichier) > finComplete) {
+            System.err.println("Journal des mémoires : dernier enregistrement tronqué ("
+                    + (Files.size(fichier) - finComplete) + " octets), il est retiré.");
+            try (FileChannel canal = FileChannel.open(fichier, StandardOpenOption.WRITE)) {
+                canal.truncate(finComplete);
+            }
+        }
+        System.out.println("Mémoires de conversation rechargées : " + sessions.size() + " sessions.");
+        return enregistrements;
+    }
+
+    /** Réécrit le journal avec un seul remplacement par session (écriture atomique). */
+    private void compacter() throws IOException {
+        Path temporaire = fichier.resolveSibling(fichier.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaire)))) {
+            out.writeInt(MAGIC);
+            for (Map.Entry<String, List<ChatMessage>> session : sessions.entrySet()) {
+                ecrireEnregistrement(out, 'R', session.getKey(), session.getValue());
+            }
+        }
+        Files.move(temporaire, fichier, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Compte les octets consommés, pour situer la fin du dernier enregistrement complet. */
+    private static final class Compteur extends FilterInputStream {
+
+        long lus;
+
+        Compteur(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int octet = super.read();
+            if (octet >= 0) {
+                lus++;
+            }
+            return octet;
+        }
+
+        @Override
+        public int read(byte[] tampon, int debut, int longueur) throws IOException {
+            int nombre = super.read(tampon, debut, longueur);
+            if (nombre > 0) {
+                lus += nombre;
+            }
+            return nombre;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long sautes = super.skip(n);
+            lus += sautes;
+            return sautes;
+        }
+    }
+}
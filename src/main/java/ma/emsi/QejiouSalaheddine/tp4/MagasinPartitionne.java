@@ -0,0 +1,414 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.filter.Filter;
+import dev.langchain4j.store.embedding.filter.comparison.IsEqualTo;
+import dev.langchain4j.store.embedding.filter.comparison.IsIn;
+import dev.langchain4j.store.embedding.filter.logical.And;
+import dev.langchain4j.store.embedding.filter.logical.Or;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * EmbeddingStore partitionné : un seul magasin pour de nombreuses collections (une par document,
+ * métadonnée "source" par défaut), au lieu d'un InMemoryEmbeddingStore séparé par ressource.
+ * <ul>
+ *     <li>chaque collection est découpée en {@code partitionsParCollection} partitions selon le hash
+ *         du texte du segment, chacune étant un magasin ordinaire (tp4.store, ScanExactEmbeddingStore par défaut) :
+ *         une grosse collection n'est jamais un seul tableau, et sa recherche se répartit sur les cœurs ;</li>
+ *     <li>pré-filtrage : si le filtre de la requête porte sur la collection (isEqualTo, isIn, combinés
+ *         par and / or), seules les partitions de ces collections sont parcourues ;</li>
+ *     <li>les partitions sont interrogées en parallèle (fork-join : la liste est coupée en deux jusqu'à
+ *         des lots d'environ {@link #SEUIL_SEQUENTIEL} vecteurs), puis les k meilleurs de chaque moitié
+ *         sont fusionnés.</li>
+ * </ul>
+ * Chaque partition applique elle-même minScore, maxResults et le filtre complet : le résultat est le même
+ * que celui d'un magasin unique.
+ * <p>
+ * removeAll(Filter) est pré-filtré de la même façon : seules les partitions des collections visées sont parcourues.
+ * Chaque partition garde pour cela ses segments par identifiant (les mêmes objets que ceux du magasin),
+ * pour retirer les segments du filtre avec removeAll(ids) en tenant les tailles à jour.
+ * removeAll() et close() ferment les partitions qui le demandent (magasins hors tas).
+ */
+public class MagasinPartitionne implements EmbeddingStore<TextSegment>, AutoCloseable {
+
+    /** En dessous de ce nombre de vecteurs, les partitions sont parcourues sur le thread courant. */
+    static final int SEUIL_SEQUENTIEL = 20_000;
+
+    private static final String SANS_COLLECTION = "";
+
+    private static final class Partition {
+        final EmbeddingStore<TextSegment> store;
+        final AtomicInteger taille = new AtomicInteger();
+        /** Segments de la partition par identifiant (sans les embeddings ajoutés sans segment). */
+        final Map<String, TextSegment> segments = new ConcurrentHashMap<>();
+
+        Partition(EmbeddingStore<TextSegment> store) {
+            this.store = store;
+        }
+    }
+
+    private final String cleCollection;
+    private final int partitionsParCollection;
+    private final Supplier<EmbeddingStore<TextSegment>> fabrique;
+    private final Map<String, Partition[]> collections = new ConcurrentHashMap<>();
+    private final Map<String, Partition> partitionParId = new ConcurrentHashMap<>();
+    private final ForkJoinPool pool;
+
+    /**
+     * @param cleCollection           métadonnée qui désigne la collection d'un segment
+     * @param partitionsParCollection nombre de partitions (par hash) de chaque collection
+     * @param fabrique                crée le magasin vide d'une partition
+     */
+    public MagasinPartitionne(String cleCollection, int partitionsParCollection,
+                              Supplier<EmbeddingStore<TextSegment>> fabrique, ForkJoinPool pool) {
+        if (partitionsParCollection < 1) {
+            throw new IllegalArgumentException("Au moins une partition par collection");
+        }
+        this.cleCollection = cleCollection;
+        this.partitionsParCollection = partitionsParCollection;
+        this.fabrique = fabrique;
+        this.pool = pool;
+    }
+
+    /**
+     * Collections par métadonnée "source", tp4.partitions (nombre de cœurs par défaut) partitions
+     * par collection, magasins choisis par tp4.store.
+     */
+    public static MagasinPartitionne depuisConfiguration() {
+        return new MagasinPartitionne(IndexPersistant.METADONNEE_SOURCE,
+                (int) Configuration.entier("tp4.partitions", Runtime.getRuntime().availableProcessors()),
+                IndexPersistant::nouveauStore, ForkJoinPool.commonPool());
+    }
+
+    // --- Ajouts ---
+
+    @Override
+    public String add(Embedding embedding) {
+        return add(embedding, null);
+    }
+
+    /** Sans segment, donc sans collection : la partition est choisie par le hash de l'identifiant. */
+    @Override
+    public void add(String id, Embedding embedding) {
+        Partition[] partitions = partitions(SANS_COLLECTION);
+        Partition partition = partitions[Math.floorMod(id.hashCode(), partitions.length)];
+        remove(id); // un identifiant déjà présent est remplacé
+        partition.store.add(id, embedding);
+        partition.taille.incrementAndGet();
+        partitionParId.put(id, partition);
+    }
+
+    @Override
+    public String add(Embedding embedding, TextSegment textSegment) {
+        Partition partition = partition(textSegment);
+        String id = partition.store.add(embedding, textSegment);
+        partition.taille.incrementAndGet();
+        partitionParId.put(id, partition);
+        if (textSegment != null) {
+            partition.segments.put(id, textSegment);
+        }
+        return id;
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings) {
+        List<String> ids = new ArrayList<>(embeddings.size());
+        for (Embedding embedding : embeddings) {
+            ids.add(add(embedding));
+        }
+        return ids;
+    }
+
+    /** Les segments sont regroupés par partition, puis chaque partition reçoit un seul addAll. */
+    @Override
+    public List<String> addAll(List<Embedding> embeddings, List<TextSegment> textSegments) {
+        if (embeddings.size() != textSegments.size()) {
+            throw new IllegalArgumentException("Le nombre d'embeddings et de segments doit être identique");
+        }
+        Map<Partition, List<Integer>> parPartition = new LinkedHashMap<>();
+        for (int i = 0; i < textSegments.size(); i++) {
+            parPartition.computeIfAbsent(partition(textSegments.get(i)), p -> new ArrayList<>()).add(i);
+        }
+        String[] ids = new String[embeddings.size()];
+        for (Map.Entry<Partition, List<Integer>> entree : parPartition.entrySet()) {
+            Partition partition = entree.getKey();
+            List<Integer> positions = entree.getValue();
+            List<Embedding> lotEmbeddings = new ArrayList<>(positions.size());
+            List<TextSegment> lotSegments = new ArrayList<>(positions.size());
+            for (int position : positions) {
+                lotEmbeddings.add(embeddings.get(position));
+                lotSegments.add(textSegments.get(position));
+            }
+            List<String> lotIds = partition.store.addAll(lotEmbeddings, lotSegments);
+            for (int i = 0; i < positions.size(); i++) {
+                ids[positions.get(i)] = lotIds.get(i);
+                partitionParId.put(lotIds.get(i), partition);
+                if (lotSegments.get(i) != null) {
+                    partition.segments.put(lotIds.get(i), lotSegments.get(i));
+                }
+            }
+            partition.taille.addAndGet(positions.size());
+        }
+        return List.of(ids);
+    }
+
+    private Partition partition(TextSegment segment) {
+        Partition[] partitions = partitions(collection(segment));
+        int hash = segment == null ? UUID.randomUUID().hashCode() : segment.text().hashCode();
+        return partitions[Math.floorMod(hash, partitions.length)];
+    }
+
+    private Partition[] partitions(String collection) {
+        return collections.computeIfAbsent(collection, c -> {
+            Partition[] nouvelles = new Partition[partitionsParCollection];
+            for (int i = 0; i < nouvelles.length; i++) {
+                nouvelles[i] = new Partition(fabrique.get());
+            }
+            return nouvelles;
+        });
+    }
+
+    private String collection(TextSegment segment) {
+        if (segment == null || !segment.metadata().containsKey(cleCollection)) {
+            return SANS_COLLECTION;
+        }
+        return String.valueOf(segment.metadata().toMap().get(cleCollection));
+    }
+
+    // --- Suppressions ---
+
+    @Override
+    public void remove(String id) {
+        Partition partition = partitionParId.remove(id);
+        if (partition != null) {
+            partition.store.remove(id);
+            partition.taille.decrementAndGet();
+            partition.segments.remove(id);
+        }
+    }
+
+    @Override
+    public void removeAll(Collection<String> ids) {
+        for (String id : ids) {
+            remove(id);
+        }
+    }
+
+    /** Segments dont les métadonnées vérifient le filtre, cherchés dans les seules partitions ciblées. */
+    @Override
+    public void removeAll(Filter filter) {
+        if (filter == null) {
+            throw new IllegalArgumentException("Le filtre ne doit pas être null");
+        }
+        for (Partition partition : cibles(filter)) {
+            List<String> ids = new ArrayList<>();
+            partition.segments.forEach((id, segment) -> {
+                if (filter.test(segment.metadata())) {
+                    ids.add(id);
+                }
+            });
+            if (ids.isEmpty()) {
+                continue;
+            }
+            partition.store.removeAll(ids);
+            for (String id : ids) {
+                partition.segments.remove(id);
+                partitionParId.remove(id);
+            }
+            partition.taille.addAndGet(-ids.size());
+        }
+    }
+
+    /** Vide le magasin ; les partitions AutoCloseable (hors tas) sont fermées pour libérer leur mémoire. */
+    @Override
+    public void removeAll() {
+        List<Partition[]> anciennes = new ArrayList<>(collections.values());
+        collections.clear();
+        partitionParId.clear();
+        for (Partition[] partitions : anciennes) {
+            for (Partition partition : partitions) {
+                if (partition.store instanceof AutoCloseable fermable) {
+                    try {
+                        fermable.close();
+                    } catch (Exception e) {
+                        System.err.println("Erreur à la fermeture d'une partition : " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        removeAll();
+    }
+
+    // --- Recherche ---
+
+    @Override
+    public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+        List<Partition> cibles = cibles(request.filter());
+        if (cibles.isEmpty() || request.maxResults() <= 0) {
+            return new EmbeddingSearchResult<>(List.of());
+        }
+        return new EmbeddingSearchResult<>(pool.invoke(new Recherche(request, cibles, 0, cibles.size())));
+    }
+
+    /** Partitions des collections visées par le filtre (toutes s'il ne porte pas sur la collection). */
+    private List<Partition> cibles(Filter filtre) {
+        List<Partition> cibles = new ArrayList<>();
+        Set<String> collectionsCiblees = collectionsCiblees(filtre);
+        if (collectionsCiblees == null) {
+            for (Partition[] partitions : collections.values()) {
+                cibles.addAll(List.of(partitions));
+            }
+        } else {
+            for (String collection : collectionsCiblees) {
+                Partition[] partitions = collections.get(collection);
+                if (partitions != null) {
+                    cibles.addAll(List.of(partitions));
+                }
+            }
+        }
+        return cibles;
+    }
+
+    /**
+     * Collections auxquelles le filtre limite la recherche, ou null s'il ne porte pas (seulement)
+     * sur la collection : toutes les partitions sont alors parcourues.
+     */
+    Set<String> collectionsCiblees(Filter filtre) {
+        if (filtre instanceof IsEqualTo egal && cleCollection.equals(egal.key())) {
+            return Set.of(String.valueOf(egal.comparisonValue()));
+        }
+        if (filtre instanceof IsIn dans && cleCollection.equals(dans.key())) {
+            Set<String> valeurs = new HashSet<>();
+            for (Object valeur : dans.comparisonValues()) {
+                valeurs.add(String.valueOf(valeur));
+            }
+            return valeurs;
+        }
+        if (filtre instanceof And et) {
+            Set<String> gauche = collectionsCiblees(et.left());
+            Set<String> droite = collectionsCiblees(et.right());
+            if (gauche == null || droite == null) {
+                return gauche == null ? droite : gauche;
+            }
+            Set<String> communes = new HashSet<>(gauche);
+            communes.retainAll(droite);
+            return communes;
+        }
+        if (filtre instanceof Or ou) {
+            Set<String> gauche = collectionsCiblees(ou.left());
+            Set<String> droite = collectionsCiblees(ou.right());
+            if (gauche == null || droite == null) {
+                return null;
+            }
+            Set<String> toutes = new HashSet<>(gauche);
+            toutes.addAll(droite);
+            return toutes;
+        }
+        return null;
+    }
+
+    /** Recherche fork-join dans les partitions [debut, fin) : k meilleurs, par score décroissant. */
+    private static final class Recherche extends RecursiveTask<List<EmbeddingMatch<TextSegment>>> {
+
+        private final EmbeddingSearchRequest request;
+        private final List<Partition> partitions;
+        private final int debut;
+        private final int fin;
+
+        Recherche(EmbeddingSearchRequest request, List<Partition> partitions, int debut, int fin) {
+            this.request = request;
+            this.partitions = partitions;
+            this.debut = debut;
+            this.fin = fin;
+        }
+
+        @Override
+        protected List<EmbeddingMatch<TextSegment>> compute() {
+            long vecteurs = 0;
+            for (int i = debut; i < fin; i++) {
+                vecteurs += partitions.get(i).taille.get();
+            }
+            if (fin - debut == 1 || vecteurs <= SEUIL_SEQUENTIEL) {
+                List<EmbeddingMatch<TextSegment>> meilleurs = List.of();
+                for (int i = debut; i < fin; i++) {
+                    Partition partition = partitions.get(i);
+                    if (partition.taille.get() > 0) {
+                        meilleurs = fusionner(meilleurs, partition.store.search(request).matches(), request.maxResults());
+                    }
+                }
+                return meilleurs;
+            }
+            int milieu = (debut + fin) >>> 1;
+            Recherche gauche = new Recherche(request, partitions, debut, milieu);
+            gauche.fork();
+            List<EmbeddingMatch<TextSegment>> droite = new Recherche(request, partitions, milieu, fin).compute();
+            return fusionner(gauche.join(), droite, request.maxResults());
+        }
+    }
+
+    /** Fusion de deux listes triées par score décroissant, limitée aux k meilleurs. */
+    static List<EmbeddingMatch<TextSegment>> fusionner(List<EmbeddingMatch<TextSegment>> a,
+                                                       List<EmbeddingMatch<TextSegment>> b, int k) {
+        if (b.isEmpty()) {
+            return a;
+        }
+        if (a.isEmpty()) {
+            return b;
+        }
+        List<EmbeddingMatch<TextSegment>> resultat = new ArrayList<>(Math.min(k, a.size() + b.size()));
+        int i = 0;
+        int j = 0;
+        while (resultat.size() < k && (i < a.size() || j < b.size())) {
+            if (j >= b.size() || (i < a.size() && a.get(i).score() >= b.get(j).score())) {
+                resultat.add(a.get(i++));
+            } else {
+                resultat.add(b.get(j++));
+            }
+        }
+        return resultat;
+    }
+
+    // --- Statistiques ---
+
+    public int nombreCollections() {
+        return collections.size();
+    }
+
+    public int nombrePartitions() {
+        return collections.size() * partitionsParCollection;
+    }
+
+    /** Nombre de segments d'une collection (0 si elle n'existe pas). */
+    public int taille(String collection) {
+        Partition[] partitions = collections.get(collection);
+        int taille = 0;
+        if (partitions != null) {
+            for (Partition partition : partitions) {
+                taille += partition.taille.get();
+            }
+        }
+        return taille;
+    }
+}
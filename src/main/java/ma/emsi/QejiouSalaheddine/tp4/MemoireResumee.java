@@ -0,0 +1,279 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.memory.ChatMemory;
+import dev.langchain4j.memory.chat.ChatMemoryProvider;
+import dev.langchain4j.memory.chat.MessageWindowChatMemory;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.store.memory.chat.ChatMemoryStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Mémoire de conversation bornée par un budget de tokens au lieu d'un nombre de messages.
+ * <p>
+ * Quand les messages dépassent le budget, les tours les plus anciens (jusqu'à revenir à la moitié du budget)
+ * sont résumés en arrière-plan par le ChatModel, et le résumé remplace ces messages : la taille du prompt
+ * reste à peu près constante au fil de la conversation. Pendant le résumé, les anciens messages restent
+ * envoyés tels quels ; si le résumé échoue, ils sont simplement oubliés (comme dans MessageWindowChatMemory).
+ * <p>
+ * L'état est relu et écrit dans le ChatMemoryStore à chaque opération (comme MessageWindowChatMemory) :
+ * avec {@link MagasinMemoiresFichier}, les sessions survivent à un redémarrage. Le résumé y est rangé
+ * comme un SystemMessage qui commence par "Résumé de la conversation précédente".
+ * <p>
+ * Avec un ContentRetriever, AiServices ajoute à la mémoire la question augmentée des passages retrouvés.
+ * Seule la question (le texte avant "Answer using the following information:") est comptée et sauvegardée :
+ * les extraits ne remplissent pas le budget et ne sont pas recopiés dans le journal. La version augmentée
+ * de la dernière question reste renvoyée par {@link #messages()} pendant le tour en cours, pour que le modèle
+ * reçoive bien les passages.
+ * Les tokens sont estimés à 4 caractères par token (pas de tokenizer Gemini local).
+ */
+public class MemoireResumee implements ChatMemory {
+
+    private static final String PREFIXE_RESUME = "Résumé de la conversation précédente : ";
+    /** Début des passages ajoutés par le DefaultContentInjector de LangChain4j. */
+    private static final String MARQUEUR_PASSAGES = "Answer using the following information:";
+    private static final ExecutorService RESUMEUR = Executors.newVirtualThreadPerTaskExecutor();
+
+    /** Contenu du store : message système, résumé et messages de la conversation. */
+    private record Etat(SystemMessage systeme, String resume, List<ChatMessage> messages) {
+    }
+
+    private final Object id;
+    private final int budgetTokens;
+    private final ChatLanguageModel chatModel;
+    private final ChatMemoryStore store;
+
+    /** Messages en tête de conversation en cours de résumé (0 si aucun résumé en cours). */
+    private int enResume;
+    /** Dernière question telle que reçue (avec les passages), et telle que sauvegardée (null si non augmentée). */
+    private UserMessage questionAugmentee;
+    private UserMessage questionSauvegardee;
+
+    public MemoireResumee(Object id, int budgetTokens, ChatLanguageModel chatModel, ChatMemoryStore store) {
+        this.id = id;
+        this.budgetTokens = budgetTokens;
+        this.chatModel = chatModel;
+        this.store = store;
+    }
+
+    /**
+     * Mémoire choisie par tp4.memoire : "fenetre" (10 messages, par défaut) ou "resume"
+     * (budget tp4.memoire.tokens, 1000 par défaut, sauvegardé dans index-rag/memoires.log).
+     *
+     * @param conversation identifiant de la conversation dans le journal (ex : nom du programme),
+     *                     remplacé par tp4.memoire.id s'il est défini ; chaque programme retrouve ainsi la sienne
+     */
+    public static ChatMemory depuisConfiguration(ChatLanguageModel chatModel, String conversation) {
+        if (!"resume".equals(Configuration.valeur("tp4.memoire", "fenetre"))) {
+            return MessageWindowChatMemory.withMaxMessages(10);
+        }
+        return new MemoireResumee(Configuration.valeur("tp4.memoire.id", conversation),
+                (int) Configuration.entier("tp4.memoire.tokens", 1_000), chatModel, MagasinMemoiresFichier.parDefaut());
+    }
+
+    /** Une mémoire résumée par session (AiServices la garde pour les questions suivantes), toutes dans le même store. */
+    public static ChatMemoryProvider fournisseur(ChatLanguageModel chatModel, ChatMemoryStore store, int budgetTokens) {
+        return session -> new MemoireResumee(session, budgetTokens, chatModel, store);
+    }
+
+    @Override
+    public Object id() {
+        return id;
+    }
+
+    @Override
+    public synchronized void add(ChatMessage message) {
+        Etat etat = lire();
+        Etat nouvel;
+        if (message instanceof SystemMessage systeme) {
+            if (systeme.equals(etat.systeme())) {
+                return;
+            }
+            nouvel = new Etat(systeme, etat.resume(), etat.messages());
+        } else {
+            if (message instanceof UserMessage question) {
+                UserMessage sansPassages = sansPassages(question);
+                questionAugmentee = sansPassages != question ? question : null;
+                questionSauvegardee = sansPassages != question ? sansPassages : null;
+                message = sansPassages;
+            }
+            List<ChatMessage> messages = new ArrayList<>(etat.messages());
+            messages.add(message);
+            nouvel = new Etat(etat.systeme(), etat.resume(), messages);
+        }
+        ecrire(nouvel);
+        lancerResumeSiNecessaire(nouvel);
+    }
+
+    @Override
+    public synchronized List<ChatMessage> messages() {
+        List<ChatMessage> messages = enListe(lire());
+        if (questionAugmentee != null) {
+            // Tour en cours (y compris les appels d'outils) : la dernière question est renvoyée avec ses passages
+            for (int i = messages.size() - 1; i >= 0; i--) {
+                if (messages.get(i) instanceof UserMessage) {
+                    if (messages.get(i).equals(questionSauvegardee)) {
+                        messages.set(i, questionAugmentee);
+                    }
+                    break;
+                }
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public synchronized void clear() {
+        enResume = 0;
+        questionAugmentee = null;
+        questionSauvegardee = null;
+        store.deleteMessages(id);
+    }
+
+    /** Tokens estimés des messages de la conversation (hors message système et résumé). */
+    public synchronized int tokens() {
+        return tokens(lire().messages());
+    }
+
+    private void lancerResumeSiNecessaire(Etat etat) {
+        List<ChatMessage> messages = etat.messages();
+        if (enResume > 0 || tokens(messages) <= budgetTokens) {
+            return;
+        }
+        // Tours les plus anciens jusqu'à revenir à la moitié du budget ; la conversation gardée
+        // commence par une question de l'utilisateur, et le dernier message est toujours gardé
+        int debutGarde = 0;
+        while (debutGarde < messages.size() - 1
+                && (tokens(messages.subList(debutGarde, messages.size())) > budgetTokens / 2
+                || !(messages.get(debutGarde) instanceof UserMessage))) {
+            debutGarde++;
+        }
+        if (debutGarde == 0) {
+            return;
+        }
+        enResume = debutGarde;
+        List<ChatMessage> aResumer = List.copyOf(messages.subList(0, debutGarde));
+        String resumePrecedent = etat.resume();
+        RESUMEUR.execute(() -> resumer(resumePrecedent, aResumer));
+    }
+
+    private void resumer(String resumePrecedent, List<ChatMessage> aResumer) {
+        String resume = null;
+        try {
+            resume = chatModel.generate(consigne(resumePrecedent, aResumer)).strip();
+        } catch (RuntimeException e) {
+            System.err.println("Résumé de la conversation impossible (" + e.getMessage()
+                    + "), les messages les plus anciens sont oubliés.");
+        }
+        synchronized (this) {
+            enResume = 0;
+            Etat etat = lire();
+            List<ChatMessage> messages = etat.messages();
+            // La session a pu être effacée (clear, purge du serveur) pendant le résumé
+            if (messages.size() < aResumer.size() || !messages.subList(0, aResumer.size()).equals(aResumer)) {
+                return;
+            }
+            Etat nouvel = new Etat(etat.systeme(), resume != null ? resume : resumePrecedent,
+                    new ArrayList<>(messages.subList(aResumer.size(), messages.size())));
+            ecrire(nouvel);
+            lancerResumeSiNecessaire(nouvel);
+        }
+    }
+
+    private String consigne(String resumePrecedent, List<ChatMessage> aResumer) {
+        StringBuilder consigne = new StringBuilder()
+                .append("Résume la conversation suivante en français, en au plus ")
+                .append(Math.max(50, budgetTokens / 5))
+                .append(" mots. Garde les faits, les préférences de l'utilisateur et les réponses importantes ; ")
+                .append("ignore les extraits de documents recopiés dans les questions.\n\n");
+        if (resumePrecedent != null) {
+            consigne.append("Résumé des échanges plus anciens : ").append(resumePrecedent).append("\n\n");
+        }
+        for (ChatMessage message : aResumer) {
+            String texte = texte(message);
+            if (texte == null) {
+                continue;
+            }
+            consigne.append(message instanceof UserMessage ? "Utilisateur : " : "Assistant : ")
+                    .append(texte).append('\n');
+        }
+        return consigne.toString();
+    }
+
+    private Etat lire() {
+        SystemMessage systeme = null;
+        String resume = null;
+        List<ChatMessage> messages = new ArrayList<>();
+        for (ChatMessage message : store.getMessages(id)) {
+            if (message instanceof SystemMessage systemMessage) {
+                if (systemMessage.text().startsWith(PREFIXE_RESUME)) {
+                    resume = systemMessage.text().substring(PREFIXE_RESUME.length());
+                } else {
+                    systeme = systemMessage;
+                }
+            } else {
+                messages.add(message);
+            }
+        }
+        return new Etat(systeme, resume, messages);
+    }
+
+    private void ecrire(Etat etat) {
+        store.updateMessages(id, enListe(etat));
+    }
+
+    private static List<ChatMessage> enListe(Etat etat) {
+        List<ChatMessage> messages = new ArrayList<>(etat.messages().size() + 2);
+        if (etat.systeme() != null) {
+            messages.add(etat.systeme());
+        }
+        if (etat.resume() != null) {
+            messages.add(SystemMessage.from(PREFIXE_RESUME + etat.resume()));
+        }
+        messages.addAll(etat.messages());
+        return messages;
+    }
+
+    /** Question sans les passages ajoutés par le retriever (le message d'origine s'il n'y en a pas). */
+    static UserMessage sansPassages(UserMessage question) {
+        if (!question.hasSingleText()) {
+            return question;
+        }
+        int marqueur = question.singleText().indexOf(MARQUEUR_PASSAGES);
+        if (marqueur < 0) {
+            return question;
+        }
+        String texte = question.singleText().substring(0, marqueur).strip();
+        return question.name() != null ? UserMessage.from(question.name(), texte) : UserMessage.from(texte);
+    }
+
+    private static int tokens(List<ChatMessage> messages) {
+        int tokens = 0;
+        for (ChatMessage message : messages) {
+            String texte = texte(message);
+            tokens += 4 + (texte == null ? 0 : (texte.length() + 3) / 4);
+        }
+        return tokens;
+    }
+
+    private static String texte(ChatMessage message) {
+        if (message instanceof UserMessage userMessage) {
+            return userMessage.hasSingleText() ? userMessage.singleText() : null;
+        } else if (message instanceof AiMessage aiMessage) {
+            return aiMessage.text();
+        } else if (message instanceof ToolExecutionResultMessage resultat) {
+            return resultat.text();
+        } else if (message instanceof SystemMessage systemMessage) {
+            return systemMessage.text();
+        }
+        return null;
+    }
+}
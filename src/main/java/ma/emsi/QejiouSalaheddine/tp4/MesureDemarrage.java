@@ -0,0 +1,89 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
+import dev.langchain4j.rag.content.retriever.EmbeddingStoreContentRetriever;
+import dev.langchain4j.service.AiServices;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Parcours de démarrage type (modèle d'embedding, index du PDF, ChatModel, assistant, première question),
+ * mesuré depuis le lancement de la JVM jusqu'à la première réponse.
+ * <ul>
+ *     <li>lancé seul : affiche le temps jusqu'à la première réponse, avec ou sans -Dtp4.demarrage.rapide=true ;</li>
+ *     <li>exécution d'entraînement de l'archive AppCDS (profil Maven "cds") : avec -Dtp4.demarrage.entrainement=true,
+ *         le PDF est aussi relu avec Tika, pour que ses classes soient dans l'archive même si l'index est sur le disque ;</li>
+ *     <li>utilisé par BenchDemarrage (JMH, une mesure par JVM neuve).</li>
+ * </ul>
+ * Le ChatModel est simulé par défaut (sans latence) : seul le coût du démarrage est mesuré.
+ */
+public class MesureDemarrage {
+
+    private static final String QUESTION = "Qu'est-ce que le RAG ?";
+
+    public static void main(String[] args) {
+        if (Configuration.valeur("tp4.modele") == null) {
+            System.setProperty("tp4.modele", "simule");
+            System.setProperty("tp4.simule.llm.latence.ms", "0");
+            System.setProperty("tp4.simule.llm.token.ms", "0");
+        }
+        long lancementMain = Disponibilite.depuisLancementMs();
+        long debut = System.nanoTime();
+
+        if (Boolean.parseBoolean(Configuration.valeur("tp4.demarrage.entrainement", "false"))) {
+            entrainerTika();
+        }
+        String reponse = premiereReponse();
+
+        System.out.println("Réponse : " + reponse);
+        System.out.println("Démarrage " + (Disponibilite.demarrageRapide() ? "rapide" : "classique")
+                + " : JVM -> main " + lancementMain + " ms, main -> première réponse "
+                + (System.nanoTime() - debut) / 1_000_000 + " ms, JVM -> première réponse "
+                + Disponibilite.depuisLancementMs() + " ms.");
+        System.exit(0); // threads des modèles et du cache d'embeddings
+    }
+
+    /** Construit l'assistant comme RagNaif (sans mémoire) et renvoie sa réponse à une première question. */
+    static String premiereReponse() {
+        EmbeddingModel embeddingModel = Modeles.embeddingModel();
+        ContentRetriever contentRetriever;
+        if (Disponibilite.demarrageRapide()) {
+            CompletableFuture<ContentRetriever> retriever = Disponibilite.charger("index-rag.pdf",
+                    () -> creerRetriever(embeddingModel));
+            contentRetriever = query -> Disponibilite.attendre(retriever).retrieve(query);
+        } else {
+            contentRetriever = creerRetriever(embeddingModel);
+        }
+        ChatLanguageModel chatModel = Modeles.chatModel(0.3);
+        Assistant assistant = AiServices.builder(Assistant.class)
+                .chatLanguageModel(chatModel)
+                .contentRetriever(contentRetriever)
+                .build();
+        return assistant.chat(QUESTION);
+    }
+
+    private static ContentRetriever creerRetriever(EmbeddingModel embeddingModel) {
+        IndexPersistant.Index index = IndexPersistant.parDefaut().charger("/rag.pdf", embeddingModel);
+        return EmbeddingStoreContentRetriever.builder()
+                .embeddingStore(index.embeddingStore())
+                .embeddingModel(embeddingModel)
+                .maxResults(2)
+                .minScore(0.5)
+                .build();
+    }
+
+    /** Lecture complète du PDF, pour charger les classes de Tika pendant l'entraînement AppCDS. */
+    private static void entrainerTika() {
+        try (InputStream pdf = MesureDemarrage.class.getResourceAsStream("/rag.pdf")) {
+            if (pdf != null) {
+                LecteurParPages.lire(pdf, page -> { });
+            }
+        } catch (IOException e) {
+            System.err.println("Lecture du PDF d'entraînement impossible : " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Métriques du pipeline RAG : un histogramme HDR de latence et des compteurs par étape,
+ * plus des distributions (tailles des prompts et des réponses, scores de retrieval) et des compteurs
+ * (refus de quota, nouvelles tentatives, appels fusionnés et délais dépassés du ChatModel résilient).
+ * <p>
+ * Activées avec tp4.metriques=true (lu par {@link Configuration}). Désactivées, {@link #ACTIF} est une constante fausse :
+ * le JIT élimine les enregistrements, et {@link Instrumentation} renvoie les objets d'origine
+ * sans décorateur. Les valeurs sont publiées par un {@link ExporteurMetriques}
+ * (JMX par défaut, choisi avec tp4.metriques.exporteur=jmx|aucun) et résumées à l'arrêt de la JVM.
+ */
+public final class Metriques {
+
+    public static final boolean ACTIF = Boolean.parseBoolean(Configuration.valeur("tp4.metriques", "false"));
+
+    /** Étapes chronométrées. */
+    public enum Etape {
+        PARSING("parse"),
+        DECOUPAGE("split"),
+        EMBEDDING("embed"),
+        EMBEDDING_REQUETE("query-embed"),
+        RECHERCHE_VECTORIELLE("vector-search"),
+        RECHERCHE_LEXICALE("lexical-search"),
+        ROUTAGE("route"),
+        RECHERCHE_WEB("web-search"),
+        APPEL_LLM("llm");
+
+        private final String nom;
+
+        Etape(String nom) {
+            this.nom = nom;
+        }
+
+        public String nom() {
+            return nom;
+        }
+    }
+
+    /** Distributions de valeurs (hors latence). Les scores sont enregistrés en millièmes. */
+    public enum Distribution {
+        TAILLE_PROMPT("prompt-chars"),
+        TAILLE_REPONSE("response-chars"),
+        SCORE_RETRIEVAL("retrieval-score-millis");
+
+        private final String nom;
+
+        Distribution(String nom) {
+            this.nom = nom;
+        }
+
+        public String nom() {
+            return nom;
+        }
+    }
+
+    /** Compteurs d'événements de la couche de résilience du ChatModel ({@link ChatModelResilient}). */
+    public enum Compteur {
+        REFUS_QUOTA("llm-quota-refusals"),
+        REESSAI("llm-retries"),
+        FUSION("llm-coalesced"),
+        DELAI_DEPASSE("llm-timeouts");
+
+        private final String nom;
+
+        Compteur(String nom) {
+            this.nom = nom;
+        }
+
+        public String nom() {
+            return nom;
+        }
+    }
+
+    /** Statistiques d'une étape à un instant donné (latences en millisecondes). */
+    public record Statistiques(String nom, long nombre, long erreurs,
+                               double moyenneMs, double p50Ms, double p90Ms, double p99Ms, double p999Ms, double maxMs) {
+    }
+
+    private static final Map<Etape, Histogram> LATENCES = new EnumMap<>(Etape.class);
+    private static final Map<Etape, LongAdder> ERREURS = new EnumMap<>(Etape.class);
+    private static final Map<Distribution, Histogram> DISTRIBUTIONS = new EnumMap<>(Distribution.class);
+    private static final Map<Compteur, LongAdder> COMPTEURS = new EnumMap<>(Compteur.class);
+
+    static {
+        for (Etape etape : Etape.values()) {
+            // 3 chiffres significatifs, plage ajustée automatiquement
+            LATENCES.put(etape, new ConcurrentHistogram(3));
+            ERREURS.put(etape, new LongAdder());
+        }
+        for (Distribution distribution : Distribution.values()) {
+            DISTRIBUTIONS.put(distribution, new ConcurrentHistogram(3));
+        }
+        for (Compteur compteur : Compteur.values()) {
+            COMPTEURS.put(compteur, new LongAdder());
+        }
+    }
+
+    private static boolean installe;
+
+    private Metriques() {
+    }
+
+    /**
+     * À appeler au début de main : démarre l'exporteur et affiche un résumé à l'arrêt.
+     * Sans effet si les métriques sont désactivées.
+     */
+    public static synchronized void installer() {
+        if (!ACTIF || installe) {
+            return;
+        }
+        installe = true;
+        String type = Configuration.valeur("tp4.metriques.exporteur", "jmx");
+        switch (type) {
+            case "jmx" -> new ExporteurJmx().exporter();
+            case "aucun" -> {
+            }
+            default -> System.err.println("Exporteur de métriques inconnu : " + type + " (ignoré).");
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(resume())));
+        System.out.println("Métriques activées (exporteur : " + type + ").");
+    }
+
+    /** Début d'une mesure : à passer à {@link #fin} ou {@link #echec}. */
+    public static long debut() {
+        return ACTIF ? System.nanoTime() : 0;
+    }
+
+    public static void fin(Etape etape, long debut) {
+        if (ACTIF) {
+            LATENCES.get(etape).recordValue(Math.max(0, System.nanoTime() - debut));
+        }
+    }
+
+    /** Enregistre la latence d'une étape terminée en erreur, et compte l'erreur. */
+    public static void echec(Etape etape, long debut) {
+        if (ACTIF) {
+            fin(etape, debut);
+            ERREURS.get(etape).increment();
+        }
+    }
+
+    public static void enregistrer(Distribution distribution, long valeur) {
+        if (ACTIF) {
+            DISTRIBUTIONS.get(distribution).recordValue(Math.max(0, valeur));
+        }
+    }
+
+    public static void compter(Compteur compteur) {
+        if (ACTIF) {
+            COMPTEURS.get(compteur).increment();
+        }
+    }
+
+    public static long compteur(Compteur compteur) {
+        return COMPTEURS.get(compteur).sum();
+    }
+
+    public static Statistiques statistiques(Etape etape) {
+        Histogram copie = LATENCES.get(etape).copy();
+        return new Statistiques(etape.nom(), copie.getTotalCount(), ERREURS.get(etape).sum(),
+                copie.getMean() / 1e6,
+                copie.getValueAtPercentile(50) / 1e6,
+                copie.getValueAtPercentile(90) / 1e6,
+                copie.getValueAtPercentile(99) / 1e6,
+                copie.getValueAtPercentile(99.9) / 1e6,
+                copie.getMaxValue() / 1e6);
+    }
+
+    /** Copie de la distribution (valeurs brutes : caractères, ou millièmes pour les scores). */
+    public static Histogram distribution(Distribution distribution) {
+        return DISTRIBUTIONS.get(distribution).copy();
+    }
+
+    /** Tableau récapitulatif des étapes, distributions et compteurs. */
+    public static String resume() {
+        StringBuilder texte = new StringBuilder("=== Métriques ===\n");
+        texte.append(String.format(Locale.ROOT, "%-16s %8s %7s %9s %9s %9s %9s %9s%n",
+                "étape", "nombre", "erreurs", "moy(ms)", "p50", "p99", "p99.9", "max"));
+        for (Etape etape : Etape.values()) {
+            Statistiques s = statistiques(etape);
+            if (s.nombre() == 0) {
+                continue;
+            }
+            texte.append(String.format(Locale.ROOT, "%-16s %8d %7d %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                    s.nom(), s.nombre(), s.erreurs(), s.moyenneMs(), s.p50Ms(), s.p99Ms(), s.p999Ms(), s.maxMs()));
+        }
+        for (Distribution distribution : Distribution.values()) {
+            Histogram h = distribution(distribution);
+            if (h.getTotalCount() == 0) {
+                continue;
+            }
+            texte.append(String.format(Locale.ROOT, "%-24s n=%d moy=%.1f p50=%d p99=%d max=%d%n",
+                    distribution.nom(), h.getTotalCount(), h.getMean(),
+                    h.getValueAtPercentile(50), h.getValueAtPercentile(99), h.getMaxValue()));
+        }
+        for (Compteur compteur : Compteur.values()) {
+            long valeur = compteur(compteur);
+            if (valeur > 0) {
+                texte.append(String.format(Locale.ROOT, "%-24s %d%n", compteur.nom(), valeur));
+            }
+        }
+        return texte.toString();
+    }
+
+    /** Remet toutes les métriques à zéro (ex : après un préchauffage). */
+    public static void reinitialiser() {
+        LATENCES.values().forEach(Histogram::reset);
+        ERREURS.values().forEach(LongAdder::reset);
+        DISTRIBUTIONS.values().forEach(Histogram::reset);
+        COMPTEURS.values().forEach(LongAdder::reset);
+    }
+}
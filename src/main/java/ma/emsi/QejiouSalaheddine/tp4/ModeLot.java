@@ -0,0 +1,319 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.service.Result;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Mode lot : les questions d'un fichier sont posées en parallèle à l'assistant, au lieu d'être tapées
+ * une par une dans conversationAvec (tests de non-régression, génération de FAQ).
+ * <p>
+ * Activé avec -Dtp4.lot=questions.txt (une question par ligne ; lignes vides et lignes en # ignorées ;
+ * l'identifiant d'une question est son numéro de ligne). Chaque question tourne sur un thread virtuel,
+ * avec au plus tp4.lot.concurrence (8 par défaut) questions en cours ; le débit des appels à Gemini est
+ * limité à part par tp4.gemini.requetes.minute (voir {@link Modeles#chatModel}).
+ * <p>
+ * Les résultats sont écrits au fil de l'eau dans tp4.lot.sortie (par défaut questions.txt.resultats.jsonl),
+ * un objet JSON par ligne : id, question, reponse, latenceMs, sources (source, page, index, url des segments
+ * injectés) ou erreur. Après un arrêt brutal, relancer la même commande reprend là où le lot s'était arrêté :
+ * les questions déjà réussies dans le fichier de sortie sont ignorées, celles en erreur sont reposées.
+ */
+public class ModeLot {
+
+    private static final Pattern ID = Pattern.compile("\"id\":(\\d+)");
+    private static final int PROGRESSION = 100;
+
+    /** Assistant sans mémoire de conversation : les questions d'un lot sont indépendantes. */
+    public interface AssistantLot {
+        Result<String> chat(String question);
+    }
+
+    /** Question d'un lot : id = numéro de ligne dans le fichier. */
+    record Question(int id, String texte) {
+    }
+
+    /** Bilan d'un lot ; latences des questions réussies de cette exécution, en millisecondes. */
+    public record Bilan(int total, int reussies, int echecs, int ignorees, Duration duree, long p50, long p95) {
+    }
+
+    private final Path questions;
+    private final Path sortie;
+    private final int concurrence;
+
+    public ModeLot(Path questions, Path sortie, int concurrence) {
+        if (concurrence < 1) {
+            throw new IllegalArgumentException("tp4.lot.concurrence doit être au moins 1");
+        }
+        this.questions = questions;
+        this.sortie = sortie;
+        this.concurrence = concurrence;
+    }
+
+    /** Mode lot demandé avec -Dtp4.lot=... */
+    public static boolean actif() {
+        return Configuration.valeur("tp4.lot") != null;
+    }
+
+    public static ModeLot depuisConfiguration() {
+        Path questions = Path.of(Configuration.obligatoire("tp4.lot"));
+        Path sortie = Path.of(Configuration.valeur("tp4.lot.sortie", questions + ".resultats.jsonl"));
+        return new ModeLot(questions, sortie, (int) Configuration.entier("tp4.lot.concurrence", 8));
+    }
+
+    /** Lance le lot configuré et affiche son bilan ; les erreurs de fichier sont affichées sur System.err. */
+    public static void lancer(AssistantLot assistant) {
+        try {
+            ModeLot lot = depuisConfiguration();
+            Bilan bilan = lot.executer(assistant);
+            System.out.println("Lot terminé en " + bilan.duree().toSeconds() + " s : " + bilan.reussies()
+                    + " réussies, " + bilan.echecs() + " en erreur, " + bilan.ignorees()
+                    + " déjà traitées ; latence p50 = " + bilan.p50() + " ms, p95 = " + bilan.p95()
+                    + " ms. Résultats : " + lot.sortie);
+        } catch (UncheckedIOException | IllegalArgumentException | IllegalStateException e) {
+            System.err.println("Erreur du mode lot : " + e.getMessage());
+        }
+    }
+
+    public Bilan executer(AssistantLot assistant) {
+        long debut = System.nanoTime();
+        List<Question> toutes = lireQuestions();
+        Set<Integer> dejaTraitees = lireReussies();
+        List<Question> aFaire = new ArrayList<>();
+        for (Question question : toutes) {
+            if (!dejaTraitees.contains(question.id())) {
+                aFaire.add(question);
+            }
+        }
+        System.out.println("Lot de " + toutes.size() + " questions, " + aFaire.size() + " à traiter ("
+                + concurrence + " en parallèle).");
+
+        AtomicInteger reussies = new AtomicInteger();
+        AtomicInteger echecs = new AtomicInteger();
+        long[] latences = new long[aFaire.size()];
+        Semaphore places = new Semaphore(concurrence);
+        try (Sortie ecrivain = new Sortie(sortie);
+             ExecutorService executeur = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < aFaire.size(); i++) {
+                Question question = aFaire.get(i);
+                int rang = i;
+                places.acquireUninterruptibly();
+                executeur.execute(() -> {
+                    try {
+                        long debutQuestion = System.nanoTime();
+                        String ligne;
+                        try {
+                            Result<String> resultat = assistant.chat(question.texte());
+                            long latence = (System.nanoTime() - debutQuestion) / 1_000_000;
+                            latences[rang] = latence;
+                            ligne = enJson(question, resultat, latence);
+                            reussies.incrementAndGet();
+                        } catch (RuntimeException e) {
+                            latences[rang] = -1;
+                            ligne = enJsonErreur(question, e, (System.nanoTime() - debutQuestion) / 1_000_000);
+                            echecs.incrementAndGet();
+                        }
+                        int faites = ecrivain.ecrire(ligne);
+                        if (faites % PROGRESSION == 0) {
+                            System.out.println(faites + " / " + aFaire.size() + " questions traitées.");
+                        }
+                    } finally {
+                        places.release();
+                    }
+                });
+            }
+        } // close() attend la fin de toutes les questions
+
+        long[] reussiesTriees = Arrays.stream(latences).filter(latence -> latence >= 0).sorted().toArray();
+        return new Bilan(toutes.size(), reussies.get(), echecs.get(), toutes.size() - aFaire.size(),
+                Duration.ofNanos(System.nanoTime() - debut),
+                centile(reussiesTriees, 0.50), centile(reussiesTriees, 0.95));
+    }
+
+    private List<Question> lireQuestions() {
+        List<String> lignes;
+        try {
+            lignes = Files.readAllLines(questions, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Impossible de lire les questions " + questions, e);
+        }
+        List<Question> resultat = new ArrayList<>();
+        for (int i = 0; i < lignes.size(); i++) {
+            String ligne = lignes.get(i).strip();
+            if (!ligne.isEmpty() && !ligne.startsWith("#")) {
+                resultat.add(new Question(i + 1, ligne));
+            }
+        }
+        return resultat;
+    }
+
+    /** Identifiants des questions déjà réussies dans le fichier de sortie (reprise après un arrêt). */
+    private Set<Integer> lireReussies() {
+        Set<Integer> ids = new HashSet<>();
+        if (!Files.exists(sortie)) {
+            return ids;
+        }
+        try {
+            for (String ligne : Files.readAllLines(sortie, StandardCharsets.UTF_8)) {
+                Matcher matcher = ID.matcher(ligne);
+                // Une ligne tronquée par l'arrêt ne se termine pas par "}" : la question est reposée
+                if (ligne.startsWith("{") && ligne.endsWith("}") && matcher.find() && !ligne.contains("\"erreur\":")) {
+                    ids.add(Integer.parseInt(matcher.group(1)));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Impossible de relire les résultats " + sortie, e);
+        }
+        return ids;
+    }
+
+    static String enJson(Question question, Result<String> resultat, long latenceMs) {
+        StringBuilder json = debutJson(question, latenceMs);
+        json.append(",\"reponse\":").append(chaine(resultat.content())).append(",\"sources\":[");
+        List<Content> sources = resultat.sources() == null ? List.of() : resultat.sources();
+        for (int i = 0; i < sources.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            source(json, sources.get(i).textSegment());
+        }
+        return json.append("]}").toString();
+    }
+
+    static String enJsonErreur(Question question, RuntimeException erreur, long latenceMs) {
+        String message = erreur.getMessage() != null ? erreur.getMessage() : erreur.getClass().getSimpleName();
+        return debutJson(question, latenceMs).append(",\"erreur\":").append(chaine(message)).append('}').toString();
+    }
+
+    private static StringBuilder debutJson(Question question, long latenceMs) {
+        return new StringBuilder(256)
+                .append("{\"id\":").append(question.id())
+                .append(",\"question\":").append(chaine(question.texte()))
+                .append(",\"latenceMs\":").append(latenceMs);
+    }
+
+    private static void source(StringBuilder json, TextSegment segment) {
+        json.append('{');
+        boolean premier = true;
+        if (segment != null) {
+            Metadata metadonnees = segment.metadata();
+            for (String cle : List.of(IndexPersistant.METADONNEE_SOURCE, LecteurParPages.METADONNEE_PAGE, "index", "url")) {
+                if (metadonnees.containsKey(cle)) {
+                    json.append(premier ? "" : ",").append(chaine(cle)).append(':')
+                            .append(chaine(String.valueOf(metadonnees.toMap().get(cle))));
+                    premier = false;
+                }
+            }
+        }
+        json.append('}');
+    }
+
+    /** Chaîne JSON entre guillemets, avec échappement des caractères spéciaux. */
+    static String chaine(String texte) {
+        if (texte == null) {
+            return "null";
+        }
+        StringBuilder json = new StringBuilder(texte.length() + 2).append('"');
+        for (int i = 0; i < texte.length(); i++) {
+            char c = texte.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    private static long centile(long[] tries, double centile) {
+        if (tries.length == 0) {
+            return 0;
+        }
+        return tries[Math.min(tries.length - 1, (int) Math.ceil(centile * tries.length) - 1)];
+    }
+
+    /** Fichier de sortie en ajout, une ligne complète écrite et vidée à la fois. */
+    private static final class Sortie implements AutoCloseable {
+
+        private final BufferedWriter writer;
+        private int lignes;
+
+        Sortie(Path fichier) {
+            try {
+                Path parent = fichier.toAbsolutePath().getParent();
+                if (parent != null) {
+                    Files.createDirectories(parent);
+                }
+                boolean incomplet = Files.exists(fichier) && Files.size(fichier) > 0 && !termineParFinDeLigne(fichier);
+                writer = Files.newBufferedWriter(fichier, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                if (incomplet) {
+                    writer.newLine(); // isoler la ligne tronquée par l'arrêt précédent
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Impossible d'ouvrir le fichier de résultats " + fichier, e);
+            }
+        }
+
+        /** Écrit une ligne et renvoie le nombre de lignes écrites depuis l'ouverture. */
+        synchronized int ecrire(String ligne) {
+            try {
+                writer.write(ligne);
+                writer.write('\n');
+                writer.flush();
+            } catch (IOException e) {
+                System.err.println("Impossible d'écrire le résultat : " + e.getMessage());
+            }
+            return ++lignes;
+        }
+
+        @Override
+        public synchronized void close() {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                System.err.println("Impossible de fermer le fichier de résultats : " + e.getMessage());
+            }
+        }
+
+        private static boolean termineParFinDeLigne(Path fichier) throws IOException {
+            try (SeekableByteChannel canal = Files.newByteChannel(fichier)) {
+                canal.position(canal.size() - 1);
+                ByteBuffer octet = ByteBuffer.allocate(1);
+                canal.read(octet);
+                return octet.get(0) == '\n';
+            }
+        }
+    }
+}
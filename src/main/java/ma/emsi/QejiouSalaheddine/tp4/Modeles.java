@@ -0,0 +1,235 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.agent.tool.ToolSpecification;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.model.StreamingResponseHandler;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.embedding.onnx.allminilml6v2.AllMiniLmL6V2EmbeddingModel;
+import dev.langchain4j.model.googleai.GoogleAiGeminiChatModel;
+import dev.langchain4j.model.googleai.GoogleAiGeminiStreamingChatModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.web.search.WebSearchEngine;
+import dev.langchain4j.web.search.tavily.TavilyWebSearchEngine;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Création des modèles à partir de la {@link Configuration} au lieu de GoogleAiGeminiChatModel.builder() en dur :
+ * <ul>
+ *     <li>tp4.modele = gemini (par défaut, clé GEMINI_KEY) ou simule ({@link ChatModelSimule}) ;</li>
+ *     <li>tp4.gemini.modele = nom du modèle Gemini (gemini-2.5-flash par défaut) ;</li>
+ *     <li>tp4.gemini.requetes.minute = débit maximal des appels au ChatModel, partagé par tous les modèles
+ *         créés ici, en streaming ou non (0 par défaut : pas de limite), voir {@link SeauJetons} ;</li>
+ *     <li>tp4.llm.resilient = true (par défaut) pour placer le ChatModel derrière {@link ChatModelResilient}
+ *         (concurrence adaptative, nouvelles tentatives, délai par appel, fusion des appels identiques) ;
+ *         pas en streaming, où une nouvelle tentative renverrait des tokens déjà affichés ;</li>
+ *     <li>tp4.web = tavily (par défaut, clé TAVILY_API_KEY) ou simule ({@link WebSearchEngineSimule}) ;</li>
+ *     <li>tp4.embedding.cache = taille du cache des embeddings de questions (1000 par défaut, 0 pour le désactiver),
+ *         tp4.embedding.lot.fenetre.ms et tp4.embedding.lot.max (voir {@link EmbeddingModelEnCache}) ;</li>
+ *     <li>tp4.demarrage.rapide = true pour charger le modèle d'embedding en arrière-plan (voir {@link Disponibilite}) ;</li>
+ *     <li>tp4.simule.llm.* et tp4.simule.web.* : latence.ms, latence.sigma, erreurs, graine
+ *         (voir {@link LatenceSimulee}), tp4.simule.llm.reponse et tp4.simule.llm.token.ms.</li>
+ * </ul>
+ * En mode simulé, aucune clé n'est nécessaire : le pipeline tourne hors ligne (tests de charge, CI).
+ * Les clés manquantes en mode réel lèvent une IllegalStateException avec un message explicite.
+ */
+public final class Modeles {
+
+    /** Seau partagé par tous les ChatModel : le quota Gemini est par clé, pas par modèle. */
+    private static SeauJetons seauGemini;
+
+    private Modeles() {
+    }
+
+    public static boolean chatSimule() {
+        return "simule".equals(Configuration.valeur("tp4.modele", "gemini"));
+    }
+
+    public static ChatLanguageModel chatModel(double temperature) {
+        return chatModel(temperature, null);
+    }
+
+    /**
+     * @param timeout délai maximal d'un appel à Gemini, ou null pour la valeur par défaut
+     */
+    public static ChatLanguageModel chatModel(double temperature, Duration timeout) {
+        ChatLanguageModel chatModel;
+        if (chatSimule()) {
+            chatModel = chatModelSimule();
+        } else {
+            var builder = GoogleAiGeminiChatModel.builder()
+                    .apiKey(Configuration.obligatoire("GEMINI_KEY"))
+                    .modelName(Configuration.valeur("tp4.gemini.modele", "gemini-2.5-flash"))
+                    .temperature(temperature);
+            if (timeout != null) {
+                builder.timeout(timeout);
+            }
+            if (resilient()) {
+                builder.maxRetries(1); // les nouvelles tentatives sont faites par ChatModelResilient
+            }
+            chatModel = builder.build();
+        }
+        SeauJetons seau = seauGemini();
+        if (seau != null) {
+            chatModel = new ChatModelLimite(chatModel, seau);
+        }
+        return resilient() ? ChatModelResilient.depuisConfiguration(chatModel, timeout) : chatModel;
+    }
+
+    private static boolean resilient() {
+        return Boolean.parseBoolean(Configuration.valeur("tp4.llm.resilient", "true"));
+    }
+
+    private static synchronized SeauJetons seauGemini() {
+        double parMinute = Configuration.decimal("tp4.gemini.requetes.minute", 0);
+        if (parMinute > 0 && seauGemini == null) {
+            seauGemini = SeauJetons.parMinute(parMinute);
+        }
+        return parMinute > 0 ? seauGemini : null;
+    }
+
+    public static StreamingChatLanguageModel streamingChatModel(double temperature) {
+        return streamingChatModel(temperature, null);
+    }
+
+    /** Modèle en streaming, derrière le même seau de jetons que les ChatModel. */
+    public static StreamingChatLanguageModel streamingChatModel(double temperature, Duration timeout) {
+        StreamingChatLanguageModel streamingModel;
+        if (chatSimule()) {
+            streamingModel = chatModelSimule();
+        } else {
+            var builder = GoogleAiGeminiStreamingChatModel.builder()
+                    .apiKey(Configuration.obligatoire("GEMINI_KEY"))
+                    .modelName(Configuration.valeur("tp4.gemini.modele", "gemini-2.5-flash"))
+                    .temperature(temperature);
+            if (timeout != null) {
+                builder.timeout(timeout);
+            }
+            streamingModel = builder.build();
+        }
+        SeauJetons seau = seauGemini();
+        return seau != null ? new StreamingChatModelLimite(streamingModel, seau) : streamingModel;
+    }
+
+    /**
+     * Modèle d'embedding local all-MiniLM-L6-v2, derrière le cache et les micro-lots de questions.
+     * Avec -Dtp4.demarrage.rapide=true, il est chargé et échauffé en arrière-plan ({@link EmbeddingModelDiffere}).
+     */
+    public static EmbeddingModel embeddingModel() {
+        if (Disponibilite.demarrageRapide()) {
+            return new EmbeddingModelDiffere(Modeles::creerEmbeddingModel);
+        }
+        return creerEmbeddingModel();
+    }
+
+    private static EmbeddingModel creerEmbeddingModel() {
+        EmbeddingModel embeddingModel = new AllMiniLmL6V2EmbeddingModel();
+        if (Configuration.entier("tp4.embedding.cache", 1_000) <= 0) {
+            return embeddingModel;
+        }
+        return EmbeddingModelEnCache.depuisConfiguration(embeddingModel);
+    }
+
+    public static boolean webSimule() {
+        return "simule".equals(Configuration.valeur("tp4.web", "tavily"));
+    }
+
+    public static WebSearchEngine webSearchEngine() {
+        if (webSimule()) {
+            return new WebSearchEngineSimule(LatenceSimulee.depuisConfiguration("tp4.simule.web", 800));
+        }
+        return TavilyWebSearchEngine.builder()
+                .apiKey(Configuration.obligatoire("TAVILY_API_KEY"))
+                .build();
+    }
+
+    private static ChatModelSimule chatModelSimule() {
+        ChatModelSimule.Builder builder = ChatModelSimule.builder()
+                .latence(LatenceSimulee.depuisConfiguration("tp4.simule.llm", 1_500))
+                .delaiToken(Configuration.millisecondes("tp4.simule.llm.token.ms", 20));
+        String modeleReponse = Configuration.valeur("tp4.simule.llm.reponse");
+        if (modeleReponse != null) {
+            builder.modeleReponse(modeleReponse);
+        }
+        return builder.build();
+    }
+
+    /** Attend un jeton du seau (quota de requêtes par minute). */
+    private static void attendreQuota(SeauJetons seau) {
+        try {
+            seau.acquerir();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Appel au ChatModel interrompu pendant l'attente du quota", e);
+        }
+    }
+
+    /** ChatModel qui attend un jeton du seau avant chaque appel (quota de requêtes par minute). */
+    private static final class ChatModelLimite implements ChatLanguageModel {
+
+        private final ChatLanguageModel chatModel;
+        private final SeauJetons seau;
+
+        ChatModelLimite(ChatLanguageModel chatModel, SeauJetons seau) {
+            this.chatModel = chatModel;
+            this.seau = seau;
+        }
+
+        @Override
+        public Response<AiMessage> generate(List<ChatMessage> messages) {
+            return appel(() -> chatModel.generate(messages));
+        }
+
+        @Override
+        public Response<AiMessage> generate(List<ChatMessage> messages, List<ToolSpecification> outils) {
+            return appel(() -> chatModel.generate(messages, outils));
+        }
+
+        @Override
+        public Response<AiMessage> generate(List<ChatMessage> messages, ToolSpecification outil) {
+            return appel(() -> chatModel.generate(messages, outil));
+        }
+
+        private Response<AiMessage> appel(Supplier<Response<AiMessage>> generation) {
+            attendreQuota(seau);
+            return generation.get();
+        }
+    }
+
+    /** Modèle en streaming qui attend un jeton du seau avant de lancer chaque réponse. */
+    private static final class StreamingChatModelLimite implements StreamingChatLanguageModel {
+
+        private final StreamingChatLanguageModel streamingModel;
+        private final SeauJetons seau;
+
+        StreamingChatModelLimite(StreamingChatLanguageModel streamingModel, SeauJetons seau) {
+            this.streamingModel = streamingModel;
+            this.seau = seau;
+        }
+
+        @Override
+        public void generate(List<ChatMessage> messages, StreamingResponseHandler<AiMessage> handler) {
+            attendreQuota(seau);
+            streamingModel.generate(messages, handler);
+        }
+
+        @Override
+        public void generate(List<ChatMessage> messages, List<ToolSpecification> outils,
+                             StreamingResponseHandler<AiMessage> handler) {
+            attendreQuota(seau);
+            streamingModel.generate(messages, outils, handler);
+        }
+
+        @Override
+        public void generate(List<ChatMessage> messages, ToolSpecification outil,
+                             StreamingResponseHandler<AiMessage> handler) {
+            attendreQuota(seau);
+            streamingModel.generate(messages, outil, handler);
+        }
+    }
+}
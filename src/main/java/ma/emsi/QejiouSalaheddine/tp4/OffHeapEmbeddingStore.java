@@ -0,0 +1,567 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.RelevanceScore;
+import dev.langchain4j.store.embedding.filter.Filter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * EmbeddingStore qui garde les vecteurs hors du tas Java, dans un ByteBuffer direct,
+ * pour éviter des gigaoctets de float[] et les pauses du GC sur les gros corpus.
+ * Les vecteurs peuvent être quantifiés :
+ * <ul>
+ *     <li>AUCUNE : float32, 4 octets par composante, résultats exacts ;</li>
+ *     <li>INT8 : un octet par composante plus une échelle par vecteur (~4 fois moins de mémoire) ;</li>
+ *     <li>BINAIRE : un bit (le signe) par composante (~32 fois moins de mémoire).</li>
+ * </ul>
+ * En mode quantifié, le parcours se fait sur les codes compacts puis les meilleurs candidats
+ * sont re-classés avec les vecteurs en pleine précision, conservés dans un fichier (page cache)
+ * et lus uniquement pour ces candidats.
+ * <p>
+ * Une suppression ne fait que marquer le vecteur. Quand un quart des vecteurs est marqué, les codes et le fichier
+ * en pleine précision sont compactés, et le tampon direct est remplacé par un plus petit s'il est à moitié vide ;
+ * l'ancien tampon est libéré par le GC.
+ */
+public class OffHeapEmbeddingStore implements EmbeddingStore<TextSegment>, AutoCloseable {
+
+    public enum Quantification {
+        AUCUNE, INT8, BINAIRE
+    }
+
+    private static final double TAUX_COMPACTAGE = 0.25;
+
+    private final Quantification quantification;
+    private final int facteurReclassement;
+
+    private int dimension = -1;
+    private int octetsParCode;
+    private ByteBuffer codes = ByteBuffer.allocateDirect(0);
+    private int nombre;
+
+    /** Vecteurs float32 normalisés, relus pour le re-classement (modes INT8 et BINAIRE). */
+    private final FileChannel pleinePrecision;
+
+    private final List<String> ids = new ArrayList<>();
+    private final List<TextSegment> segments = new ArrayList<>();
+    private final Map<String, Integer> indexParId = new HashMap<>();
+    private final BitSet supprimes = new BitSet();
+
+    private final ReadWriteLock verrou = new ReentrantReadWriteLock();
+
+    /**
+     * @param quantification      codage des vecteurs en mémoire
+     * @param facteurReclassement nombre de candidats re-classés en pleine précision = facteur * maxResults
+     */
+    public OffHeapEmbeddingStore(Quantification quantification, int facteurReclassement) {
+        this.quantification = quantification;
+        this.facteurReclassement = Math.max(1, facteurReclassement);
+        if (quantification == Quantification.AUCUNE) {
+            this.pleinePrecision = null;
+        } else {
+            try {
+                Path fichier = Files.createTempFile("tp4-vecteurs", ".f32");
+                this.pleinePrecision = FileChannel.open(fichier, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Impossible de créer le fichier des vecteurs", e);
+            }
+        }
+    }
+
+    public OffHeapEmbeddingStore(Quantification quantification) {
+        this(quantification, quantification == Quantification.BINAIRE ? 10 : 4);
+    }
+
+    // --- Ajouts ---
+
+    @Override
+    public String add(Embedding embedding) {
+        String id = UUID.randomUUID().toString();
+        add(id, embedding);
+        return id;
+    }
+
+    @Override
+    public void add(String id, Embedding embedding) {
+        inserer(id, embedding, null);
+    }
+
+    @Override
+    public String add(Embedding embedding, TextSegment textSegment) {
+        String id = UUID.randomUUID().toString();
+        inserer(id, embedding, textSegment);
+        return id;
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings) {
+        List<String> nouveaux = new ArrayList<>(embeddings.size());
+        for (Embedding embedding : embeddings) {
+            nouveaux.add(add(embedding));
+        }
+        return nouveaux;
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings, List<TextSegment> textSegments) {
+        if (embeddings.size() != textSegments.size()) {
+            throw new IllegalArgumentException("Le nombre d'embeddings et de segments doit être identique");
+        }
+        List<String> nouveaux = new ArrayList<>(embeddings.size());
+        for (int i = 0; i < embeddings.size(); i++) {
+            nouveaux.add(add(embeddings.get(i), textSegments.get(i)));
+        }
+        return nouveaux;
+    }
+
+    private void inserer(String id, Embedding embedding, TextSegment segment) {
+        float[] vecteur = normaliser(embedding.vector());
+        verrou.writeLock().lock();
+        try {
+            if (dimension < 0) {
+                dimension = vecteur.length;
+                octetsParCode = switch (quantification) {
+                    case AUCUNE -> dimension * Float.BYTES;
+                    case INT8 -> Float.BYTES + dimension;
+                    case BINAIRE -> ((dimension + 63) / 64) * Long.BYTES;
+                };
+            } else if (vecteur.length != dimension) {
+                throw new IllegalArgumentException("Dimension " + vecteur.length + " au lieu de " + dimension);
+            }
+            Integer existant = indexParId.get(id);
+            if (existant != null) {
+                supprimes.set(existant);
+            }
+            reserver(nombre + 1);
+            encoder(vecteur, nombre * octetsParCode);
+            if (pleinePrecision != null) {
+                ByteBuffer tampon = ByteBuffer.allocate(dimension * Float.BYTES).order(ByteOrder.nativeOrder());
+                tampon.asFloatBuffer().put(vecteur);
+                pleinePrecision.write(tampon, (long) nombre * dimension * Float.BYTES);
+            }
+            ids.add(id);
+            segments.add(segment);
+            indexParId.put(id, nombre);
+            nombre++;
+            compacterSiNecessaire();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Impossible d'écrire le vecteur en pleine précision", e);
+        } finally {
+            verrou.writeLock().unlock();
+        }
+    }
+
+    /** Agrandit le tampon direct (doublement de la capacité) pour contenir n codes. */
+    private void reserver(int n) {
+        long necessaire = (long) n * octetsParCode;
+        if (necessaire <= codes.capacity()) {
+            return;
+        }
+        long capacite = Math.max(necessaire, Math.max(1024, 2L * codes.capacity()));
+        if (capacite > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Capacité maximale du tampon hors tas atteinte");
+        }
+        ByteBuffer nouveau = ByteBuffer.allocateDirect((int) capacite).order(ByteOrder.nativeOrder());
+        nouveau.put(codes.duplicate().clear().limit(nombre * octetsParCode));
+        codes = nouveau;
+    }
+
+    private void encoder(float[] vecteur, int position) {
+        switch (quantification) {
+            case AUCUNE -> {
+                for (int i = 0; i < dimension; i++) {
+                    codes.putFloat(position + i * Float.BYTES, vecteur[i]);
+                }
+            }
+            case INT8 -> {
+                float max = 0;
+                for (float composante : vecteur) {
+                    max = Math.max(max, Math.abs(composante));
+                }
+                float echelle = max == 0 ? 1 : max / 127f;
+                codes.putFloat(position, echelle);
+                for (int i = 0; i < dimension; i++) {
+                    codes.put(position + Float.BYTES + i, (byte) Math.round(vecteur[i] / echelle));
+                }
+            }
+            case BINAIRE -> {
+                long[] bits = binariser(vecteur);
+                for (int i = 0; i < bits.length; i++) {
+                    codes.putLong(position + i * Long.BYTES, bits[i]);
+                }
+            }
+        }
+    }
+
+    // --- Recherche ---
+
+    private record Candidat(int index, double similarite) {
+    }
+
+    @Override
+    public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+        float[] requete = normaliser(request.queryEmbedding().vector());
+        verrou.readLock().lock();
+        try {
+            if (nombre == 0) {
+                return new EmbeddingSearchResult<>(List.of());
+            }
+            int k = request.maxResults();
+            int nombreCandidats = quantification == Quantification.AUCUNE ? k : k * facteurReclassement;
+            List<Candidat> candidats = parcourir(requete, nombreCandidats, request.filter());
+            if (quantification != Quantification.AUCUNE) {
+                candidats = reclasser(requete, candidats);
+            }
+            List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(k);
+            for (Candidat candidat : candidats) {
+                double score = RelevanceScore.fromCosineSimilarity(candidat.similarite());
+                if (matches.size() >= k || score < request.minScore()) {
+                    break;
+                }
+                matches.add(new EmbeddingMatch<>(score, ids.get(candidat.index()),
+                        Embedding.from(vecteurPleinePrecision(candidat.index())), segments.get(candidat.index())));
+            }
+            return new EmbeddingSearchResult<>(matches);
+        } finally {
+            verrou.readLock().unlock();
+        }
+    }
+
+    /** Parcours de tous les codes avec un tas borné des meilleurs candidats, triés par similarité décroissante. */
+    private List<Candidat> parcourir(float[] requete, int nombreCandidats, Filter filtre) {
+        long[] requeteBinaire = quantification == Quantification.BINAIRE ? binariser(requete) : null;
+        PriorityQueue<Candidat> meilleurs = new PriorityQueue<>(Comparator.comparingDouble(Candidat::similarite));
+        for (int i = 0; i < nombre; i++) {
+            if (supprimes.get(i)) {
+                continue;
+            }
+            if (filtre != null && (segments.get(i) == null || !filtre.test(segments.get(i).metadata()))) {
+                continue;
+            }
+            double similarite = similariteApprochee(requete, requeteBinaire, i * octetsParCode);
+            if (meilleurs.size() < nombreCandidats) {
+                meilleurs.add(new Candidat(i, similarite));
+            } else if (similarite > meilleurs.peek().similarite()) {
+                meilleurs.poll();
+                meilleurs.add(new Candidat(i, similarite));
+            }
+        }
+        List<Candidat> tries = new ArrayList<>(meilleurs);
+        tries.sort(Comparator.comparingDouble(Candidat::similarite).reversed());
+        return tries;
+    }
+
+    private double similariteApprochee(float[] requete, long[] requeteBinaire, int position) {
+        switch (quantification) {
+            case AUCUNE -> {
+                double produit = 0;
+                for (int i = 0; i < dimension; i++) {
+                    produit += requete[i] * codes.getFloat(position + i * Float.BYTES);
+                }
+                return produit;
+            }
+            case INT8 -> {
+                // Produit asymétrique : requête en float, vecteur stocké en int8
+                float echelle = codes.getFloat(position);
+                double produit = 0;
+                for (int i = 0; i < dimension; i++) {
+                    produit += requete[i] * codes.get(position + Float.BYTES + i);
+                }
+                return produit * echelle;
+            }
+            default -> {
+                // Distance de Hamming entre signes : cos ≈ 1 - 2 * hamming / dimension
+                int differences = 0;
+                for (int i = 0; i < requeteBinaire.length; i++) {
+                    differences += Long.bitCount(requeteBinaire[i] ^ codes.getLong(position + i * Long.BYTES));
+                }
+                return 1.0 - 2.0 * differences / dimension;
+            }
+        }
+    }
+
+    private List<Candidat> reclasser(float[] requete, List<Candidat> candidats) {
+        List<Candidat> reclasses = new ArrayList<>(candidats.size());
+        for (Candidat candidat : candidats) {
+            float[] vecteur = vecteurPleinePrecision(candidat.index());
+            double produit = 0;
+            for (int i = 0; i < dimension; i++) {
+                produit += requete[i] * vecteur[i];
+            }
+            reclasses.add(new Candidat(candidat.index(), produit));
+        }
+        reclasses.sort(Comparator.comparingDouble(Candidat::similarite).reversed());
+        return reclasses;
+    }
+
+    private float[] vecteurPleinePrecision(int index) {
+        float[] vecteur = new float[dimension];
+        if (pleinePrecision == null) {
+            codes.slice(index * octetsParCode, octetsParCode).order(ByteOrder.nativeOrder()).asFloatBuffer().get(vecteur);
+            return vecteur;
+        }
+        ByteBuffer tampon = ByteBuffer.allocate(dimension * Float.BYTES).order(ByteOrder.nativeOrder());
+        try {
+            long position = (long) index * dimension * Float.BYTES;
+            while (tampon.hasRemaining()) {
+                if (pleinePrecision.read(tampon, position + tampon.position()) < 0) {
+                    throw new IOException("fin de fichier inattendue");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Impossible de lire le vecteur " + index, e);
+        }
+        tampon.flip();
+        tampon.asFloatBuffer().get(vecteur);
+        return vecteur;
+    }
+
+    // --- Mesures ---
+
+    /** Octets hors tas occupés par vecteur pour le parcours (codes quantifiés ou float32). */
+    public int octetsParVecteur() {
+        return octetsParCode;
+    }
+
+    /** Capacité totale du tampon direct, en octets. */
+    public long memoireHorsTas() {
+        verrou.readLock().lock();
+        try {
+            return codes.capacity();
+        } finally {
+            verrou.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rappel@k moyen de ce magasin par rapport à une recherche exacte en float32 sur les mêmes vecteurs :
+     * 1.0 signifie que la quantification ne fait perdre aucun des k meilleurs résultats.
+     * Les vecteurs en pleine précision sont lus une seule fois pour toutes les requêtes.
+     */
+    public double mesurerRappel(List<Embedding> requetes, int k) {
+        if (requetes.isEmpty()) {
+            return 1.0;
+        }
+        List<float[]> vecteurs = requetes.stream().map(requete -> normaliser(requete.vector())).toList();
+        List<PriorityQueue<Candidat>> meilleurs = new ArrayList<>();
+        for (int r = 0; r < vecteurs.size(); r++) {
+            meilleurs.add(new PriorityQueue<>(Comparator.comparingDouble(Candidat::similarite)));
+        }
+        List<Set<String>> exacts = new ArrayList<>();
+        verrou.readLock().lock();
+        try {
+            for (int i = 0; i < nombre; i++) {
+                if (supprimes.get(i)) {
+                    continue;
+                }
+                float[] stocke = vecteurPleinePrecision(i);
+                for (int r = 0; r < vecteurs.size(); r++) {
+                    float[] vecteur = vecteurs.get(r);
+                    double produit = 0;
+                    for (int j = 0; j < dimension; j++) {
+                        produit += vecteur[j] * stocke[j];
+                    }
+                    PriorityQueue<Candidat> file = meilleurs.get(r);
+                    file.add(new Candidat(i, produit));
+                    if (file.size() > k) {
+                        file.poll();
+                    }
+                }
+            }
+            for (PriorityQueue<Candidat> file : meilleurs) {
+                Set<String> ensemble = new HashSet<>();
+                file.forEach(candidat -> ensemble.add(ids.get(candidat.index())));
+                exacts.add(ensemble);
+            }
+        } finally {
+            verrou.readLock().unlock();
+        }
+
+        double somme = 0;
+        for (int r = 0; r < requetes.size(); r++) {
+            Set<String> attendus = exacts.get(r);
+            if (attendus.isEmpty()) {
+                somme += 1.0;
+                continue;
+            }
+            List<EmbeddingMatch<TextSegment>> approches = search(EmbeddingSearchRequest.builder()
+                    .queryEmbedding(requetes.get(r))
+                    .maxResults(k)
+                    .minScore(0.0)
+                    .build()).matches();
+            long retrouves = approches.stream().filter(match -> attendus.contains(match.embeddingId())).count();
+            somme += (double) retrouves / attendus.size();
+        }
+        return somme / requetes.size();
+    }
+
+    /** Résumé pour les journaux : mémoire par vecteur, mémoire hors tas et rappel@k sur les requêtes données. */
+    public String bilan(List<Embedding> requetes, int k) {
+        return String.format("%s : %d octets/vecteur hors tas (%d en float32), %d Ko hors tas, rappel@%d = %.3f",
+                quantification, octetsParVecteur(), Math.max(dimension, 0) * Float.BYTES,
+                memoireHorsTas() / 1024, k, mesurerRappel(requetes, k));
+    }
+
+    // --- Suppressions ---
+
+    @Override
+    public void remove(String id) {
+        removeAll(List.of(id));
+    }
+
+    @Override
+    public void removeAll(Collection<String> idsASupprimer) {
+        verrou.writeLock().lock();
+        try {
+            for (String id : idsASupprimer) {
+                Integer index = indexParId.remove(id);
+                if (index != null) {
+                    supprimes.set(index);
+                }
+            }
+            compacterSiNecessaire();
+        } finally {
+            verrou.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeAll(Filter filter) {
+        verrou.writeLock().lock();
+        try {
+            for (int i = 0; i < nombre; i++) {
+                if (!supprimes.get(i) && segments.get(i) != null && filter.test(segments.get(i).metadata())) {
+                    supprimes.set(i);
+                    indexParId.remove(ids.get(i));
+                }
+            }
+            compacterSiNecessaire();
+        } finally {
+            verrou.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeAll() {
+        verrou.writeLock().lock();
+        try {
+            codes = ByteBuffer.allocateDirect(0);
+            nombre = 0;
+            ids.clear();
+            segments.clear();
+            indexParId.clear();
+            supprimes.clear();
+            if (pleinePrecision != null) {
+                pleinePrecision.truncate(0);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Impossible de vider le fichier des vecteurs", e);
+        } finally {
+            verrou.writeLock().unlock();
+        }
+    }
+
+    /** Sous le verrou d'écriture : retire les vecteurs marqués dès qu'ils sont au moins TAUX_COMPACTAGE du total. */
+    private void compacterSiNecessaire() {
+        int marques = supprimes.cardinality();
+        if (marques == 0 || marques < TAUX_COMPACTAGE * nombre) {
+            return;
+        }
+        byte[] code = new byte[octetsParCode];
+        int vivants = 0;
+        try {
+            for (int i = 0; i < nombre; i++) {
+                if (supprimes.get(i)) {
+                    continue;
+                }
+                if (vivants != i) {
+                    codes.get(i * octetsParCode, code);
+                    codes.put(vivants * octetsParCode, code);
+                    if (pleinePrecision != null) {
+                        ByteBuffer tampon = ByteBuffer.allocate(dimension * Float.BYTES).order(ByteOrder.nativeOrder());
+                        tampon.asFloatBuffer().put(vecteurPleinePrecision(i));
+                        pleinePrecision.write(tampon, (long) vivants * dimension * Float.BYTES);
+                    }
+                    ids.set(vivants, ids.get(i));
+                    segments.set(vivants, segments.get(i));
+                }
+                indexParId.put(ids.get(vivants), vivants);
+                vivants++;
+            }
+            if (pleinePrecision != null) {
+                pleinePrecision.truncate((long) vivants * dimension * Float.BYTES);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Impossible de compacter le fichier des vecteurs", e);
+        }
+        ids.subList(vivants, nombre).clear();
+        segments.subList(vivants, nombre).clear();
+        supprimes.clear();
+        nombre = vivants;
+
+        long capacite = Math.max((long) nombre * octetsParCode, 1024);
+        if (codes.capacity() > 2 * capacite) {
+            ByteBuffer nouveau = ByteBuffer.allocateDirect((int) capacite).order(ByteOrder.nativeOrder());
+            nouveau.put(codes.duplicate().clear().limit(nombre * octetsParCode));
+            codes = nouveau;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (pleinePrecision != null) {
+            pleinePrecision.close();
+        }
+    }
+
+    // --- Calculs vectoriels ---
+
+    private static long[] binariser(float[] vecteur) {
+        long[] bits = new long[(vecteur.length + 63) / 64];
+        for (int i = 0; i < vecteur.length; i++) {
+            if (vecteur[i] > 0) {
+                bits[i / 64] |= 1L << (i % 64);
+            }
+        }
+        return bits;
+    }
+
+    private static float[] normaliser(float[] vecteur) {
+        double norme = 0;
+        for (float composante : vecteur) {
+            norme += composante * composante;
+        }
+        norme = Math.sqrt(norme);
+        float[] normalise = new float[vecteur.length];
+        for (int i = 0; i < vecteur.length; i++) {
+            normalise[i] = norme == 0 ? 0 : (float) (vecteur[i] / norme);
+        }
+        return normalise;
+    }
+}
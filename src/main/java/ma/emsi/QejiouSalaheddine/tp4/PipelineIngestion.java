@@ -0,0 +1,389 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.splitter.DocumentSplitters;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.embedding.onnx.allminilml6v2.AllMiniLmL6V2EmbeddingModel;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Pipeline d'ingestion parallèle pour un grand nombre de documents.
+ * Quatre étages (parsing → découpage → embeddings par lots → stockage) reliés par des files bornées :
+ * un étage lent bloque l'étage précédent au lieu de faire grossir la mémoire.
+ * Le nombre de threads de chaque étage est configurable pour occuper tous les cœurs
+ * (Tika pour le parsing, ONNX pour les embeddings), par le builder ou par les clés tp4.pipeline.*
+ * (voir {@link #depuisConfiguration}).
+ * <p>
+ * IndexPersistant s'en sert pour les documents dont l'index sur disque n'est pas à jour.
+ */
+public class PipelineIngestion {
+
+    /** Ouverture paresseuse du contenu d'une source (fichier, ressource du classpath...). */
+    public interface Ouverture {
+        InputStream ouvrir() throws IOException;
+    }
+
+    /** Document à ingérer : un nom (conservé dans la métadonnée "source") et son contenu. */
+    public record Source(String nom, Ouverture ouverture) {
+
+        public static Source fichier(Path fichier) {
+            return new Source(fichier.toString(), () -> Files.newInputStream(fichier));
+        }
+
+        public static Source ressource(String resourceName) {
+            return new Source(resourceName, () -> {
+                InputStream inputStream = PipelineIngestion.class.getResourceAsStream(resourceName);
+                if (inputStream == null) {
+                    throw new IOException("Erreur : Le fichier " + resourceName + " n'est pas trouvé.");
+                }
+                return inputStream;
+            });
+        }
+    }
+
+    /**
+     * Étage de stockage : reçoit chaque lot de segments avec leurs embeddings (un magasin, des fichiers d'index...).
+     * Appelée par les threads de l'étage de stockage, donc en parallèle si threadsStockage > 1.
+     */
+    public interface Destination {
+        void stocker(List<TextSegment> segments, List<Embedding> embeddings) throws Exception;
+    }
+
+    /** Bilan d'une ingestion, avec les débits en documents/s et segments/s. */
+    public record Rapport(int documents, int segments, int erreurs, Duration duree) {
+
+        public double documentsParSeconde() {
+            return documents / secondes();
+        }
+
+        public double segmentsParSeconde() {
+            return segments / secondes();
+        }
+
+        private double secondes() {
+            return Math.max(duree.toNanos(), 1) / 1e9;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d documents, %d segments, %d erreurs en %d ms (%.1f documents/s, %.1f segments/s)",
+                    documents, segments, erreurs, duree.toMillis(), documentsParSeconde(), segmentsParSeconde());
+        }
+    }
+
+    private final EmbeddingModel embeddingModel;
+    private final int threadsParsing;
+    private final int threadsDecoupage;
+    private final int threadsEmbedding;
+    private final int threadsStockage;
+    private final int tailleLot;
+    private final int capaciteFiles;
+
+    private PipelineIngestion(Builder builder) {
+        this.embeddingModel = builder.embeddingModel;
+        this.threadsParsing = builder.threadsParsing;
+        this.threadsDecoupage = builder.threadsDecoupage;
+        this.threadsEmbedding = builder.threadsEmbedding;
+        this.threadsStockage = builder.threadsStockage;
+        this.tailleLot = builder.tailleLot;
+        this.capaciteFiles = builder.capaciteFiles;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Pipeline réglé par tp4.pipeline.threads.parsing, .threads.decoupage, .threads.embedding, .threads.stockage,
+     * tp4.pipeline.lot et tp4.pipeline.files (valeurs par défaut du builder si absentes).
+     */
+    public static PipelineIngestion depuisConfiguration(EmbeddingModel embeddingModel) {
+        Builder builder = builder().embeddingModel(embeddingModel);
+        return builder
+                .threadsParsing((int) Configuration.entier("tp4.pipeline.threads.parsing", builder.threadsParsing))
+                .threadsDecoupage((int) Configuration.entier("tp4.pipeline.threads.decoupage", builder.threadsDecoupage))
+                .threadsEmbedding((int) Configuration.entier("tp4.pipeline.threads.embedding", builder.threadsEmbedding))
+                .threadsStockage((int) Configuration.entier("tp4.pipeline.threads.stockage", builder.threadsStockage))
+                .tailleLot((int) Configuration.entier("tp4.pipeline.lot", builder.tailleLot))
+                .capaciteFiles((int) Configuration.entier("tp4.pipeline.files", builder.capaciteFiles))
+                .build();
+    }
+
+    /**
+     * Ingère tous les fichiers (récursivement) d'un répertoire dans le magasin donné.
+     */
+    public Rapport ingererRepertoire(Path repertoire, EmbeddingStore<TextSegment> embeddingStore) throws IOException {
+        List<Source> sources;
+        try (Stream<Path> fichiers = Files.walk(repertoire)) {
+            sources = fichiers.filter(Files::isRegularFile).map(Source::fichier).toList();
+        }
+        return ingerer(sources, embeddingStore);
+    }
+
+    /**
+     * Ingère les sources dans le magasin donné et bloque jusqu'à la fin du stockage.
+     * Une source illisible est comptée comme erreur sans arrêter le pipeline.
+     */
+    public Rapport ingerer(List<Source> sources, EmbeddingStore<TextSegment> embeddingStore) {
+        return ingerer(sources, (lot, embeddings) -> embeddingStore.addAll(embeddings, lot));
+    }
+
+    /**
+     * Comme {@link #ingerer(List, EmbeddingStore)}, avec une destination quelconque pour les lots.
+     * Un lot peut contenir des segments de plusieurs sources (métadonnée "source").
+     */
+    public Rapport ingerer(List<Source> sources, Destination destination) {
+        long debut = System.nanoTime();
+        AtomicInteger documents = new AtomicInteger();
+        AtomicInteger segments = new AtomicInteger();
+        AtomicInteger erreurs = new AtomicInteger();
+
+        BlockingQueue<Message<Source>> aParser = new ArrayBlockingQueue<>(capaciteFiles);
+        BlockingQueue<Message<Document>> aDecouper = new ArrayBlockingQueue<>(capaciteFiles);
+        BlockingQueue<Message<List<TextSegment>>> aEmbedder = new ArrayBlockingQueue<>(capaciteFiles);
+        BlockingQueue<Message<Lot>> aStocker = new ArrayBlockingQueue<>(capaciteFiles);
+
+        List<Thread> threads = new ArrayList<>();
+        // 1. Parsing page par page : un Document par page (métadonnée "page" pour les PDF), envoyé dès que la page
+        //    est lue ; avec les files bornées, la mémoire ne dépend pas de la taille des fichiers
+        threads.addAll(lancerEtape("parsing", threadsParsing, aParser, aDecouper, threadsDecoupage, erreurs,
+                () -> (source, emettre) -> {
+                    try (InputStream inputStream = source.ouverture().ouvrir()) {
+                        LecteurParPages.lire(inputStream, page -> emettre.accept(LecteurParPages.document(page, source.nom())));
+                        documents.incrementAndGet();
+                    }
+                }));
+        // 2. Découpage avec les mêmes paramètres que l'index persistant
+        threads.addAll(lancerEtape("decoupage", threadsDecoupage, aDecouper, aEmbedder, threadsEmbedding, erreurs, () -> {
+            DocumentSplitter splitter = DocumentSplitters.recursive(IndexPersistant.TAILLE_SEGMENT, IndexPersistant.CHEVAUCHEMENT);
+            return (document, emettre) -> emettre.accept(
+                    Instrumentation.mesurer(Metriques.Etape.DECOUPAGE, () -> splitter.split(document)));
+        }));
+        // 3. Embeddings par lots de taille fixe, en regroupant les segments de plusieurs documents
+        threads.addAll(lancerEtape("embedding", threadsEmbedding, aEmbedder, aStocker, threadsStockage, erreurs,
+                () -> new EmbeddingParLots()));
+        // 4. Stockage
+        threads.addAll(lancerEtape("stockage", threadsStockage, aStocker, null, 0, erreurs, () -> (lot, emettre) -> {
+            destination.stocker(lot.segments(), lot.embeddings());
+            segments.addAndGet(lot.segments().size());
+        }));
+
+        try {
+            for (Source source : sources) {
+                aParser.put(new Message<>(source));
+            }
+            for (int i = 0; i < threadsParsing; i++) {
+                aParser.put(fin());
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            threads.forEach(Thread::interrupt);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Ingestion interrompue", e);
+        }
+        return new Rapport(documents.get(), segments.get(), erreurs.get(), Duration.ofNanos(System.nanoTime() - debut));
+    }
+
+    // --- Mécanique des étages ---
+
+    /** Élément d'une file ; FIN signale au consommateur que l'étage précédent est terminé. */
+    private record Message<T>(T contenu) {
+    }
+
+    private static final Message<?> FIN = new Message<>(null);
+
+    @SuppressWarnings("unchecked")
+    private static <T> Message<T> fin() {
+        return (Message<T>) FIN;
+    }
+
+    /** Traitement d'un étage ; une instance par thread, donc sans synchronisation. */
+    private interface Traitement<E, S> {
+        void traiter(E element, Consumer<S> emettre) throws Exception;
+
+        /** Appelé à la fin de l'étage pour vider un éventuel tampon. */
+        default void terminer(Consumer<S> emettre) throws Exception {
+        }
+    }
+
+    private record Lot(List<TextSegment> segments, List<Embedding> embeddings) {
+    }
+
+    /** Accumule les segments jusqu'à tailleLot avant d'appeler embedAll. */
+    private class EmbeddingParLots implements Traitement<List<TextSegment>, Lot> {
+
+        private final List<TextSegment> tampon = new ArrayList<>();
+
+        @Override
+        public void traiter(List<TextSegment> segments, Consumer<Lot> emettre) {
+            tampon.addAll(segments);
+            while (tampon.size() >= tailleLot) {
+                embedder(new ArrayList<>(tampon.subList(0, tailleLot)), emettre);
+                tampon.subList(0, tailleLot).clear();
+            }
+        }
+
+        @Override
+        public void terminer(Consumer<Lot> emettre) {
+            if (!tampon.isEmpty()) {
+                embedder(new ArrayList<>(tampon), emettre);
+                tampon.clear();
+            }
+        }
+
+        private void embedder(List<TextSegment> lot, Consumer<Lot> emettre) {
+            emettre.accept(new Lot(lot, embeddingModel.embedAll(lot).content()));
+        }
+    }
+
+    /**
+     * Démarre les threads d'un étage. Le dernier thread de l'étage à terminer
+     * envoie un message FIN à chacun des consommateurs de l'étage suivant.
+     */
+    private <E, S> List<Thread> lancerEtape(String nom, int nombreThreads,
+                                           BlockingQueue<Message<E>> entree,
+                                           BlockingQueue<Message<S>> sortie, int consommateursSuivants,
+                                           AtomicInteger erreurs,
+                                           Supplier<Traitement<E, S>> fabrique) {
+        AtomicInteger actifs = new AtomicInteger(nombreThreads);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < nombreThreads; i++) {
+            threads.add(Thread.ofPlatform().name("ingestion-" + nom + "-" + i).start(() -> {
+                Traitement<E, S> traitement = fabrique.get();
+                Consumer<S> emettre = element -> envoyer(sortie, new Message<>(element));
+                try {
+                    while (true) {
+                        Message<E> message = entree.take();
+                        if (message == FIN) {
+                            break;
+                        }
+                        try {
+                            traitement.traiter(message.contenu(), emettre);
+                        } catch (Exception e) {
+                            erreurs.incrementAndGet();
+                            System.err.println("Erreur d'ingestion (" + nom + ") : " + e.getMessage());
+                        }
+                    }
+                    traitement.terminer(emettre);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    erreurs.incrementAndGet();
+                    System.err.println("Erreur d'ingestion (" + nom + ") : " + e.getMessage());
+                }
+                if (actifs.decrementAndGet() == 0 && sortie != null) {
+                    for (int j = 0; j < consommateursSuivants; j++) {
+                        envoyer(sortie, fin());
+                    }
+                }
+            }));
+        }
+        return threads;
+    }
+
+    private static <T> void envoyer(BlockingQueue<Message<T>> file, Message<T> message) {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.put(message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Ingestion interrompue", e);
+        }
+    }
+
+    public static class Builder {
+
+        private EmbeddingModel embeddingModel;
+        private int threadsParsing = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        private int threadsDecoupage = 1;
+        private int threadsEmbedding = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        private int threadsStockage = 1;
+        private int tailleLot = 64;
+        private int capaciteFiles = 16;
+
+        public Builder embeddingModel(EmbeddingModel embeddingModel) {
+            this.embeddingModel = embeddingModel;
+            return this;
+        }
+
+        public Builder threadsParsing(int threadsParsing) {
+            this.threadsParsing = threadsParsing;
+            return this;
+        }
+
+        public Builder threadsDecoupage(int threadsDecoupage) {
+            this.threadsDecoupage = threadsDecoupage;
+            return this;
+        }
+
+        public Builder threadsEmbedding(int threadsEmbedding) {
+            this.threadsEmbedding = threadsEmbedding;
+            return this;
+        }
+
+        public Builder threadsStockage(int threadsStockage) {
+            this.threadsStockage = threadsStockage;
+            return this;
+        }
+
+        public Builder tailleLot(int tailleLot) {
+            this.tailleLot = tailleLot;
+            return this;
+        }
+
+        public Builder capaciteFiles(int capaciteFiles) {
+            this.capaciteFiles = capaciteFiles;
+            return this;
+        }
+
+        public PipelineIngestion build() {
+            if (embeddingModel == null) {
+                throw new IllegalArgumentException("embeddingModel est obligatoire");
+            }
+            if (threadsParsing < 1 || threadsDecoupage < 1 || threadsEmbedding < 1 || threadsStockage < 1
+                    || tailleLot < 1 || capaciteFiles < 1) {
+                throw new IllegalArgumentException("Les nombres de threads, la taille des lots et la capacité des files doivent être >= 1");
+            }
+            return new PipelineIngestion(this);
+        }
+    }
+
+    /**
+     * Ingestion d'un répertoire de documents (argument 1, par défaut src/main/resources)
+     * pour mesurer le débit du pipeline.
+     */
+    public static void main(String[] args) throws IOException {
+        Path repertoire = Path.of(args.length > 0 ? args[0] : "src/main/resources");
+        EmbeddingModel embeddingModel = new AllMiniLmL6V2EmbeddingModel();
+        System.out.println("Modèle d'embedding local chargé.");
+
+        PipelineIngestion pipeline = PipelineIngestion.depuisConfiguration(embeddingModel);
+        EmbeddingStore<TextSegment> embeddingStore = new InMemoryEmbeddingStore<>();
+        System.out.println("Ingestion de " + repertoire + "...");
+        Rapport rapport = pipeline.ingererRepertoire(repertoire, embeddingStore);
+        System.out.println("Ingestion terminée : " + rapport);
+    }
+}
@@ -0,0 +1,61 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+/**
+ * Noyau de calcul du produit scalaire entre une requête et un vecteur d'une matrice contiguë.
+ * {@link #meilleur()} choisit l'implémentation SIMD (API Vector, module jdk.incubator.vector)
+ * si le module est présent au démarrage (--add-modules jdk.incubator.vector),
+ * sinon une implémentation scalaire.
+ */
+public interface ProduitScalaire {
+
+    /**
+     * Produit scalaire entre a[0..dimension) et b[offsetB..offsetB + dimension).
+     */
+    float produit(float[] a, float[] b, int offsetB, int dimension);
+
+    /** Nom de l'implémentation, pour les logs et les benchmarks. */
+    String nom();
+
+    /**
+     * Implémentation vectorielle si disponible (désactivable avec -Dtp4.simd=false), sinon scalaire.
+     */
+    static ProduitScalaire meilleur() {
+        if (!"false".equals(System.getProperty("tp4.simd"))
+                && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                // Chargement par réflexion : la classe vectorielle ne doit pas être liée sans le module
+                return (ProduitScalaire) Class.forName("ma.emsi.QejiouSalaheddine.tp4.ProduitScalaireVectoriel")
+                        .getDeclaredConstructor()
+                        .newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                System.err.println("API Vector indisponible (" + e + "), calcul scalaire.");
+            }
+        }
+        return new Scalaire();
+    }
+
+    /** Version scalaire, avec quatre accumulateurs pour laisser le JIT paralléliser les additions. */
+    final class Scalaire implements ProduitScalaire {
+
+        @Override
+        public float produit(float[] a, float[] b, int offsetB, int dimension) {
+            float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int i = 0;
+            for (; i + 3 < dimension; i += 4) {
+                s0 += a[i] * b[offsetB + i];
+                s1 += a[i + 1] * b[offsetB + i + 1];
+                s2 += a[i + 2] * b[offsetB + i + 2];
+                s3 += a[i + 3] * b[offsetB + i + 3];
+            }
+            for (; i < dimension; i++) {
+                s0 += a[i] * b[offsetB + i];
+            }
+            return (s0 + s1) + (s2 + s3);
+        }
+
+        @Override
+        public String nom() {
+            return "scalaire";
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Produit scalaire SIMD avec l'API Vector (incubator en Java 21).
+ * Ne pas instancier directement : passer par {@link ProduitScalaire#meilleur()},
+ * qui vérifie que le module jdk.incubator.vector est chargé.
+ */
+final class ProduitScalaireVectoriel implements ProduitScalaire {
+
+    private static final VectorSpecies<Float> ESPECE = FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public float produit(float[] a, float[] b, int offsetB, int dimension) {
+        // Deux accumulateurs pour masquer la latence des FMA
+        FloatVector somme0 = FloatVector.zero(ESPECE);
+        FloatVector somme1 = FloatVector.zero(ESPECE);
+        int pas = ESPECE.length();
+        int i = 0;
+        for (; i + 2 * pas <= dimension; i += 2 * pas) {
+            somme0 = FloatVector.fromArray(ESPECE, a, i)
+                    .fma(FloatVector.fromArray(ESPECE, b, offsetB + i), somme0);
+            somme1 = FloatVector.fromArray(ESPECE, a, i + pas)
+                    .fma(FloatVector.fromArray(ESPECE, b, offsetB + i + pas), somme1);
+        }
+        for (; i + pas <= dimension; i += pas) {
+            somme0 = FloatVector.fromArray(ESPECE, a, i)
+                    .fma(FloatVector.fromArray(ESPECE, b, offsetB + i), somme0);
+        }
+        float resultat = somme0.add(somme1).reduceLanes(VectorOperators.ADD);
+        for (; i < dimension; i++) {
+            resultat += a[i] * b[offsetB + i];
+        }
+        return resultat;
+    }
+
+    @Override
+    public String nom() {
+        return "vectoriel (" + ESPECE.vectorBitSize() + " bits)";
+    }
+}
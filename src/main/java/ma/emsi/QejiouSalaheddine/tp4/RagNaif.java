@@ -1,115 +1,72 @@
 package ma.emsi.QejiouSalaheddine.tp4;
 
-import dev.langchain4j.data.document.Document;
-import dev.langchain4j.data.document.DocumentSplitter;
-import dev.langchain4j.data.document.parser.apache.tika.ApacheTikaDocumentParser;
-import dev.langchain4j.data.document.splitter.DocumentSplitters;
-import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
-import dev.langchain4j.memory.chat.MessageWindowChatMemory;
 import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
 import dev.langchain4j.model.embedding.EmbeddingModel;
-import dev.langchain4j.model.embedding.onnx.allminilml6v2.AllMiniLmL6V2EmbeddingModel;
-import dev.langchain4j.model.googleai.GoogleAiGeminiChatModel;
-import dev.langchain4j.model.output.Response;
 import dev.langchain4j.rag.content.retriever.ContentRetriever;
 import dev.langchain4j.rag.content.retriever.EmbeddingStoreContentRetriever;
 import dev.langchain4j.service.AiServices;
 import dev.langchain4j.store.embedding.EmbeddingStore;
-import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
 
-import java.io.InputStream;
-import java.util.List;
 import java.util.Scanner;
 
-// NOUVEAU (Test 2) : Imports pour le logging détaillé
-import java.util.logging.ConsoleHandler;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
 /**
  * Classe principale pour le Test 1 & 2 du TP 4 : RAG "Naïf" décomposé avec Logging.
  */
 public class RagNaif {
 
-    // NOUVEAU (Test 2) : Méthode pour configurer le logging
-    private static void configureLogger() {
-        // Configure le logger sous-jacent (java.util.logging)
-        Logger packageLogger = Logger.getLogger("dev.langchain4j");
-        packageLogger.setLevel(Level.FINE); // Ajuster niveau
-        // Ajouter un handler pour la console pour faire afficher les logs
-        ConsoleHandler handler = new ConsoleHandler();
-        handler.setLevel(Level.FINE);
-        packageLogger.addHandler(handler);
-    }
-
     public static void main(String[] args) {
 
-        // NOUVEAU (Test 2) : Activer le logger
-        configureLogger();
+        // Métriques par étape (-Dtp4.metriques=true) ; journal FINE de LangChain4j avec -Dtp4.log.fine=true
+        Metriques.installer();
+        Instrumentation.journalDetaille();
 
         System.out.println("Début du RAG Naïf (Test 2 avec Logging)...");
 
         // --- PHASE 1 : INGESTION (Chargement des connaissances) ---
         System.out.println("Phase 1 : Ingestion du document PDF...");
 
-        // 1. Charger le document PDF depuis src/main/resources
-        ApacheTikaDocumentParser parser = new ApacheTikaDocumentParser();
-        Document document;
-        try (InputStream inputStream = RagNaif.class.getResourceAsStream("/rag.pdf")) {
-            if (inputStream == null) {
-                System.err.println("Erreur : Le fichier rag.pdf n'est pas trouvé dans src/main/resources");
-                return;
+        // 1. Créer le modèle d'embedding (LOCAL)
+        EmbeddingModel embeddingModel = Instrumentation.embeddingModel(Modeles.embeddingModel());
+        System.out.println("Modèle d'embedding local chargé.");
+
+        // 2. Charger l'index du PDF depuis le disque (index-rag/). Si rag.pdf a changé
+        //    (ou au premier lancement) : parsing, découpage en segments, embeddings, puis sauvegarde.
+        //    Avec -Dtp4.ingestion.live=true, le fichier (dans tp4.documents.dir) est surveillé
+        //    et ré-ingéré à chaud quand il change, sans redémarrer.
+        EmbeddingStore<TextSegment> embeddingStore;
+        IngestionIncrementale ingestion = null;
+        try {
+            if (Boolean.parseBoolean(Configuration.valeur("tp4.ingestion.live", "false"))) {
+                ingestion = IngestionIncrementale.demarrer("/rag.pdf", embeddingModel);
+                embeddingStore = Instrumentation.embeddingStore(ingestion.embeddingStore());
+            } else {
+                embeddingStore = IndexPersistant.parDefaut().charger("/rag.pdf", embeddingModel).embeddingStore();
             }
-            document = parser.parse(inputStream);
-        } catch (Exception e) {
+        } catch (RuntimeException e) {
             System.err.println("Erreur lors du chargement du PDF : " + e.getMessage());
             return;
         }
-        System.out.println("Document PDF chargé.");
-
-        // 2. Découper le document en morceaux (chunks)
-        DocumentSplitter splitter = DocumentSplitters.recursive(300, 20);
-        List<TextSegment> segments = splitter.split(document);
-        System.out.println("Document découpé en " + segments.size() + " segments.");
-
-        // 3. Créer le modèle d'embedding (LOCAL)
-        EmbeddingModel embeddingModel = new AllMiniLmL6V2EmbeddingModel();
-        System.out.println("Modèle d'embedding local chargé.");
-
-        // 4. Créer les embeddings pour les segments
-        System.out.println("Création des embeddings (vecteurs)...");
-        Response<List<Embedding>> embeddingsResponse = embeddingModel.embedAll(segments);
-        List<Embedding> embeddings = embeddingsResponse.content();
-        System.out.println("Embeddings créés.");
-
-        // 5. Stocker les embeddings en mémoire
-        EmbeddingStore<TextSegment> embeddingStore = new InMemoryEmbeddingStore<>();
-        embeddingStore.addAll(embeddings, segments);
         System.out.println("Embeddings stockés en mémoire.");
 
 
         // --- PHASE 2 : GÉNÉRATION (Conversation) ---
         System.out.println("Phase 2 : Préparation de l'assistant...");
 
-        // 6. Récupérer la clé API (pour le ChatModel GEMINI)
-        String geminiApiKey = System.getenv("GEMINI_KEY");
-        if (geminiApiKey == null || geminiApiKey.isEmpty()) {
-            System.err.println("Erreur : La variable d'environnement GEMINI_KEY n'est pas définie.");
+        // 3-4. Créer le ChatModel : Gemini (clé GEMINI_KEY), ou modèle simulé hors ligne avec -Dtp4.modele=simule
+        // Note : logRequests() et logResponses() ne sont pas disponibles en 0.35.0
+        // Le logging est géré via Instrumentation.journalDetaille() ci-dessus
+        ChatLanguageModel chatModel;
+        try {
+            chatModel = Instrumentation.chatModel(Modeles.chatModel(0.3)); // Température basse pour le RAG
+        } catch (IllegalStateException e) {
+            System.err.println("Erreur : " + e.getMessage());
             return;
         }
+        System.out.println("ChatModel chargé.");
 
-        // 7. Créer le ChatModel (Gemini)
-        // Note : logRequests() et logResponses() ne sont pas disponibles en 0.35.0
-        // Le logging est géré via configureLogger() ci-dessus
-        ChatLanguageModel chatModel = GoogleAiGeminiChatModel.builder()
-                .apiKey(geminiApiKey)
-                .modelName("gemini-2.5-flash")
-                .temperature(0.3) // Température basse pour le RAG
-                .build();
-        System.out.println("ChatModel Gemini chargé.");
-
-        // 8. Créer le Content Retriever (le "chercheur" de RAG)
+        // 5. Créer le Content Retriever (le "chercheur" de RAG)
         ContentRetriever contentRetriever = EmbeddingStoreContentRetriever.builder()
                 .embeddingStore(embeddingStore)
                 .embeddingModel(embeddingModel)
@@ -117,16 +74,61 @@ public class RagNaif {
                 .minScore(0.5)
                 .build();
 
-        // 9. Créer l'Assistant
-        Assistant assistant = AiServices.builder(Assistant.class)
-                .chatLanguageModel(chatModel)
-                .chatMemory(MessageWindowChatMemory.withMaxMessages(10))
-                .contentRetriever(contentRetriever)
-                .build();
+        // (Optionnel) Mode lot, activé avec -Dtp4.lot=questions.txt : les questions du fichier sont posées
+        // en parallèle, sans mémoire de conversation, et les réponses écrites en JSONL (voir ModeLot)
+        if (ModeLot.actif()) {
+            ModeLot.AssistantLot assistantLot = AiServices.builder(ModeLot.AssistantLot.class)
+                    .chatLanguageModel(chatModel)
+                    .contentRetriever(contentRetriever)
+                    .build();
+            ModeLot.lancer(assistantLot);
+            return;
+        }
+
+        // (Optionnel) Assistant en streaming, activé avec -Dtp4.streaming=true :
+        // la réponse s'affiche token par token, avec le temps jusqu'au premier token
+        if (Boolean.parseBoolean(Configuration.valeur("tp4.streaming", "false"))) {
+            StreamingChatLanguageModel streamingModel = Instrumentation.streamingChatModel(Modeles.streamingChatModel(0.3));
+            AssistantStreaming assistantStreaming = AiServices.builder(AssistantStreaming.class)
+                    .streamingChatLanguageModel(streamingModel)
+                    .chatMemory(MemoireResumee.depuisConfiguration(chatModel, "RagNaif"))
+                    .contentRetriever(contentRetriever)
+                    .build();
+            System.out.println("Assistant RAG (streaming) prêt. Posez vos questions sur le PDF (tapez 'fin' pour quitter).");
+            ConversationStreaming.conversationAvec(assistantStreaming);
+            return;
+        }
+
+        // 6. Créer l'Assistant
+        Assistant assistant;
+        if (Boolean.parseBoolean(Configuration.valeur("tp4.cache.semantique", "false"))) {
+            // (Optionnel) Cache sémantique des réponses, activé avec -Dtp4.cache.semantique=true : une question
+            // quasi identique à une question déjà posée (mêmes passages du PDF) ne rappelle pas Gemini.
+            // Une réponse en cache ne doit pas dépendre des tours précédents : assistant sans mémoire (type FAQ).
+            // Le cache est vidé à chaque ré-ingestion à chaud du PDF.
+            AssistantAvecCacheSemantique.AssistantSansMemoire assistantSansMemoire =
+                    AiServices.builder(AssistantAvecCacheSemantique.AssistantSansMemoire.class)
+                            .chatLanguageModel(chatModel)
+                            .contentRetriever(contentRetriever)
+                            .build();
+            AssistantAvecCacheSemantique cache = new AssistantAvecCacheSemantique(assistantSansMemoire,
+                    embeddingModel, contentRetriever, 0.95, 1000);
+            if (ingestion != null) {
+                ingestion.siModification(cache::invalider);
+            }
+            assistant = cache;
+            System.out.println("Cache sémantique des réponses activé (questions indépendantes, sans mémoire).");
+        } else {
+            assistant = AiServices.builder(Assistant.class)
+                    .chatLanguageModel(chatModel)
+                    .chatMemory(MemoireResumee.depuisConfiguration(chatModel, "RagNaif"))
+                    .contentRetriever(contentRetriever)
+                    .build();
+        }
 
         System.out.println("Assistant RAG prêt. Posez vos questions sur le PDF (tapez 'fin' pour quitter).");
 
-        // 10. Lancer la boucle de conversation
+        // 7. Lancer la boucle de conversation
         conversationAvec(assistant);
     }
 
@@ -0,0 +1,81 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
+import dev.langchain4j.rag.query.Query;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ContentRetriever avec un délai maximal propre à la source.
+ * La recherche est lancée sur un thread virtuel ; si elle ne répond pas à temps (ou échoue),
+ * la recherche est interrompue (thread et connexion libérés) et la source est signalée comme absente
+ * pour ce tour : au lieu de ses segments, une note l'indiquant est injectée dans le prompt, pour que
+ * la réponse construite avec les autres sources (ex : le PDF local quand le Web est lent) ne soit pas
+ * présentée comme complète.
+ * <p>
+ * Pour interroger toutes les sources en parallèle, donner aussi {@link #EXECUTEUR} à
+ * DefaultRetrievalAugmentor.builder().executor(...) : la latence de la phase de récupération
+ * est alors bornée par le plus grand des délais.
+ */
+public class RetrieverAvecDelai implements ContentRetriever {
+
+    /** Exécuteur partagé : un thread virtuel par recherche. */
+    public static final ExecutorService EXECUTEUR = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final String nom;
+    private final ContentRetriever retriever;
+    private final Duration delai;
+    private final AtomicLong absences = new AtomicLong();
+
+    public RetrieverAvecDelai(String nom, ContentRetriever retriever, Duration delai) {
+        this.nom = nom;
+        this.retriever = retriever;
+        this.delai = delai;
+    }
+
+    @Override
+    public List<Content> retrieve(Query query) {
+        // submit (et non CompletableFuture.supplyAsync) : cancel(true) interrompt alors le thread de la recherche
+        Future<List<Content>> recherche = EXECUTEUR.submit(() -> retriever.retrieve(query));
+        try {
+            return recherche.get(delai.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            recherche.cancel(true);
+            return absence("délai de " + delai.toMillis() + " ms dépassé");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            // Certaines exceptions n'ont pas de message : le nom de leur classe est plus utile que "null"
+            return absence("erreur : " + (cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName()));
+        } catch (InterruptedException e) {
+            recherche.cancel(true);
+            Thread.currentThread().interrupt();
+            return absence("interrompue");
+        }
+    }
+
+    /** Signale l'absence de la source et renvoie la note à injecter à la place de ses segments. */
+    private List<Content> absence(String raison) {
+        absences.incrementAndGet();
+        System.out.println("Source '" + nom + "' absente de la réponse (" + raison + ").");
+        return List.of(Content.from("[Note : la source '" + nom + "' n'a pas pu être consultée pour cette question ("
+                + raison + "). La réponse peut être incomplète ; le signaler à l'utilisateur.]"));
+    }
+
+    public String nom() {
+        return nom;
+    }
+
+    /** Nombre de recherches pour lesquelles la source n'a pas répondu à temps ou a échoué. */
+    public long absences() {
+        return absences.get();
+    }
+}
@@ -0,0 +1,91 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
+import dev.langchain4j.rag.query.Query;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ContentRetriever hybride : recherche vectorielle (sens) et BM25 ({@link IndexBm25}, termes exacts),
+ * classements fusionnés par Reciprocal Rank Fusion : score = somme des 1 / (60 + rang) sur les deux listes.
+ * <p>
+ * La fusion n'utilise que les rangs, pas les scores (cosinus et BM25 ne sont pas comparables) :
+ * un segment bien classé par les deux recherches passe devant, et maxResults peut rester petit.
+ * Le minScore s'applique donc avant la fusion, aux seuls candidats vectoriels, comme dans
+ * EmbeddingStoreContentRetriever : une question hors sujet n'injecte pas les segments les moins éloignés.
+ */
+public class RetrieverHybride implements ContentRetriever {
+
+    private static final int K_RRF = 60;
+
+    private record Candidat(TextSegment segment, double score) {
+    }
+
+    private final EmbeddingStore<TextSegment> embeddingStore;
+    private final EmbeddingModel embeddingModel;
+    private final IndexBm25 indexBm25;
+    private final int maxResults;
+    private final int candidats;
+    private final double minScore;
+
+    /**
+     * @param maxResults nombre de segments renvoyés après fusion
+     * @param candidats  nombre de segments demandés à chacune des deux recherches
+     * @param minScore   score minimal des candidats de la recherche vectorielle
+     */
+    public RetrieverHybride(EmbeddingStore<TextSegment> embeddingStore, EmbeddingModel embeddingModel,
+                            IndexBm25 indexBm25, int maxResults, int candidats, double minScore) {
+        this.embeddingStore = embeddingStore;
+        this.embeddingModel = embeddingModel;
+        this.indexBm25 = indexBm25;
+        this.maxResults = maxResults;
+        this.candidats = candidats;
+        this.minScore = minScore;
+    }
+
+    @Override
+    public List<Content> retrieve(Query query) {
+        Embedding question = embeddingModel.embed(query.text()).content();
+        List<EmbeddingMatch<TextSegment>> vectoriels = embeddingStore.search(EmbeddingSearchRequest.builder()
+                .queryEmbedding(question)
+                .maxResults(candidats)
+                .minScore(minScore)
+                .build()).matches();
+        List<IndexBm25.Resultat> lexicaux = Instrumentation.mesurer(Metriques.Etape.RECHERCHE_LEXICALE,
+                () -> indexBm25.rechercher(query.text(), candidats));
+
+        // Reciprocal Rank Fusion, les segments étant identifiés par leur texte
+        Map<String, Candidat> fusion = new LinkedHashMap<>();
+        for (int rang = 0; rang < vectoriels.size(); rang++) {
+            ajouter(fusion, vectoriels.get(rang).embedded(), rang);
+        }
+        for (int rang = 0; rang < lexicaux.size(); rang++) {
+            ajouter(fusion, lexicaux.get(rang).segment(), rang);
+        }
+
+        List<Candidat> classement = new ArrayList<>(fusion.values());
+        classement.sort(Comparator.comparingDouble(Candidat::score).reversed());
+        List<Content> contenus = new ArrayList<>(Math.min(maxResults, classement.size()));
+        for (Candidat candidat : classement.subList(0, Math.min(maxResults, classement.size()))) {
+            contenus.add(Content.from(candidat.segment()));
+        }
+        return contenus;
+    }
+
+    private static void ajouter(Map<String, Candidat> fusion, TextSegment segment, int rang) {
+        double score = 1.0 / (K_RRF + rang + 1);
+        fusion.merge(segment.text(), new Candidat(segment, score),
+                (ancien, nouveau) -> new Candidat(ancien.segment(), ancien.score() + nouveau.score()));
+    }
+}
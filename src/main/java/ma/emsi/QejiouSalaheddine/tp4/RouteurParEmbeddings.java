@@ -0,0 +1,179 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
+import dev.langchain4j.rag.query.Query;
+import dev.langchain4j.rag.query.router.QueryRouter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * QueryRouter local : classe la question avec le modèle d'embedding déjà chargé,
+ * sans appel au LLM. Chaque route (un retriever, ou aucun retriever) est représentée par le centroïde
+ * des embeddings de sa description et de quelques exemples de questions.
+ * La question est envoyée vers la route dont le centroïde est le plus proche ; si l'écart avec
+ * la deuxième route est inférieur à la marge minimale, la décision est déléguée au routeur de repli
+ * (typiquement le routeur LLM existant).
+ */
+public class RouteurParEmbeddings implements QueryRouter {
+
+    private record Route(String nom, List<ContentRetriever> retrievers, float[] centroide) {
+    }
+
+    private final EmbeddingModel embeddingModel;
+    private final List<Route> routes;
+    private final double margeMinimale;
+    private final QueryRouter repli;
+
+    private RouteurParEmbeddings(Builder builder) {
+        this.embeddingModel = builder.embeddingModel;
+        this.margeMinimale = builder.margeMinimale;
+        this.repli = builder.repli;
+        this.routes = new ArrayList<>();
+        for (Builder.Definition definition : builder.definitions) {
+            List<TextSegment> textes = definition.textes().stream().map(TextSegment::from).toList();
+            List<Embedding> embeddings = embeddingModel.embedAll(textes).content();
+            routes.add(new Route(definition.nom(), definition.retrievers(), centroide(embeddings)));
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public Collection<ContentRetriever> route(Query query) {
+        float[] question = normaliser(embeddingModel.embed(query.text()).content().vector());
+
+        Route meilleure = null;
+        double meilleurScore = Double.NEGATIVE_INFINITY;
+        double deuxiemeScore = Double.NEGATIVE_INFINITY;
+        for (Route route : routes) {
+            double score = produit(question, route.centroide());
+            if (score > meilleurScore) {
+                deuxiemeScore = meilleurScore;
+                meilleurScore = score;
+                meilleure = route;
+            } else if (score > deuxiemeScore) {
+                deuxiemeScore = score;
+            }
+        }
+
+        double marge = meilleurScore - deuxiemeScore;
+        if (marge < margeMinimale && repli != null) {
+            System.out.println(String.format("Routage local incertain pour '%s' (marge %.3f) : repli sur le LLM",
+                    query.text(), marge));
+            return repli.route(query);
+        }
+        System.out.println(String.format("Routage local : '%s' -> %s (similarité %.3f, marge %.3f)",
+                query.text(), meilleure.nom(), meilleurScore, marge));
+        return meilleure.retrievers();
+    }
+
+    /** Moyenne des embeddings normalisés, elle-même normalisée. */
+    private static float[] centroide(List<Embedding> embeddings) {
+        float[] somme = new float[embeddings.get(0).dimension()];
+        for (Embedding embedding : embeddings) {
+            float[] vecteur = normaliser(embedding.vector());
+            for (int i = 0; i < somme.length; i++) {
+                somme[i] += vecteur[i];
+            }
+        }
+        return normaliser(somme);
+    }
+
+    private static double produit(float[] a, float[] b) {
+        double produit = 0;
+        for (int i = 0; i < a.length; i++) {
+            produit += a[i] * b[i];
+        }
+        return produit;
+    }
+
+    private static float[] normaliser(float[] vecteur) {
+        double norme = Math.sqrt(produit(vecteur, vecteur));
+        float[] normalise = new float[vecteur.length];
+        for (int i = 0; i < vecteur.length; i++) {
+            normalise[i] = norme == 0 ? 0 : (float) (vecteur[i] / norme);
+        }
+        return normalise;
+    }
+
+    public static class Builder {
+
+        private record Definition(String nom, List<ContentRetriever> retrievers, List<String> textes) {
+        }
+
+        private EmbeddingModel embeddingModel;
+        private final List<Definition> definitions = new ArrayList<>();
+        private double margeMinimale = 0.05;
+        private QueryRouter repli;
+
+        public Builder embeddingModel(EmbeddingModel embeddingModel) {
+            this.embeddingModel = embeddingModel;
+            return this;
+        }
+
+        /**
+         * Route vers un retriever, décrite par sa description (comme pour LanguageModelQueryRouter)
+         * et éventuellement des exemples de questions.
+         */
+        public Builder route(ContentRetriever retriever, String description, String... exemples) {
+            definitions.add(new Definition(abreger(description), List.of(retriever), textes(description, exemples)));
+            return this;
+        }
+
+        /** Une route par entrée de la Map utilisée par LanguageModelQueryRouter. */
+        public Builder routes(Map<ContentRetriever, String> descriptions) {
+            descriptions.forEach((retriever, description) -> route(retriever, description));
+            return this;
+        }
+
+        /** Route sans retriever : les questions qui lui ressemblent ne déclenchent pas de RAG. */
+        public Builder sansRetriever(String description, String... exemples) {
+            definitions.add(new Definition("PAS DE RAG", List.of(), textes(description, exemples)));
+            return this;
+        }
+
+        /** Écart minimal de similarité cosinus entre les deux meilleures routes pour décider localement. */
+        public Builder margeMinimale(double margeMinimale) {
+            this.margeMinimale = margeMinimale;
+            return this;
+        }
+
+        /** Routeur utilisé quand la décision locale est incertaine (ex : LanguageModelQueryRouter). */
+        public Builder repli(QueryRouter repli) {
+            this.repli = repli;
+            return this;
+        }
+
+        public RouteurParEmbeddings build() {
+            if (embeddingModel == null) {
+                throw new IllegalArgumentException("embeddingModel est obligatoire");
+            }
+            if (definitions.size() < 2 && repli == null) {
+                throw new IllegalArgumentException("Il faut au moins deux routes, ou un routeur de repli");
+            }
+            if (definitions.isEmpty()) {
+                throw new IllegalArgumentException("Il faut au moins une route");
+            }
+            return new RouteurParEmbeddings(this);
+        }
+
+        private static List<String> textes(String description, String... exemples) {
+            List<String> textes = new ArrayList<>();
+            textes.add(description);
+            textes.addAll(List.of(exemples));
+            return textes;
+        }
+
+        private static String abreger(String description) {
+            return description.length() <= 40 ? description : description.substring(0, 40) + "...";
+        }
+    }
+}
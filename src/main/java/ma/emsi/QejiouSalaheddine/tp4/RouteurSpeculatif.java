@@ -0,0 +1,118 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
+import dev.langchain4j.rag.query.Query;
+import dev.langchain4j.rag.query.router.QueryRouter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routage spéculatif : la recherche dans les retrievers candidats (locaux, donc peu coûteux) est lancée
+ * en même temps que la décision du routeur (ex : QueryRouterPourEviterRag ou LanguageModelQueryRouter,
+ * qui attendent la réponse de Gemini), au lieu d'après.
+ * <p>
+ * Les retrievers choisis par le routeur sont remplacés par des retrievers qui renvoient le résultat
+ * déjà calculé (ou en attendent la fin) ; les recherches des retrievers écartés sont annulées et
+ * leur résultat ignoré. La latence devient max(routage, recherche) au lieu de leur somme.
+ * Les retrievers non candidats (ex : recherche Web, payante) ne sont lancés qu'une fois choisis.
+ */
+public class RouteurSpeculatif implements QueryRouter {
+
+    private final QueryRouter routeur;
+    private final List<ContentRetriever> candidats;
+
+    private final AtomicLong utilisees = new AtomicLong();
+    private final AtomicLong abandonnees = new AtomicLong();
+
+    public RouteurSpeculatif(QueryRouter routeur, Collection<ContentRetriever> candidats) {
+        this.routeur = routeur;
+        this.candidats = List.copyOf(candidats);
+    }
+
+    /** Routeur spéculatif si -Dtp4.routage.speculatif=true, sinon le routeur tel quel. */
+    public static QueryRouter depuisConfiguration(QueryRouter routeur, Collection<ContentRetriever> candidats) {
+        if (!Boolean.parseBoolean(Configuration.valeur("tp4.routage.speculatif", "false"))) {
+            return routeur;
+        }
+        return new RouteurSpeculatif(routeur, candidats);
+    }
+
+    @Override
+    public Collection<ContentRetriever> route(Query query) {
+        Map<ContentRetriever, Future<List<Content>>> recherches = new IdentityHashMap<>();
+        for (ContentRetriever candidat : candidats) {
+            recherches.put(candidat, RetrieverAvecDelai.EXECUTEUR.submit(() -> candidat.retrieve(query)));
+        }
+
+        Collection<ContentRetriever> choisis;
+        try {
+            choisis = routeur.route(query);
+        } catch (RuntimeException e) {
+            abandonner(recherches.values());
+            throw e;
+        }
+
+        List<ContentRetriever> resultat = new ArrayList<>(choisis.size());
+        for (ContentRetriever choisi : choisis) {
+            Future<List<Content>> recherche = recherches.remove(choisi);
+            if (recherche == null) {
+                resultat.add(choisi);
+            } else {
+                resultat.add(new RetrieverPrecalcule(choisi, query, recherche));
+                utilisees.incrementAndGet();
+            }
+        }
+        abandonner(recherches.values());
+        return resultat;
+    }
+
+    private void abandonner(Collection<Future<List<Content>>> recherches) {
+        for (Future<List<Content>> recherche : recherches) {
+            recherche.cancel(true);
+            abandonnees.incrementAndGet();
+        }
+    }
+
+    /** Recherches spéculatives dont le résultat a été utilisé. */
+    public long utilisees() {
+        return utilisees.get();
+    }
+
+    /** Recherches spéculatives annulées (retriever écarté par le routeur). */
+    public long abandonnees() {
+        return abandonnees.get();
+    }
+
+    /** Retriever choisi dont la recherche pour cette question est déjà lancée. */
+    private record RetrieverPrecalcule(ContentRetriever retriever, Query query, Future<List<Content>> recherche)
+            implements ContentRetriever {
+
+        @Override
+        public List<Content> retrieve(Query autre) {
+            if (!query.equals(autre)) {
+                recherche.cancel(true);
+                return retriever.retrieve(autre); // question transformée entre-temps : recherche normale
+            }
+            try {
+                return recherche.get();
+            } catch (InterruptedException e) {
+                recherche.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Recherche interrompue", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.RelevanceScore;
+import dev.langchain4j.store.embedding.filter.Filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * EmbeddingStore à recherche exacte (mêmes résultats qu'InMemoryEmbeddingStore), optimisé pour le débit :
+ * <ul>
+ *     <li>vecteurs normalisés à l'insertion et rangés dans une seule matrice float[] contiguë,
+ *     ce qui réduit la similarité cosinus à un produit scalaire ;</li>
+ *     <li>produit scalaire SIMD via {@link ProduitScalaire#meilleur()} (repli scalaire sans le module) ;</li>
+ *     <li>tas borné des k meilleurs en tableaux primitifs, avec rejet immédiat des vecteurs
+ *     sous minScore ou sous le k-ième meilleur score courant.</li>
+ * </ul>
+ * Les suppressions marquent les lignes de la matrice ; dès qu'un quart des lignes est supprimé,
+ * la matrice est compactée (lignes vivantes recopiées au début, capacité réduite).
+ */
+public class ScanExactEmbeddingStore implements EmbeddingStore<TextSegment> {
+
+    private static final ProduitScalaire PRODUIT = ProduitScalaire.meilleur();
+    private static final double TAUX_COMPACTAGE = 0.25;
+
+    private int dimension = -1;
+    private float[] matrice = new float[0];
+    private int nombre;
+
+    private final List<String> ids = new ArrayList<>();
+    private final List<TextSegment> segments = new ArrayList<>();
+    private final Map<String, Integer> indexParId = new HashMap<>();
+    private final BitSet supprimes = new BitSet();
+
+    private final ReadWriteLock verrou = new ReentrantReadWriteLock();
+
+    /** Implémentation du produit scalaire utilisée (vectorielle ou scalaire). */
+    public static String implementation() {
+        return PRODUIT.nom();
+    }
+
+    // --- Ajouts ---
+
+    @Override
+    public String add(Embedding embedding) {
+        String id = UUID.randomUUID().toString();
+        add(id, embedding);
+        return id;
+    }
+
+    @Override
+    public void add(String id, Embedding embedding) {
+        inserer(id, embedding, null);
+    }
+
+    @Override
+    public String add(Embedding embedding, TextSegment textSegment) {
+        String id = UUID.randomUUID().toString();
+        inserer(id, embedding, textSegment);
+        return id;
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings) {
+        List<String> nouveaux = new ArrayList<>(embeddings.size());
+        for (Embedding embedding : embeddings) {
+            nouveaux.add(add(embedding));
+        }
+        return nouveaux;
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings, List<TextSegment> textSegments) {
+        if (embeddings.size() != textSegments.size()) {
+            throw new IllegalArgumentException("Le nombre d'embeddings et de segments doit être identique");
+        }
+        List<String> nouveaux = new ArrayList<>(embeddings.size());
+        for (int i = 0; i < embeddings.size(); i++) {
+            nouveaux.add(add(embeddings.get(i), textSegments.get(i)));
+        }
+        return nouveaux;
+    }
+
+    private void inserer(String id, Embedding embedding, TextSegment segment) {
+        float[] vecteur = embedding.vector();
+        verrou.writeLock().lock();
+        try {
+            if (dimension < 0) {
+                dimension = vecteur.length;
+            } else if (vecteur.length != dimension) {
+                throw new IllegalArgumentException("Dimension " + vecteur.length + " au lieu de " + dimension);
+            }
+            Integer existant = indexParId.get(id);
+            if (existant != null) {
+                supprimes.set(existant);
+            }
+            long necessaire = (long) (nombre + 1) * dimension;
+            if (necessaire > matrice.length) {
+                long capacite = Math.max(necessaire, Math.max(1024L * dimension, 2L * matrice.length));
+                matrice = Arrays.copyOf(matrice, (int) Math.min(capacite, Integer.MAX_VALUE - 8));
+            }
+            double norme = Math.sqrt(PRODUIT.produit(vecteur, vecteur, 0, dimension));
+            int debut = nombre * dimension;
+            for (int i = 0; i < dimension; i++) {
+                matrice[debut + i] = norme == 0 ? 0 : (float) (vecteur[i] / norme);
+            }
+            ids.add(id);
+            segments.add(segment);
+            indexParId.put(id, nombre);
+            nombre++;
+            compacterSiNecessaire();
+        } finally {
+            verrou.writeLock().unlock();
+        }
+    }
+
+    // --- Recherche ---
+
+    @Override
+    public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+        float[] requete = request.queryEmbedding().vector();
+        double normeRequete = Math.sqrt(PRODUIT.produit(requete, requete, 0, requete.length));
+        if (normeRequete == 0) {
+            return new EmbeddingSearchResult<>(List.of());
+        }
+        float[] normalisee = new float[requete.length];
+        for (int i = 0; i < requete.length; i++) {
+            normalisee[i] = (float) (requete[i] / normeRequete);
+        }
+        // score = (cos + 1) / 2, donc score >= minScore  <=>  cos >= 2 * minScore - 1
+        float cosinusMin = (float) (2 * request.minScore() - 1);
+        Filter filtre = request.filter();
+
+        verrou.readLock().lock();
+        try {
+            if (nombre == 0) {
+                return new EmbeddingSearchResult<>(List.of());
+            }
+            if (normalisee.length != dimension) {
+                throw new IllegalArgumentException("Dimension de la requête " + normalisee.length + " au lieu de " + dimension);
+            }
+            TasBorne tas = new TasBorne(request.maxResults());
+            for (int i = 0, offset = 0; i < nombre; i++, offset += dimension) {
+                float cosinus = PRODUIT.produit(normalisee, matrice, offset, dimension);
+                // Rejet immédiat : seuls les vecteurs au-dessus des deux seuils touchent aux métadonnées
+                if (cosinus < cosinusMin || !tas.accepte(cosinus) || supprimes.get(i)) {
+                    continue;
+                }
+                if (filtre != null && (segments.get(i) == null || !filtre.test(segments.get(i).metadata()))) {
+                    continue;
+                }
+                tas.ajouter(cosinus, i);
+            }
+
+            List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(tas.taille);
+            for (int position : tas.positionsTriees()) {
+                int index = tas.indices[position];
+                float[] vecteur = Arrays.copyOfRange(matrice, index * dimension, (index + 1) * dimension);
+                matches.add(new EmbeddingMatch<>(RelevanceScore.fromCosineSimilarity(tas.scores[position]),
+                        ids.get(index), Embedding.from(vecteur), segments.get(index)));
+            }
+            return new EmbeddingSearchResult<>(matches);
+        } finally {
+            verrou.readLock().unlock();
+        }
+    }
+
+    /**
+     * Tas binaire minimum de taille k en tableaux primitifs : la racine est le k-ième meilleur score,
+     * donc le seuil de rejet des vecteurs suivants.
+     */
+    private static final class TasBorne {
+
+        private final float[] scores;
+        private final int[] indices;
+        private int taille;
+
+        TasBorne(int capacite) {
+            this.scores = new float[Math.max(capacite, 0)];
+            this.indices = new int[Math.max(capacite, 0)];
+        }
+
+        boolean accepte(float score) {
+            return scores.length > 0 && (taille < scores.length || score > scores[0]);
+        }
+
+        void ajouter(float score, int index) {
+            if (taille < scores.length) {
+                int i = taille++;
+                scores[i] = score;
+                indices[i] = index;
+                while (i > 0) {
+                    int parent = (i - 1) / 2;
+                    if (scores[parent] <= scores[i]) {
+                        break;
+                    }
+                    echanger(i, parent);
+                    i = parent;
+                }
+                return;
+            }
+            scores[0] = score;
+            indices[0] = index;
+            int i = 0;
+            while (true) {
+                int gauche = 2 * i + 1;
+                int droite = gauche + 1;
+                int plusPetit = i;
+                if (gauche < taille && scores[gauche] < scores[plusPetit]) {
+                    plusPetit = gauche;
+                }
+                if (droite < taille && scores[droite] < scores[plusPetit]) {
+                    plusPetit = droite;
+                }
+                if (plusPetit == i) {
+                    return;
+                }
+                echanger(i, plusPetit);
+                i = plusPetit;
+            }
+        }
+
+        private void echanger(int i, int j) {
+            float score = scores[i];
+            scores[i] = scores[j];
+            scores[j] = score;
+            int index = indices[i];
+            indices[i] = indices[j];
+            indices[j] = index;
+        }
+
+        /** Positions dans le tas, par score décroissant. */
+        int[] positionsTriees() {
+            Integer[] ordre = new Integer[taille];
+            for (int i = 0; i < taille; i++) {
+                ordre[i] = i;
+            }
+            Arrays.sort(ordre, (a, b) -> Float.compare(scores[b], scores[a]));
+            int[] positions = new int[taille];
+            for (int i = 0; i < taille; i++) {
+                positions[i] = ordre[i];
+            }
+            return positions;
+        }
+    }
+
+    // --- Suppressions ---
+
+    @Override
+    public void remove(String id) {
+        removeAll(List.of(id));
+    }
+
+    @Override
+    public void removeAll(Collection<String> idsASupprimer) {
+        verrou.writeLock().lock();
+        try {
+            for (String id : idsASupprimer) {
+                Integer index = indexParId.remove(id);
+                if (index != null) {
+                    supprimes.set(index);
+                }
+            }
+            compacterSiNecessaire();
+        } finally {
+            verrou.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeAll(Filter filter) {
+        verrou.writeLock().lock();
+        try {
+            for (int i = 0; i < nombre; i++) {
+                if (!supprimes.get(i) && segments.get(i) != null && filter.test(segments.get(i).metadata())) {
+                    supprimes.set(i);
+                    indexParId.remove(ids.get(i));
+                }
+            }
+            compacterSiNecessaire();
+        } finally {
+            verrou.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeAll() {
+        verrou.writeLock().lock();
+        try {
+            matrice = new float[0];
+            nombre = 0;
+            ids.clear();
+            segments.clear();
+            indexParId.clear();
+            supprimes.clear();
+        } finally {
+            verrou.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sous le verrou d'écriture : recopie les lignes vivantes au début de la matrice quand la part de lignes
+     * supprimées atteint TAUX_COMPACTAGE, puis réduit la capacité si elle dépasse le double du nécessaire (1024 lignes au minimum).
+     */
+    private void compacterSiNecessaire() {
+        int mortes = supprimes.cardinality();
+        if (mortes == 0 || mortes < TAUX_COMPACTAGE * nombre) {
+            return;
+        }
+        int vivantes = 0;
+        for (int i = 0; i < nombre; i++) {
+            if (supprimes.get(i)) {
+                continue;
+            }
+            if (vivantes != i) {
+                System.arraycopy(matrice, i * dimension, matrice, vivantes * dimension, dimension);
+                ids.set(vivantes, ids.get(i));
+                segments.set(vivantes, segments.get(i));
+            }
+            indexParId.put(ids.get(vivantes), vivantes);
+            vivantes++;
+        }
+        ids.subList(vivantes, nombre).clear();
+        segments.subList(vivantes, nombre).clear();
+        supprimes.clear();
+        nombre = vivantes;
+        long capacite = Math.max((long) nombre * dimension, 1024L * dimension);
+        if (matrice.length > 2 * capacite) {
+            matrice = Arrays.copyOf(matrice, (int) capacite);
+        }
+    }
+}
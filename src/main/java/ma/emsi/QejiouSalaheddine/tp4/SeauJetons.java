@@ -0,0 +1,50 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import java.time.Duration;
+
+/**
+ * Limiteur de débit à seau de jetons (token bucket) : au plus {@code capacite} appels d'affilée,
+ * puis {@code parSeconde} appels par seconde en moyenne.
+ * <p>
+ * Chaque appel réserve un jeton, même si le seau est vide : le solde devient négatif et l'appelant
+ * attend le temps nécessaire pour le rembourser. Les appelants sont donc servis dans l'ordre de réservation,
+ * sans attente active ni réveils inutiles.
+ */
+public class SeauJetons {
+
+    private final double capacite;
+    private final double jetonsParNano;
+    private double jetons;
+    private long derniereRecharge = System.nanoTime();
+
+    public SeauJetons(double parSeconde, int capacite) {
+        if (parSeconde <= 0 || capacite < 1) {
+            throw new IllegalArgumentException("Débit et capacité du seau de jetons doivent être positifs");
+        }
+        this.capacite = capacite;
+        this.jetonsParNano = parSeconde / 1e9;
+        this.jetons = capacite;
+    }
+
+    /** Seau de {@code parMinute} appels par minute, avec une rafale d'au plus un dixième de minute. */
+    public static SeauJetons parMinute(double parMinute) {
+        return new SeauJetons(parMinute / 60, (int) Math.max(1, parMinute / 10));
+    }
+
+    /** Attend qu'un jeton soit disponible. */
+    public void acquerir() throws InterruptedException {
+        long attente = reserver();
+        if (attente > 0) {
+            Thread.sleep(Duration.ofNanos(attente));
+        }
+    }
+
+    /** Réserve un jeton et renvoie l'attente nécessaire, en nanosecondes. */
+    private synchronized long reserver() {
+        long maintenant = System.nanoTime();
+        jetons = Math.min(capacite, jetons + (maintenant - derniereRecharge) * jetonsParNano);
+        derniereRecharge = maintenant;
+        jetons -= 1;
+        return jetons >= 0 ? 0 : (long) Math.ceil(-jetons / jetonsParNano);
+    }
+}
@@ -0,0 +1,329 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import dev.langchain4j.memory.chat.ChatMemoryProvider;
+import dev.langchain4j.memory.chat.MessageWindowChatMemory;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
+import dev.langchain4j.rag.content.retriever.EmbeddingStoreContentRetriever;
+import dev.langchain4j.service.AiServices;
+import dev.langchain4j.store.memory.chat.ChatMemoryStore;
+import dev.langchain4j.store.memory.chat.InMemoryChatMemoryStore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Mode serveur : l'assistant RAG est exposé en HTTP local au lieu de la boucle Scanner,
+ * pour servir plusieurs conversations en parallèle dans une seule JVM.
+ * <ul>
+ *     <li>un thread virtuel par requête ;</li>
+ *     <li>une mémoire de conversation par session (ChatMemoryProvider), identifiée par l'en-tête X-Session ;
+ *         chaque session a son propre assistant AiServices, libéré avec sa mémoire quand la session expire
+ *         (en 0.35.0, AiServices garde sinon pour toujours la mémoire de chaque @MemoryId vu) ;</li>
+ *     <li>modèle d'embedding, index et ChatModel partagés (en lecture seule) entre toutes les sessions ;</li>
+ *     <li>contrôle d'admission : au plus N réponses en cours ; au-delà, la requête attend un peu
+ *         puis reçoit 429 (Retry-After) au lieu de s'accumuler. Une requête n'occupe une place qu'après avoir
+ *         obtenu le verrou de sa session : les questions en attente d'une même session ne bloquent pas les autres ;</li>
+ *     <li>démarrage rapide (-Dtp4.demarrage.rapide=true) : le serveur écoute avant la fin du chargement
+ *         du modèle d'embedding et de l'index ; /pret répond 503 puis 200 quand tout est chargé.</li>
+ * </ul>
+ * Utilisation :
+ * <pre>
+ * curl -i -X POST --data 'Qu'\''est-ce que le RAG ?' http://localhost:8080/chat
+ * curl -X POST -H 'X-Session: &lt;id renvoyé&gt;' --data 'Et ses limites ?' http://localhost:8080/chat
+ * </pre>
+ */
+public class ServeurChat {
+
+    private static final String ENTETE_SESSION = "X-Session";
+    private static final int TAILLE_MAX_QUESTION = 8 * 1024;
+
+    /** Une session : son assistant, verrou (une seule question à la fois par conversation) et dernière activité. */
+    private static final class Session {
+        final Assistant assistant;
+        final ReentrantLock verrou = new ReentrantLock();
+        volatile long derniereActivite = System.currentTimeMillis();
+
+        Session(Assistant assistant) {
+            this.assistant = assistant;
+        }
+    }
+
+    private final Function<String, Assistant> assistantParSession;
+    private final ChatMemoryStore memoires;
+    private final int concurrenceMax;
+    private final Semaphore admission;
+    private final Duration attenteAdmission;
+    private final Duration dureeSession;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ExecutorService executeur = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final AtomicLong traitees = new AtomicLong();
+    private final AtomicLong rejetees = new AtomicLong();
+
+    private HttpServer serveur;
+
+    /**
+     * @param assistantParSession crée l'assistant d'une session, avec la mémoire de cette session
+     * @param memoires            stockage des messages de toutes les sessions (partagé avec le ChatMemoryProvider)
+     * @param concurrenceMax      nombre maximal de réponses générées en même temps
+     * @param attenteAdmission    attente maximale du verrou de session et d'une place avant de répondre 429
+     * @param dureeSession        inactivité au-delà de laquelle la session (assistant et mémoire) est effacée
+     */
+    public ServeurChat(Function<String, Assistant> assistantParSession, ChatMemoryStore memoires, int concurrenceMax,
+                       Duration attenteAdmission, Duration dureeSession) {
+        this.assistantParSession = assistantParSession;
+        this.memoires = memoires;
+        this.concurrenceMax = concurrenceMax;
+        this.admission = new Semaphore(concurrenceMax, true);
+        this.attenteAdmission = attenteAdmission;
+        this.dureeSession = dureeSession;
+    }
+
+    /** Mémoire de 10 messages par session, stockée dans le ChatMemoryStore donné. */
+    public static ChatMemoryProvider memoireParSession(ChatMemoryStore memoires) {
+        return session -> MessageWindowChatMemory.builder()
+                .id(session)
+                .maxMessages(10)
+                .chatMemoryStore(memoires)
+                .build();
+    }
+
+    public void demarrer(int port) throws IOException {
+        serveur = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        serveur.setExecutor(executeur);
+        serveur.createContext("/chat", this::chat);
+        serveur.createContext("/sante", this::sante);
+        serveur.createContext("/pret", this::pret);
+        serveur.start();
+
+        Thread.ofVirtual().name("purge-sessions").start(this::purgerSessions);
+        System.out.println("Serveur de chat démarré sur http://localhost:" + port + "/chat");
+    }
+
+    public void arreter() {
+        if (serveur != null) {
+            serveur.stop(1);
+        }
+        executeur.shutdown();
+    }
+
+    private void chat(HttpExchange echange) throws IOException {
+        try (echange) {
+            traiter(echange);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void traiter(HttpExchange echange) throws IOException, InterruptedException {
+        if (!"POST".equals(echange.getRequestMethod())) {
+            repondre(echange, 405, "Utiliser POST avec la question dans le corps.");
+            return;
+        }
+        if (!Disponibilite.pret()) {
+            echange.getResponseHeaders().set("Retry-After", "1");
+            repondre(echange, 503, "Serveur en cours de démarrage (" + Disponibilite.etat() + ").");
+            return;
+        }
+        String question = lireCorps(echange.getRequestBody());
+        if (question == null) {
+            repondre(echange, 413, "Question trop longue (maximum " + TAILLE_MAX_QUESTION + " octets).");
+            return;
+        }
+        if (question.isBlank()) {
+            repondre(echange, 400, "Question vide.");
+            return;
+        }
+
+        String id = echange.getRequestHeaders().getFirst(ENTETE_SESSION);
+        if (id == null || id.isBlank()) {
+            id = UUID.randomUUID().toString();
+        }
+        echange.getResponseHeaders().set(ENTETE_SESSION, id);
+
+        // Les questions d'une même session sont traitées l'une après l'autre (mémoire partagée).
+        // Le verrou de session est pris avant la place d'admission : une session qui envoie plusieurs questions
+        // à la fois n'occupe qu'une place, et ses autres questions attendent sans bloquer les autres sessions
+        long echeance = System.nanoTime() + attenteAdmission.toNanos();
+        Session session = sessions.computeIfAbsent(id, cle -> new Session(assistantParSession.apply(cle)));
+        session.derniereActivite = System.currentTimeMillis();
+        if (!session.verrou.tryLock(attenteAdmission.toMillis(), TimeUnit.MILLISECONDS)) {
+            rejeter(echange, "Une question est déjà en cours pour cette session, réessayer plus tard.");
+            return;
+        }
+        try {
+            // Contrôle d'admission : on n'accepte pas plus de réponses en cours que la limite
+            if (!admission.tryAcquire(Math.max(0, echeance - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                rejeter(echange, "Serveur saturé, réessayer plus tard.");
+                return;
+            }
+            try {
+                String reponse = session.assistant.chat(question);
+                traitees.incrementAndGet();
+                repondre(echange, 200, reponse);
+            } catch (RuntimeException e) {
+                System.err.println("Erreur lors de la génération de la réponse : " + e.getMessage());
+                repondre(echange, 500, "Erreur lors de la génération de la réponse.");
+            } finally {
+                admission.release();
+            }
+        } finally {
+            session.verrou.unlock();
+            session.derniereActivite = System.currentTimeMillis();
+        }
+    }
+
+    private void rejeter(HttpExchange echange, String raison) throws IOException {
+        rejetees.incrementAndGet();
+        echange.getResponseHeaders().set("Retry-After", "1");
+        repondre(echange, 429, raison);
+    }
+
+    private void sante(HttpExchange echange) throws IOException {
+        try (echange) {
+            repondre(echange, 200, "sessions=" + sessions.size()
+                    + " enCours=" + (concurrenceMax - admission.availablePermits())
+                    + " traitees=" + traitees.get()
+                    + " rejetees=" + rejetees.get());
+        }
+    }
+
+    /** Sonde de disponibilité : 200 quand le modèle d'embedding et l'index sont chargés, 503 avant. */
+    private void pret(HttpExchange echange) throws IOException {
+        try (echange) {
+            String etat = Disponibilite.etat();
+            repondre(echange, Disponibilite.pret() ? 200 : 503, etat.isEmpty() ? "pret" : etat);
+        }
+    }
+
+    /** Efface régulièrement la mémoire des sessions inactives, et libère leur assistant. */
+    private void purgerSessions() {
+        while (!executeur.isShutdown()) {
+            try {
+                Thread.sleep(Math.min(dureeSession.toMillis(), 60_000));
+            } catch (InterruptedException e) {
+                return;
+            }
+            long limite = System.currentTimeMillis() - dureeSession.toMillis();
+            sessions.entrySet().removeIf(entree -> {
+                Session session = entree.getValue();
+                if (session.derniereActivite >= limite || !session.verrou.tryLock()) {
+                    return false;
+                }
+                try {
+                    memoires.deleteMessages(entree.getKey());
+                    return true;
+                } finally {
+                    session.verrou.unlock();
+                }
+            });
+        }
+    }
+
+    /** Lit le corps en UTF-8, ou renvoie null s'il dépasse la taille maximale. */
+    private static String lireCorps(InputStream corps) throws IOException {
+        byte[] octets = corps.readNBytes(TAILLE_MAX_QUESTION + 1);
+        if (octets.length > TAILLE_MAX_QUESTION) {
+            return null;
+        }
+        return new String(octets, StandardCharsets.UTF_8).trim();
+    }
+
+    private static void repondre(HttpExchange echange, int code, String texte) throws IOException {
+        byte[] octets = texte.getBytes(StandardCharsets.UTF_8);
+        echange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        echange.sendResponseHeaders(code, octets.length);
+        try (OutputStream out = echange.getResponseBody()) {
+            out.write(octets);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Metriques.installer();
+        // Réglages par -D, variables d'environnement (TP4_SERVEUR_PORT...) ou tp4.properties, voir Configuration
+        int port = (int) Configuration.entier("tp4.serveur.port", 8080);
+        int concurrenceMax = (int) Configuration.entier("tp4.serveur.concurrence", 64);
+
+        // 1. Modèle d'embedding et index du PDF : chargés une fois, partagés par toutes les sessions.
+        //    Avec -Dtp4.demarrage.rapide=true, ils sont chargés en arrière-plan : le serveur écoute tout de suite,
+        //    /pret répond 503 puis 200 et /chat répond 503 tant que le chargement n'est pas terminé
+        EmbeddingModel embeddingModel = Instrumentation.embeddingModel(Modeles.embeddingModel());
+        ContentRetriever contentRetriever;
+        if (Disponibilite.demarrageRapide()) {
+            CompletableFuture<ContentRetriever> retriever = Disponibilite.charger("index-rag.pdf",
+                    () -> creerRetriever(IndexPersistant.parDefaut().charger("/rag.pdf", embeddingModel), embeddingModel));
+            contentRetriever = query -> Disponibilite.attendre(retriever).retrieve(query);
+        } else {
+            try {
+                contentRetriever = creerRetriever(IndexPersistant.parDefaut().charger("/rag.pdf", embeddingModel),
+                        embeddingModel);
+            } catch (RuntimeException e) {
+                System.err.println("Erreur lors du chargement du PDF : " + e.getMessage());
+                return;
+            }
+        }
+
+        // 2. ChatModel (Gemini, ou simulé avec -Dtp4.modele=simule pour les tests de charge)
+        ChatLanguageModel chatModel;
+        try {
+            chatModel = Instrumentation.chatModel(Modeles.chatModel(0.3));
+        } catch (IllegalStateException e) {
+            System.err.println("Erreur : " + e.getMessage());
+            return;
+        }
+
+        // 3-4. Un assistant par session, avec sa mémoire : fenêtre de 10 messages en mémoire, ou avec -Dtp4.memoire=resume
+        //    budget de tokens avec résumé des anciens tours, sessions sauvegardées dans index-rag/memoires.log
+        ChatMemoryStore memoires;
+        ChatMemoryProvider fournisseurMemoires;
+        if ("resume".equals(Configuration.valeur("tp4.memoire", "fenetre"))) {
+            memoires = MagasinMemoiresFichier.parDefaut();
+            fournisseurMemoires = MemoireResumee.fournisseur(chatModel, memoires,
+                    (int) Configuration.entier("tp4.memoire.tokens", 1_000));
+        } else {
+            memoires = new InMemoryChatMemoryStore();
+            fournisseurMemoires = memoireParSession(memoires);
+        }
+        Function<String, Assistant> assistantParSession = session -> AiServices.builder(Assistant.class)
+                .chatLanguageModel(chatModel)
+                .chatMemory(fournisseurMemoires.get(session))
+                .contentRetriever(contentRetriever)
+                .build();
+
+        // 5. Démarrer le serveur
+        ServeurChat serveur = new ServeurChat(assistantParSession, memoires, concurrenceMax,
+                Configuration.millisecondes("tp4.serveur.attente.ms", 2_000),
+                Duration.ofMinutes(Configuration.entier("tp4.serveur.session.minutes", 30)));
+        Runtime.getRuntime().addShutdownHook(new Thread(serveur::arreter));
+        serveur.demarrer(port);
+    }
+
+    /** Retriever partagé sur l'index du PDF. */
+    private static ContentRetriever creerRetriever(IndexPersistant.Index index, EmbeddingModel embeddingModel) {
+        return EmbeddingStoreContentRetriever.builder()
+                .embeddingStore(index.embeddingStore())
+                .embeddingModel(embeddingModel)
+                .maxResults(2)
+                .minScore(0.5)
+                .build();
+    }
+}
@@ -1,19 +1,11 @@
 package ma.emsi.QejiouSalaheddine.tp4;
 
-import dev.langchain4j.data.document.Document;
-import dev.langchain4j.data.document.DocumentSplitter;
-import dev.langchain4j.data.document.parser.apache.tika.ApacheTikaDocumentParser;
-import dev.langchain4j.data.document.splitter.DocumentSplitters;
-import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
-import dev.langchain4j.memory.chat.MessageWindowChatMemory;
 import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
 import dev.langchain4j.model.embedding.EmbeddingModel;
-import dev.langchain4j.model.embedding.onnx.allminilml6v2.AllMiniLmL6V2EmbeddingModel;
-import dev.langchain4j.model.googleai.GoogleAiGeminiChatModel;
 import dev.langchain4j.model.input.Prompt;
 import dev.langchain4j.model.input.PromptTemplate;
-import dev.langchain4j.model.output.Response;
 import dev.langchain4j.rag.DefaultRetrievalAugmentor;
 import dev.langchain4j.rag.RetrievalAugmentor;
 import dev.langchain4j.rag.content.retriever.ContentRetriever;
@@ -22,16 +14,11 @@ import dev.langchain4j.rag.query.Query;
 import dev.langchain4j.rag.query.router.QueryRouter;
 import dev.langchain4j.service.AiServices;
 import dev.langchain4j.store.embedding.EmbeddingStore;
-import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
 
-import java.io.InputStream;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
-import java.util.logging.ConsoleHandler;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * Classe principale pour le Test 4 du TP 4 : RAG avec Routage personnalisé (Pas de RAG).
@@ -40,13 +27,14 @@ public class TestPasDeRag {
 
     public static void main(String[] args) {
 
-        // 1. Configurer le logging (pour voir la décision du routeur)
-        configureLogger();
+        // 1. Métriques par étape (-Dtp4.metriques=true) ; journal FINE de LangChain4j avec -Dtp4.log.fine=true
+        Metriques.installer();
+        Instrumentation.journalDetaille();
 
         // --- PHASE 1 : INGESTION (Identique au Test 1, mais une seule source) ---
         System.out.println("Phase 1 : Ingestion du document PDF (rag.pdf)...");
 
-        EmbeddingModel embeddingModel = new AllMiniLmL6V2EmbeddingModel();
+        EmbeddingModel embeddingModel = Instrumentation.embeddingModel(Modeles.embeddingModel());
 
         // Nous n'avons besoin que du retriever pour le RAG
         ContentRetriever ragRetriever = createRetriever("/rag.pdf", embeddingModel);
@@ -55,22 +43,74 @@ public class TestPasDeRag {
         // --- PHASE 2 : CONFIGURATION DU ROUTEUR PERSONNALISÉ ---
         System.out.println("Phase 2 : Préparation de l'assistant avec routage personnalisé...");
 
-        // 2. Créer le ChatModel (Gemini)
-        String geminiApiKey = System.getenv("GEMINI_KEY");
-        if (geminiApiKey == null || geminiApiKey.isEmpty()) {
-            System.err.println("Erreur : GEMINI_KEY n'est pas définie.");
+        // 2. Créer le ChatModel (Gemini, ou simulé avec -Dtp4.modele=simule)
+        ChatLanguageModel chatModel;
+        try {
+            chatModel = Instrumentation.chatModel(Modeles.chatModel(0.0));
+        } catch (IllegalStateException e) {
+            System.err.println("Erreur : " + e.getMessage());
             return;
         }
+        System.out.println("ChatModel chargé.");
 
-        ChatLanguageModel chatModel = GoogleAiGeminiChatModel.builder()
-                .apiKey(geminiApiKey)
-                .modelName("gemini-2.5-flash")
-                .temperature(0.0)
+        // 3. Créer le QueryRouter : classification locale avec le modèle d'embedding ;
+        //    le routeur LLM personnalisé (BONUS) n'est appelé que si la décision locale est incertaine
+        QueryRouter queryRouter = Instrumentation.queryRouter(creerRouteur(embeddingModel, chatModel, ragRetriever));
+
+        // 4. Créer le RetrievalAugmentor avec notre routeur personnalisé et le compactage du contexte
+        RetrievalAugmentor retrievalAugmentor = DefaultRetrievalAugmentor.builder()
+                .queryRouter(queryRouter)
+                .contentAggregator(AgregateurContexte.depuisConfiguration())
+                .build();
+
+        // (Optionnel) Mode lot, activé avec -Dtp4.lot=questions.txt : les questions du fichier sont posées
+        // en parallèle, sans mémoire de conversation, et les réponses écrites en JSONL (voir ModeLot)
+        if (ModeLot.actif()) {
+            ModeLot.AssistantLot assistantLot = AiServices.builder(ModeLot.AssistantLot.class)
+                    .chatLanguageModel(chatModel)
+                    .retrievalAugmentor(retrievalAugmentor)
+                    .build();
+            ModeLot.lancer(assistantLot);
+            return;
+        }
+
+        // (Optionnel) Assistant en streaming, activé avec -Dtp4.streaming=true :
+        // la réponse s'affiche token par token, avec le temps jusqu'au premier token
+        if (Boolean.parseBoolean(Configuration.valeur("tp4.streaming", "false"))) {
+            // même température que le mode bloquant
+            StreamingChatLanguageModel streamingModel = Instrumentation.streamingChatModel(Modeles.streamingChatModel(0.0));
+            AssistantStreaming assistantStreaming = AiServices.builder(AssistantStreaming.class)
+                    .streamingChatLanguageModel(streamingModel)
+                    .chatMemory(MemoireResumee.depuisConfiguration(chatModel, "TestPasDeRag"))
+                    .retrievalAugmentor(retrievalAugmentor)
+                    .build();
+            System.out.println("Assistant RAG avec Routage Personnalisé (streaming) prêt. (tapez 'fin' pour quitter).");
+            ConversationStreaming.conversationAvec(assistantStreaming);
+            return;
+        }
+
+        // 5. Créer l'Assistant
+        Assistant assistant = AiServices.builder(Assistant.class)
+                .chatLanguageModel(chatModel)
+                .chatMemory(MemoireResumee.depuisConfiguration(chatModel, "TestPasDeRag"))
+                .retrievalAugmentor(retrievalAugmentor)
                 .build();
-        System.out.println("ChatModel Gemini chargé.");
 
-        // 3. (BONUS) Créer le PromptTemplate pour le routeur - VERSION AMÉLIORÉE
-        PromptTemplate promptTemplate = PromptTemplate.from(
+        System.out.println("Assistant RAG avec Routage Personnalisé prêt. (tapez 'fin' pour quitter).");
+
+        // 6. Lancer la boucle de conversation
+        conversationAvec(assistant);
+    }
+
+
+    /**
+     * (BONUS) Routeur personnalisé : demande au LLM si la question est technique.
+     * Sert de repli au routeur local quand sa décision est incertaine.
+     */
+    static class QueryRouterPourEviterRag implements QueryRouter {
+
+        // PromptTemplate pour le routeur - VERSION AMÉLIORÉE
+        private static final PromptTemplate PROMPT_TEMPLATE = PromptTemplate.from(
                 "Analyse cette question : '{{question}}'\n\n" +
                         "Cette question porte-t-elle SPÉCIFIQUEMENT et DIRECTEMENT sur l'un de ces sujets techniques :\n" +
                         "- RAG (Retrieval Augmented Generation)\n" +
@@ -87,72 +127,73 @@ public class TestPasDeRag {
                         "Réponse :"
         );
 
-        // 4. Créer le QueryRouter personnalisé (en utilisant une classe interne)
-        class QueryRouterPourEviterRag implements QueryRouter {
-            @Override
-            public List<ContentRetriever> route(Query query) {
-                // Créer le prompt en utilisant le template
-                Prompt prompt = promptTemplate.apply(Map.of("question", query.text()));
-
-                // Demander au LLM de classifier la question
-                String reponse = chatModel.generate(prompt.text());
-
-                System.out.println("Décision du Routeur : Question = '" + query.text() + "' -> Réponse IA = '" + reponse.trim() + "'");
-
-                if (reponse.toLowerCase().trim().startsWith("non")) {
-                    // La question est "Bonjour" ou hors sujet.
-                    // On ne fait PAS de RAG.
-                    System.out.println("Résultat Routage : PAS DE RAG");
-                    return Collections.emptyList(); // Retourne une liste vide
-                } else {
-                    // La question concerne l'IA.
-                    // On active le RAG.
-                    System.out.println("Résultat Routage : ACTIVATION RAG (rag.pdf)");
-                    return Collections.singletonList(ragRetriever); // Retourne le retriever du PDF
-                }
+        private final ChatLanguageModel chatModel;
+        private final ContentRetriever ragRetriever;
+
+        QueryRouterPourEviterRag(ChatLanguageModel chatModel, ContentRetriever ragRetriever) {
+            this.chatModel = chatModel;
+            this.ragRetriever = ragRetriever;
+        }
+
+        @Override
+        public List<ContentRetriever> route(Query query) {
+            // Créer le prompt en utilisant le template
+            Prompt prompt = PROMPT_TEMPLATE.apply(Map.of("question", query.text()));
+
+            // Demander au LLM de classifier la question
+            String reponse = chatModel.generate(prompt.text());
+
+            System.out.println("Décision du Routeur : Question = '" + query.text() + "' -> Réponse IA = '" + reponse.trim() + "'");
+
+            if (reponse.toLowerCase().trim().startsWith("non")) {
+                // La question est "Bonjour" ou hors sujet.
+                // On ne fait PAS de RAG.
+                System.out.println("Résultat Routage : PAS DE RAG");
+                return Collections.emptyList(); // Retourne une liste vide
+            } else {
+                // La question concerne l'IA.
+                // On active le RAG.
+                System.out.println("Résultat Routage : ACTIVATION RAG (rag.pdf)");
+                return Collections.singletonList(ragRetriever); // Retourne le retriever du PDF
             }
         }
+    }
 
-        // 5. Créer le RetrievalAugmentor avec notre routeur personnalisé
-        RetrievalAugmentor retrievalAugmentor = DefaultRetrievalAugmentor.builder()
-                .queryRouter(new QueryRouterPourEviterRag())
-                .build();
+    // --- MÉTHODES UTILITAIRES (copiées des tests précédents) ---
 
-        // 6. Créer l'Assistant
-        Assistant assistant = AiServices.builder(Assistant.class)
-                .chatLanguageModel(chatModel)
-                .chatMemory(MessageWindowChatMemory.withMaxMessages(10))
-                .retrievalAugmentor(retrievalAugmentor)
+    /**
+     * Routeur du test : centroïdes locaux "RAG" / "PAS DE RAG", QueryRouterPourEviterRag en repli.
+     * (Aussi utilisé par les benchmarks JMH, avec un faux ChatModel.)
+     */
+    static QueryRouter creerRouteur(EmbeddingModel embeddingModel, ChatLanguageModel chatModel,
+                                    ContentRetriever ragRetriever) {
+        return RouteurParEmbeddings.builder()
+                .embeddingModel(embeddingModel)
+                .route(ragRetriever,
+                        "RAG (Retrieval Augmented Generation), LangChain4j, fine-tuning de modèles d'IA, "
+                                + "architecture d'intelligence artificielle, embeddings et vecteurs",
+                        "Qu'est-ce que le RAG ?",
+                        "Comment faire du fine-tuning d'un modèle ?",
+                        "À quoi sert un embedding ?",
+                        "Comment LangChain4j découpe-t-il les documents ?")
+                .sansRetriever("Salutations, cuisine, recettes, alimentation et questions générales non techniques",
+                        "Bonjour",
+                        "Salut, comment ça va ?",
+                        "Merci beaucoup !",
+                        "Comment préparer une pâte à crêpes ?",
+                        "Quel temps fait-il aujourd'hui ?")
+                // -Dtp4.routage.speculatif=true : recherche dans le PDF lancée pendant la décision du LLM
+                .repli(RouteurSpeculatif.depuisConfiguration(new QueryRouterPourEviterRag(chatModel, ragRetriever),
+                        List.of(ragRetriever)))
                 .build();
-
-        System.out.println("Assistant RAG avec Routage Personnalisé prêt. (tapez 'fin' pour quitter).");
-
-        // 7. Lancer la boucle de conversation
-        conversationAvec(assistant);
     }
 
-
-    // --- MÉTHODES UTILITAIRES (copiées des tests précédents) ---
-
     /**
      * Méthode utilitaire pour l'ingestion d'un document.
      */
     private static ContentRetriever createRetriever(String resourceName, EmbeddingModel embeddingModel) {
-        ApacheTikaDocumentParser parser = new ApacheTikaDocumentParser();
-        Document document;
-        try (InputStream inputStream = TestPasDeRag.class.getResourceAsStream(resourceName)) {
-            if (inputStream == null) {
-                throw new RuntimeException("Erreur : Le fichier " + resourceName + " n'est pas trouvé.");
-            }
-            document = parser.parse(inputStream);
-        } catch (Exception e) {
-            throw new RuntimeException("Erreur lors du chargement de " + resourceName, e);
-        }
-        DocumentSplitter splitter = DocumentSplitters.recursive(300, 20);
-        List<TextSegment> segments = splitter.split(document);
-        EmbeddingStore<TextSegment> embeddingStore = new InMemoryEmbeddingStore<>();
-        Response<List<Embedding>> embeddingsResponse = embeddingModel.embedAll(segments);
-        embeddingStore.addAll(embeddingsResponse.content(), segments);
+        EmbeddingStore<TextSegment> embeddingStore =
+                IndexPersistant.parDefaut().charger(resourceName, embeddingModel).embeddingStore();
         return EmbeddingStoreContentRetriever.builder()
                 .embeddingStore(embeddingStore)
                 .embeddingModel(embeddingModel)
@@ -161,17 +202,6 @@ public class TestPasDeRag {
                 .build();
     }
 
-    /**
-     * Méthode pour configurer le logging (du Test 2)
-     */
-    private static void configureLogger() {
-        Logger packageLogger = Logger.getLogger("dev.langchain4j");
-        packageLogger.setLevel(Level.FINE);
-        ConsoleHandler handler = new ConsoleHandler();
-        handler.setLevel(Level.FINE);
-        packageLogger.addHandler(handler);
-    }
-
     /**
      * Gère la boucle de conversation avec l'assistant.
      */
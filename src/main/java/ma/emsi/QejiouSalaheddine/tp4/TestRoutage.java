@@ -1,17 +1,9 @@
 package ma.emsi.QejiouSalaheddine.tp4;
 
-import dev.langchain4j.data.document.Document;
-import dev.langchain4j.data.document.DocumentSplitter;
-import dev.langchain4j.data.document.parser.apache.tika.ApacheTikaDocumentParser;
-import dev.langchain4j.data.document.splitter.DocumentSplitters;
-import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
-import dev.langchain4j.memory.chat.MessageWindowChatMemory;
 import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
 import dev.langchain4j.model.embedding.EmbeddingModel;
-import dev.langchain4j.model.embedding.onnx.allminilml6v2.AllMiniLmL6V2EmbeddingModel;
-import dev.langchain4j.model.googleai.GoogleAiGeminiChatModel;
-import dev.langchain4j.model.output.Response;
 import dev.langchain4j.rag.DefaultRetrievalAugmentor;
 import dev.langchain4j.rag.RetrievalAugmentor;
 import dev.langchain4j.rag.content.retriever.ContentRetriever;
@@ -20,22 +12,29 @@ import dev.langchain4j.rag.query.router.LanguageModelQueryRouter;
 import dev.langchain4j.rag.query.router.QueryRouter;
 import dev.langchain4j.service.AiServices;
 import dev.langchain4j.store.embedding.EmbeddingStore;
-import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
 
-import java.io.InputStream;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
-import java.util.logging.ConsoleHandler;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+
+import static dev.langchain4j.store.embedding.filter.MetadataFilterBuilder.metadataKey;
 
 /**
  * Classe principale pour le Test 3 du TP 4 : RAG avec Routage.
  */
 public class TestRoutage {
 
+    /** Magasin partagé par toutes les ressources avec -Dtp4.store.partitionne=true. */
+    private static MagasinPartitionne magasinPartitionne;
+
+    private static synchronized MagasinPartitionne magasinPartitionne() {
+        if (magasinPartitionne == null) {
+            magasinPartitionne = MagasinPartitionne.depuisConfiguration();
+        }
+        return magasinPartitionne;
+    }
+
     /**
      * Méthode utilitaire (suggérée par le TP) pour l'ingestion d'un document.
      * Prend un nom de ressource et un modèle d'embedding, et retourne un ContentRetriever prêt.
@@ -43,30 +42,43 @@ public class TestRoutage {
     private static ContentRetriever createRetriever(String resourceName, EmbeddingModel embeddingModel) {
         System.out.println("Phase 1 : Ingestion de " + resourceName + "...");
 
-        // 1. Charger le document
-        ApacheTikaDocumentParser parser = new ApacheTikaDocumentParser();
-        Document document;
-        try (InputStream inputStream = TestRoutage.class.getResourceAsStream(resourceName)) {
-            if (inputStream == null) {
-                throw new RuntimeException("Erreur : Le fichier " + resourceName + " n'est pas trouvé.");
+        // 1-4. Charger l'index : relu depuis le disque si le document n'a pas changé,
+        //      sinon parsing, découpage, embeddings et sauvegarde.
+        //      Avec -Dtp4.ingestion.live=true, le fichier (dans tp4.documents.dir) est surveillé
+        //      et ré-ingéré à chaud quand il change, sans redémarrer.
+        EmbeddingStore<TextSegment> embeddingStore;
+        if (Boolean.parseBoolean(Configuration.valeur("tp4.ingestion.live", "false"))) {
+            embeddingStore = Instrumentation.embeddingStore(
+                    IngestionIncrementale.demarrer(resourceName, embeddingModel).embeddingStore());
+        } else if (Boolean.parseBoolean(Configuration.valeur("tp4.store.partitionne", "false"))) {
+            // (Optionnel) Un seul magasin partitionné pour toutes les ressources, activé avec
+            // -Dtp4.store.partitionne=true : chaque ressource est une collection (métadonnée "source"),
+            // et le filtre du retriever limite la recherche (en parallèle) aux partitions de la sienne.
+            // Seuls segments et embeddings sont chargés : pas de magasin par ressource en plus du magasin partagé
+            IndexPersistant.Index index = IndexPersistant.parDefaut().chargerVecteurs(resourceName, embeddingModel);
+            magasinPartitionne().addAll(index.embeddings(), index.segments());
+            System.out.println("Embeddings pour " + resourceName + " ajoutés au magasin partitionné ("
+                    + magasinPartitionne().nombrePartitions() + " partitions).");
+            return EmbeddingStoreContentRetriever.builder()
+                    .embeddingStore(Instrumentation.embeddingStore(magasinPartitionne()))
+                    .embeddingModel(embeddingModel)
+                    .maxResults(2)
+                    .minScore(0.5)
+                    .filter(metadataKey(IndexPersistant.METADONNEE_SOURCE).isEqualTo(resourceName))
+                    .build();
+        } else {
+            IndexPersistant.Index index = IndexPersistant.parDefaut().charger(resourceName, embeddingModel);
+            embeddingStore = index.embeddingStore();
+
+            // (Optionnel) Recherche hybride, activée avec -Dtp4.recherche.hybride=true : index BM25 sur les mêmes
+            // segments (termes exacts, noms de recettes), fusionné avec la recherche vectorielle
+            if (Boolean.parseBoolean(Configuration.valeur("tp4.recherche.hybride", "false"))) {
+                IndexBm25 indexBm25 = IndexBm25.construire(index.segments());
+                System.out.println("Index BM25 pour " + resourceName + " : " + indexBm25.nombreTermes() + " termes, "
+                        + indexBm25.taillePostings() + " octets de postings.");
+                return new RetrieverHybride(embeddingStore, embeddingModel, indexBm25, 2, 10, 0.5);
             }
-            document = parser.parse(inputStream);
-        } catch (Exception e) {
-            throw new RuntimeException("Erreur lors du chargement de " + resourceName, e);
         }
-
-        // 2. Découper le document
-        DocumentSplitter splitter = DocumentSplitters.recursive(300, 20);
-        List<TextSegment> segments = splitter.split(document);
-        System.out.println("Document " + resourceName + " découpé en " + segments.size() + " segments.");
-
-        // 3. Créer les embeddings
-        Response<List<Embedding>> embeddingsResponse = embeddingModel.embedAll(segments);
-        List<Embedding> embeddings = embeddingsResponse.content();
-
-        // 4. Stocker les embeddings
-        EmbeddingStore<TextSegment> embeddingStore = new InMemoryEmbeddingStore<>();
-        embeddingStore.addAll(embeddings, segments);
         System.out.println("Embeddings pour " + resourceName + " stockés en mémoire.");
 
         // 5. Créer et retourner le ContentRetriever pour ce magasin
@@ -79,27 +91,49 @@ public class TestRoutage {
     }
 
     /**
-     * Méthode pour configurer le logging (du Test 2)
+     * Routeur du test : centroïdes locaux pour "rag" et "cuisine", LanguageModelQueryRouter en repli.
+     * (Aussi utilisé par les benchmarks JMH, avec un faux ChatModel.)
      */
-    private static void configureLogger() {
-        Logger packageLogger = Logger.getLogger("dev.langchain4j");
-        packageLogger.setLevel(Level.FINE);
-        ConsoleHandler handler = new ConsoleHandler();
-        handler.setLevel(Level.FINE);
-        packageLogger.addHandler(handler);
+    static QueryRouter creerRouteur(EmbeddingModel embeddingModel, ChatLanguageModel chatModel,
+                                    ContentRetriever ragRetriever, ContentRetriever cuisineRetriever) {
+        // Descriptions des sources (utilisées aussi par le routeur LLM de repli)
+        Map<ContentRetriever, String> retrieverMap = new HashMap<>();
+        retrieverMap.put(ragRetriever, "Informations sur l'IA, LangChain4j, et RAG (Retrieval-Augmented Generation)");
+        retrieverMap.put(cuisineRetriever, "Recettes de cuisine, ingrédients, et techniques culinaires (sauce tomate, gâteau)");
+
+        return RouteurParEmbeddings.builder()
+                .embeddingModel(embeddingModel)
+                .route(ragRetriever, retrieverMap.get(ragRetriever),
+                        "Qu'est-ce que le RAG ?",
+                        "Comment utiliser LangChain4j avec un modèle de langage ?",
+                        "À quoi servent les embeddings dans une application d'IA ?")
+                .route(cuisineRetriever, retrieverMap.get(cuisineRetriever),
+                        "Comment préparer une sauce tomate ?",
+                        "Quels sont les ingrédients du gâteau au chocolat ?",
+                        "Combien de temps faut-il laisser mijoter ?")
+                // -Dtp4.routage.speculatif=true : recherche dans les 2 sources lancée pendant la décision du LLM
+                .repli(RouteurSpeculatif.depuisConfiguration(new LanguageModelQueryRouter(chatModel, retrieverMap),
+                        List.of(ragRetriever, cuisineRetriever)))
+                .build();
     }
 
+
     public static void main(String[] args) {
-        // Activer le logging pour voir la décision du routeur
-        configureLogger();
+        // Métriques par étape (-Dtp4.metriques=true) ; journal FINE de LangChain4j avec -Dtp4.log.fine=true
+        Metriques.installer();
+        Instrumentation.journalDetaille();
 
         // --- PHASE 1 : INGESTION (Optimisée) ---
 
         // 1. Créer UN SEUL modèle d'embedding local
-        EmbeddingModel embeddingModel = new AllMiniLmL6V2EmbeddingModel();
+        EmbeddingModel embeddingModel = Instrumentation.embeddingModel(Modeles.embeddingModel());
         System.out.println("Modèle d'embedding local chargé.");
 
-        // 2. Créer 2 ContentRetrievers en utilisant la méthode utilitaire
+        // 2. Créer 2 ContentRetrievers en utilisant la méthode utilitaire. Les documents dont l'index n'est pas
+        //    à jour sont d'abord ingérés ensemble par le pipeline (réglages tp4.pipeline.*), pas l'un après l'autre
+        if (!Boolean.parseBoolean(Configuration.valeur("tp4.ingestion.live", "false"))) {
+            IndexPersistant.parDefaut().preparer(List.of("/rag.pdf", "/cuisine.txt"), embeddingModel);
+        }
         ContentRetriever ragRetriever = createRetriever("/rag.pdf", embeddingModel);
         ContentRetriever cuisineRetriever = createRetriever("/cuisine.txt", embeddingModel);
 
@@ -107,38 +141,55 @@ public class TestRoutage {
         // --- PHASE 2 : CONFIGURATION DU ROUTAGE ---
         System.out.println("Phase 2 : Préparation de l'assistant avec routage...");
 
-        // 3. Créer le ChatModel (Gemini)
-        String geminiApiKey = System.getenv("GEMINI_KEY");
-        if (geminiApiKey == null || geminiApiKey.isEmpty()) {
-            System.err.println("Erreur : GEMINI_KEY n'est pas définie.");
+        // 3. Créer le ChatModel (Gemini, ou simulé avec -Dtp4.modele=simule)
+        ChatLanguageModel chatModel;
+        try {
+            chatModel = Instrumentation.chatModel(Modeles.chatModel(0.3));
+        } catch (IllegalStateException e) {
+            System.err.println("Erreur : " + e.getMessage());
             return;
         }
+        System.out.println("ChatModel chargé.");
 
-        // ChatModel → ChatLanguageModel et suppression de logRequests/logResponses
-        ChatLanguageModel chatModel = GoogleAiGeminiChatModel.builder()
-                .apiKey(geminiApiKey)
-                .modelName("gemini-2.5-flash")
-                .temperature(0.3)
-                .build();
-        System.out.println("ChatModel Gemini chargé.");
-
-        // 4. Créer la Map de descriptions pour le routeur
-        Map<ContentRetriever, String> retrieverMap = new HashMap<>();
-        retrieverMap.put(ragRetriever, "Informations sur l'IA, LangChain4j, et RAG (Retrieval-Augmented Generation)");
-        retrieverMap.put(cuisineRetriever, "Recettes de cuisine, ingrédients, et techniques culinaires (sauce tomate, gâteau)");
-
-        // 5. Créer le QueryRouter
-        QueryRouter queryRouter = new LanguageModelQueryRouter(chatModel, retrieverMap);
+        // 4-5. Créer le QueryRouter : classification locale avec le modèle d'embedding (pas d'appel LLM),
+        //      le routeur LLM n'est utilisé qu'en repli quand la décision locale est incertaine
+        QueryRouter queryRouter = Instrumentation.queryRouter(creerRouteur(embeddingModel, chatModel, ragRetriever, cuisineRetriever));
 
-        // 6. Créer le RetrievalAugmentor
+        // 6. Créer le RetrievalAugmentor, avec compactage du contexte (doublons, segments voisins, budget de tokens)
         RetrievalAugmentor retrievalAugmentor = DefaultRetrievalAugmentor.builder()
                 .queryRouter(queryRouter)
+                .contentAggregator(AgregateurContexte.depuisConfiguration())
                 .build();
 
+        // (Optionnel) Mode lot, activé avec -Dtp4.lot=questions.txt : les questions du fichier sont posées
+        // en parallèle, sans mémoire de conversation, et les réponses écrites en JSONL (voir ModeLot)
+        if (ModeLot.actif()) {
+            ModeLot.AssistantLot assistantLot = AiServices.builder(ModeLot.AssistantLot.class)
+                    .chatLanguageModel(chatModel)
+                    .retrievalAugmentor(retrievalAugmentor)
+                    .build();
+            ModeLot.lancer(assistantLot);
+            return;
+        }
+
+        // (Optionnel) Assistant en streaming, activé avec -Dtp4.streaming=true :
+        // la réponse s'affiche token par token, avec le temps jusqu'au premier token
+        if (Boolean.parseBoolean(Configuration.valeur("tp4.streaming", "false"))) {
+            StreamingChatLanguageModel streamingModel = Instrumentation.streamingChatModel(Modeles.streamingChatModel(0.3));
+            AssistantStreaming assistantStreaming = AiServices.builder(AssistantStreaming.class)
+                    .streamingChatLanguageModel(streamingModel)
+                    .chatMemory(MemoireResumee.depuisConfiguration(chatModel, "TestRoutage"))
+                    .retrievalAugmentor(retrievalAugmentor)
+                    .build();
+            System.out.println("Assistant RAG avec Routage (streaming) prêt. (tapez 'fin' pour quitter).");
+            ConversationStreaming.conversationAvec(assistantStreaming);
+            return;
+        }
+
         // 7. Créer l'Assistant
         Assistant assistant = AiServices.builder(Assistant.class)
                 .chatLanguageModel(chatModel)  // chatModel → chatLanguageModel
-                .chatMemory(MessageWindowChatMemory.withMaxMessages(10))
+                .chatMemory(MemoireResumee.depuisConfiguration(chatModel, "TestRoutage"))
                 .retrievalAugmentor(retrievalAugmentor)
                 .build();
 
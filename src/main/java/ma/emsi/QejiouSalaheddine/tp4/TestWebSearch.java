@@ -1,17 +1,9 @@
 package ma.emsi.QejiouSalaheddine.tp4;
 
-import dev.langchain4j.data.document.Document;
-import dev.langchain4j.data.document.DocumentSplitter;
-import dev.langchain4j.data.document.parser.apache.tika.ApacheTikaDocumentParser;
-import dev.langchain4j.data.document.splitter.DocumentSplitters;
-import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
-import dev.langchain4j.memory.chat.MessageWindowChatMemory;
 import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
 import dev.langchain4j.model.embedding.EmbeddingModel;
-import dev.langchain4j.model.embedding.onnx.allminilml6v2.AllMiniLmL6V2EmbeddingModel;
-import dev.langchain4j.model.googleai.GoogleAiGeminiChatModel;
-import dev.langchain4j.model.output.Response;
 import dev.langchain4j.rag.DefaultRetrievalAugmentor;
 import dev.langchain4j.rag.RetrievalAugmentor;
 import dev.langchain4j.rag.content.retriever.ContentRetriever;
@@ -21,17 +13,11 @@ import dev.langchain4j.rag.query.router.DefaultQueryRouter;
 import dev.langchain4j.rag.query.router.QueryRouter;
 import dev.langchain4j.service.AiServices;
 import dev.langchain4j.store.embedding.EmbeddingStore;
-import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
 import dev.langchain4j.web.search.WebSearchEngine;
-import dev.langchain4j.web.search.tavily.TavilyWebSearchEngine;
 
-import java.io.InputStream;
+import java.nio.file.Path;
 import java.time.Duration;
-import java.util.List;
 import java.util.Scanner;
-import java.util.logging.ConsoleHandler;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * Classe principale pour le Test 5 du TP 4 : RAG avec recherche sur le Web (Tavily).
@@ -40,15 +26,16 @@ public class TestWebSearch {
 
     public static void main(String[] args) {
 
-        // 1. Configurer le logging
-        configureLogger();
+        // 1. Métriques par étape (-Dtp4.metriques=true) ; journal FINE de LangChain4j avec -Dtp4.log.fine=true
+        Metriques.installer();
+        Instrumentation.journalDetaille();
 
         System.out.println("Début du Test 5 : RAG avec recherche Web (Tavily)...");
 
         // --- PHASE 1 : INGESTION du document local (PDF) ---
         System.out.println("Phase 1 : Ingestion du document PDF (rag.pdf)...");
 
-        EmbeddingModel embeddingModel = new AllMiniLmL6V2EmbeddingModel();
+        EmbeddingModel embeddingModel = Instrumentation.embeddingModel(Modeles.embeddingModel());
         System.out.println("Modèle d'embedding local chargé.");
 
         // Créer le ContentRetriever pour le PDF local (avec moins de résultats)
@@ -58,19 +45,20 @@ public class TestWebSearch {
         // --- PHASE 2 : CONFIGURATION de la recherche Web ---
         System.out.println("Phase 2 : Configuration de la recherche Web...");
 
-        // 2. Récupérer la clé API Tavily
-        String tavilyApiKey = System.getenv("TAVILY_API_KEY");
-        if (tavilyApiKey == null || tavilyApiKey.isEmpty()) {
-            System.err.println("Erreur : La variable d'environnement TAVILY_API_KEY n'est pas définie.");
-            System.err.println("Définissez-la avec : $env:TAVILY_API_KEY=\"votre_clé\"");
+        // 2-3. Créer le WebSearchEngine (Tavily avec la clé TAVILY_API_KEY, ou simulé avec -Dtp4.web=simule) - sans maxResults
+        WebSearchEngine tavily;
+        try {
+            tavily = Instrumentation.webSearchEngine(Modeles.webSearchEngine());
+        } catch (IllegalStateException e) {
+            System.err.println("Erreur : " + e.getMessage());
+            System.err.println("Définissez-la avec : $env:TAVILY_API_KEY=\"votre_clé\", ou lancez avec -Dtp4.web=simule");
             return;
         }
-
-        // 3. Créer le WebSearchEngine (Tavily) - sans maxResults
-        WebSearchEngine webSearchEngine = TavilyWebSearchEngine.builder()
-                .apiKey(tavilyApiKey)
-                .build();
-        System.out.println("WebSearchEngine Tavily créé.");
+        //      derrière un cache (1 h, 500 recherches) sauvegardé à côté de l'index local
+        //      (résultats simulés : cache en mémoire seulement, pour ne pas les mélanger aux vrais)
+        WebSearchEngineEnCache webSearchEngine = new WebSearchEngineEnCache(tavily, Duration.ofHours(1), 500,
+                Modeles.webSimule() ? null : IndexPersistant.repertoireParDefaut().resolve("cache-web.bin"));
+        System.out.println("WebSearchEngine créé (avec cache).");
 
         // 4. Créer le ContentRetriever pour le Web avec maxResults limité
         ContentRetriever webRetriever = WebSearchContentRetriever.builder()
@@ -82,35 +70,64 @@ public class TestWebSearch {
         // --- PHASE 3 : CONFIGURATION du Routeur et de l'Assistant ---
         System.out.println("Phase 3 : Préparation de l'assistant...");
 
-        // 5. Récupérer la clé API Gemini
-        String geminiApiKey = System.getenv("GEMINI_KEY");
-        if (geminiApiKey == null || geminiApiKey.isEmpty()) {
-            System.err.println("Erreur : GEMINI_KEY n'est pas définie.");
+        // 5-6. Créer le ChatModel (Gemini avec la clé GEMINI_KEY, ou simulé avec -Dtp4.modele=simule)
+        //      avec timeout plus long
+        ChatLanguageModel chatModel;
+        try {
+            chatModel = Instrumentation.chatModel(Modeles.chatModel(0.3, Duration.ofSeconds(120))); // Timeout de 120 secondes
+        } catch (IllegalStateException e) {
+            System.err.println("Erreur : " + e.getMessage());
             return;
         }
-
-        // 6. Créer le ChatModel (Gemini) avec timeout plus long
-        ChatLanguageModel chatModel = GoogleAiGeminiChatModel.builder()
-                .apiKey(geminiApiKey)
-                .modelName("gemini-2.5-flash")
-                .temperature(0.3)
-                .timeout(Duration.ofSeconds(120)) // Timeout de 120 secondes
-                .build();
-        System.out.println("ChatModel Gemini chargé.");
-
-        // 7. Créer le QueryRouter qui utilise les 2 retrievers
-        QueryRouter queryRouter = new DefaultQueryRouter(pdfRetriever, webRetriever);
+        System.out.println("ChatModel chargé.");
+
+        // 7. Créer le QueryRouter qui utilise les 2 retrievers, chacun avec son propre délai :
+        //    si Tavily est lent, on répond avec le PDF seul au lieu d'attendre
+        QueryRouter queryRouter = new DefaultQueryRouter(
+                new RetrieverAvecDelai("pdf", pdfRetriever,
+                        Configuration.millisecondes("tp4.delai.pdf.ms", 2_000)),
+                new RetrieverAvecDelai("web", webRetriever,
+                        Configuration.millisecondes("tp4.delai.web.ms", 5_000)));
         System.out.println("QueryRouter créé (PDF + Web).");
 
-        // 8. Créer le RetrievalAugmentor
+        // 8. Créer le RetrievalAugmentor : les 2 sources sont interrogées en parallèle (threads virtuels),
+        //    puis le contexte est compacté (doublons PDF / Web, segments voisins, budget de tokens)
         RetrievalAugmentor retrievalAugmentor = DefaultRetrievalAugmentor.builder()
                 .queryRouter(queryRouter)
+                .executor(RetrieverAvecDelai.EXECUTEUR)
+                .contentAggregator(AgregateurContexte.depuisConfiguration())
                 .build();
 
+        // (Optionnel) Mode lot, activé avec -Dtp4.lot=questions.txt : les questions du fichier sont posées
+        // en parallèle, sans mémoire de conversation, et les réponses écrites en JSONL (voir ModeLot)
+        if (ModeLot.actif()) {
+            ModeLot.AssistantLot assistantLot = AiServices.builder(ModeLot.AssistantLot.class)
+                    .chatLanguageModel(chatModel)
+                    .retrievalAugmentor(retrievalAugmentor)
+                    .build();
+            ModeLot.lancer(assistantLot);
+            return;
+        }
+
+        // (Optionnel) Assistant en streaming, activé avec -Dtp4.streaming=true :
+        // la réponse s'affiche token par token, avec le temps jusqu'au premier token
+        if (Boolean.parseBoolean(Configuration.valeur("tp4.streaming", "false"))) {
+            StreamingChatLanguageModel streamingModel =
+                    Instrumentation.streamingChatModel(Modeles.streamingChatModel(0.3, Duration.ofSeconds(120)));
+            AssistantStreaming assistantStreaming = AiServices.builder(AssistantStreaming.class)
+                    .streamingChatLanguageModel(streamingModel)
+                    .chatMemory(MemoireResumee.depuisConfiguration(chatModel, "TestWebSearch"))
+                    .retrievalAugmentor(retrievalAugmentor)
+                    .build();
+            System.out.println("Assistant RAG avec recherche Web (streaming) prêt. (tapez 'fin' pour quitter).");
+            ConversationStreaming.conversationAvec(assistantStreaming);
+            return;
+        }
+
         // 9. Créer l'Assistant
         Assistant assistant = AiServices.builder(Assistant.class)
                 .chatLanguageModel(chatModel)
-                .chatMemory(MessageWindowChatMemory.withMaxMessages(10))
+                .chatMemory(MemoireResumee.depuisConfiguration(chatModel, "TestWebSearch"))
                 .retrievalAugmentor(retrievalAugmentor)
                 .build();
 
@@ -120,30 +137,16 @@ public class TestWebSearch {
 
         // 10. Lancer la boucle de conversation
         conversationAvec(assistant);
+        System.out.printf("Cache Web : %d succès, %d échecs (taux de succès %.0f %%).%n",
+                webSearchEngine.succes(), webSearchEngine.echecs(), 100 * webSearchEngine.tauxSucces());
     }
 
     /**
      * Méthode utilitaire pour créer un ContentRetriever à partir d'un PDF.
      */
     private static ContentRetriever createPdfRetriever(String resourceName, EmbeddingModel embeddingModel) {
-        ApacheTikaDocumentParser parser = new ApacheTikaDocumentParser();
-        Document document;
-        try (InputStream inputStream = TestWebSearch.class.getResourceAsStream(resourceName)) {
-            if (inputStream == null) {
-                throw new RuntimeException("Erreur : Le fichier " + resourceName + " n'est pas trouvé.");
-            }
-            document = parser.parse(inputStream);
-        } catch (Exception e) {
-            throw new RuntimeException("Erreur lors du chargement de " + resourceName, e);
-        }
-
-        DocumentSplitter splitter = DocumentSplitters.recursive(300, 20);
-        List<TextSegment> segments = splitter.split(document);
-        System.out.println("Document " + resourceName + " découpé en " + segments.size() + " segments.");
-
-        Response<List<Embedding>> embeddingsResponse = embeddingModel.embedAll(segments);
-        EmbeddingStore<TextSegment> embeddingStore = new InMemoryEmbeddingStore<>();
-        embeddingStore.addAll(embeddingsResponse.content(), segments);
+        EmbeddingStore<TextSegment> embeddingStore =
+                IndexPersistant.parDefaut().charger(resourceName, embeddingModel).embeddingStore();
 
         return EmbeddingStoreContentRetriever.builder()
                 .embeddingStore(embeddingStore)
@@ -153,17 +156,6 @@ public class TestWebSearch {
                 .build();
     }
 
-    /**
-     * Méthode pour configurer le logging
-     */
-    private static void configureLogger() {
-        Logger packageLogger = Logger.getLogger("dev.langchain4j");
-        packageLogger.setLevel(Level.FINE);
-        ConsoleHandler handler = new ConsoleHandler();
-        handler.setLevel(Level.FINE);
-        packageLogger.addHandler(handler);
-    }
-
     /**
      * Gère la boucle de conversation avec l'assistant.
      */
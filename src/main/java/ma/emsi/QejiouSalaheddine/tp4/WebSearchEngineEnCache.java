@@ -0,0 +1,275 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.web.search.WebSearchEngine;
+import dev.langchain4j.web.search.WebSearchInformationResult;
+import dev.langchain4j.web.search.WebSearchOrganicResult;
+import dev.langchain4j.web.search.WebSearchRequest;
+import dev.langchain4j.web.search.WebSearchResults;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.Normalizer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache devant un WebSearchEngine (ex : TavilyWebSearchEngine) pour les questions répétées ou reformulées.
+ * <ul>
+ *     <li>clé : requête normalisée (minuscules, sans accents ni ponctuation, espaces réduits) + maxResults ;</li>
+ *     <li>durée de vie (TTL) par entrée, et éviction LRU au-delà de la taille maximale ;</li>
+ *     <li>une seule recherche en cours par clé : les échecs simultanés sur la même requête attendent son résultat ;</li>
+ *     <li>persistance optionnelle dans un fichier local, rechargé au démarrage : réécrit au plus une fois toutes
+ *         les 2 s par un seul thread d'écriture, et à l'arrêt de la JVM ;</li>
+ *     <li>compteurs de succès / échecs du cache.</li>
+ * </ul>
+ */
+public class WebSearchEngineEnCache implements WebSearchEngine {
+
+    private static final int MAGIC = 0x54503457; // "TP4W"
+    private static final long DELAI_SAUVEGARDE_MS = 2_000;
+
+    private record Entree(WebSearchResults resultats, long expiration) {
+    }
+
+    private final WebSearchEngine webSearchEngine;
+    private final long ttlMillis;
+    private final Path fichier;
+    private final Map<String, Entree> entrees;
+    private final Map<String, CompletableFuture<WebSearchResults>> enCours = new ConcurrentHashMap<>();
+    private final Object verrouFichier = new Object();
+    private final AtomicBoolean sauvegardePlanifiee = new AtomicBoolean();
+
+    private final AtomicLong succes = new AtomicLong();
+    private final AtomicLong echecs = new AtomicLong();
+
+    /**
+     * @param fichier fichier de persistance, ou null pour un cache uniquement en mémoire
+     */
+    public WebSearchEngineEnCache(WebSearchEngine webSearchEngine, Duration ttl, int tailleMax, Path fichier) {
+        this.webSearchEngine = webSearchEngine;
+        this.ttlMillis = ttl.toMillis();
+        this.fichier = fichier;
+        // LinkedHashMap en ordre d'accès : l'entrée la moins récemment utilisée est évincée en premier
+        this.entrees = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entree> eldest) {
+                return size() > tailleMax;
+            }
+        };
+        if (fichier != null && Files.exists(fichier)) {
+            charger();
+        }
+        if (fichier != null) {
+            // Dernière écriture si une sauvegarde planifiée n'a pas encore eu lieu
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                if (sauvegardePlanifiee.getAndSet(false)) {
+                    sauvegarder();
+                }
+            }));
+        }
+    }
+
+    @Override
+    public WebSearchResults search(WebSearchRequest webSearchRequest) {
+        String cle = normaliser(webSearchRequest.searchTerms()) + "|" + webSearchRequest.maxResults();
+        long maintenant = System.currentTimeMillis();
+        synchronized (entrees) {
+            Entree entree = entrees.get(cle);
+            if (entree != null && entree.expiration() > maintenant) {
+                succes.incrementAndGet();
+                return entree.resultats();
+            }
+            if (entree != null) {
+                entrees.remove(cle);
+            }
+        }
+
+        echecs.incrementAndGet();
+        CompletableFuture<WebSearchResults> nouveau = new CompletableFuture<>();
+        CompletableFuture<WebSearchResults> existant = enCours.putIfAbsent(cle, nouveau);
+        if (existant != null) {
+            return attendre(existant);
+        }
+        try {
+            WebSearchResults resultats = webSearchEngine.search(webSearchRequest);
+            synchronized (entrees) {
+                entrees.put(cle, new Entree(resultats, maintenant + ttlMillis));
+            }
+            nouveau.complete(resultats);
+            if (fichier != null) {
+                planifierSauvegarde();
+            }
+            return resultats;
+        } catch (RuntimeException e) {
+            nouveau.completeExceptionally(e);
+            throw e;
+        } finally {
+            enCours.remove(cle, nouveau);
+        }
+    }
+
+    private static WebSearchResults attendre(CompletableFuture<WebSearchResults> recherche) {
+        try {
+            return recherche.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    /** Regroupe les écritures : une seule sauvegarde planifiée à la fois, DELAI_SAUVEGARDE_MS après le premier échec. */
+    private void planifierSauvegarde() {
+        if (!sauvegardePlanifiee.compareAndSet(false, true)) {
+            return;
+        }
+        Thread.ofVirtual().name("sauvegarde-cache-web").start(() -> {
+            try {
+                Thread.sleep(DELAI_SAUVEGARDE_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (sauvegardePlanifiee.getAndSet(false)) {
+                sauvegarder();
+            }
+        });
+    }
+
+    /** Minuscules, sans accents, ponctuation remplacée par des espaces, espaces réduits. */
+    static String normaliser(String requete) {
+        String sansAccents = Normalizer.normalize(requete, Normalizer.Form.NFD).replaceAll("\\p{M}", "");
+        return sansAccents.toLowerCase(Locale.ROOT)
+                .replaceAll("[^\\p{L}\\p{N}]+", " ")
+                .trim();
+    }
+
+    public long succes() {
+        return succes.get();
+    }
+
+    public long echecs() {
+        return echecs.get();
+    }
+
+    public double tauxSucces() {
+        long total = succes.get() + echecs.get();
+        return total == 0 ? 0 : (double) succes.get() / total;
+    }
+
+    // --- Persistance ---
+
+    /** Écrit les entrées non expirées dans le fichier (écriture atomique, une seule à la fois). */
+    public void sauvegarder() {
+        synchronized (verrouFichier) {
+            ecrire();
+        }
+    }
+
+    private void ecrire() {
+        List<Map.Entry<String, Entree>> copie;
+        long maintenant = System.currentTimeMillis();
+        synchronized (entrees) {
+            copie = new ArrayList<>();
+            for (Map.Entry<String, Entree> entree : entrees.entrySet()) {
+                if (entree.getValue().expiration() > maintenant) {
+                    copie.add(Map.entry(entree.getKey(), entree.getValue()));
+                }
+            }
+        }
+        try {
+            Files.createDirectories(fichier.toAbsolutePath().getParent());
+            Path temporaire = fichier.resolveSibling(fichier.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaire)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(copie.size());
+                for (Map.Entry<String, Entree> entree : copie) {
+                    IndexPersistant.ecrireChaine(out, entree.getKey());
+                    out.writeLong(entree.getValue().expiration());
+                    ecrireResultats(out, entree.getValue().resultats());
+                }
+            }
+            Files.move(temporaire, fichier, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Impossible de sauvegarder le cache Web : " + e.getMessage());
+        }
+    }
+
+    private void charger() {
+        long maintenant = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(fichier)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("format inconnu");
+            }
+            int nombre = in.readInt();
+            synchronized (entrees) {
+                for (int i = 0; i < nombre; i++) {
+                    String cle = IndexPersistant.lireChaine(in);
+                    long expiration = in.readLong();
+                    WebSearchResults resultats = lireResultats(in);
+                    if (expiration > maintenant) {
+                        entrees.put(cle, new Entree(resultats, expiration));
+                    }
+                }
+            }
+            System.out.println("Cache Web rechargé : " + entrees.size() + " recherches.");
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Cache Web illisible (" + e.getMessage() + "), il est ignoré.");
+        }
+    }
+
+    private static void ecrireResultats(DataOutputStream out, WebSearchResults resultats) throws IOException {
+        WebSearchInformationResult information = resultats.searchInformation();
+        Long total = information == null ? null : information.totalResults();
+        out.writeLong(total == null ? -1 : total);
+        List<WebSearchOrganicResult> organiques = resultats.results();
+        out.writeInt(organiques.size());
+        for (WebSearchOrganicResult resultat : organiques) {
+            ecrireOptionnel(out, resultat.title());
+            ecrireOptionnel(out, resultat.url() == null ? null : resultat.url().toString());
+            ecrireOptionnel(out, resultat.snippet());
+            ecrireOptionnel(out, resultat.content());
+        }
+    }
+
+    private static WebSearchResults lireResultats(DataInputStream in) throws IOException {
+        long total = in.readLong();
+        int nombre = in.readInt();
+        List<WebSearchOrganicResult> organiques = new ArrayList<>(nombre);
+        for (int i = 0; i < nombre; i++) {
+            String titre = lireOptionnel(in);
+            String url = lireOptionnel(in);
+            String extrait = lireOptionnel(in);
+            String contenu = lireOptionnel(in);
+            organiques.add(WebSearchOrganicResult.from(titre, url == null ? null : URI.create(url), extrait, contenu));
+        }
+        return WebSearchResults.from(WebSearchInformationResult.from(total < 0 ? null : total), organiques);
+    }
+
+    private static void ecrireOptionnel(DataOutputStream out, String chaine) throws IOException {
+        out.writeBoolean(chaine != null);
+        if (chaine != null) {
+            IndexPersistant.ecrireChaine(out, chaine);
+        }
+    }
+
+    private static String lireOptionnel(DataInputStream in) throws IOException {
+        return in.readBoolean() ? IndexPersistant.lireChaine(in) : null;
+    }
+}
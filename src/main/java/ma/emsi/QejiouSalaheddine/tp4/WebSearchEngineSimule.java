@@ -0,0 +1,45 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.web.search.WebSearchEngine;
+import dev.langchain4j.web.search.WebSearchInformationResult;
+import dev.langchain4j.web.search.WebSearchOrganicResult;
+import dev.langchain4j.web.search.WebSearchRequest;
+import dev.langchain4j.web.search.WebSearchResults;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * WebSearchEngine local (sans réseau) à la place de Tavily : latence et erreurs simulées,
+ * résultats déterministes construits à partir de la requête.
+ */
+public class WebSearchEngineSimule implements WebSearchEngine {
+
+    private static final int RESULTATS_PAR_DEFAUT = 5;
+
+    private final LatenceSimulee latence;
+
+    public WebSearchEngineSimule(LatenceSimulee latence) {
+        this.latence = latence;
+    }
+
+    @Override
+    public WebSearchResults search(WebSearchRequest webSearchRequest) {
+        latence.attendre("Recherche Web");
+        String requete = webSearchRequest.searchTerms();
+        int nombre = webSearchRequest.maxResults() == null ? RESULTATS_PAR_DEFAUT : webSearchRequest.maxResults();
+        String encodee = URLEncoder.encode(requete, StandardCharsets.UTF_8);
+        List<WebSearchOrganicResult> resultats = new ArrayList<>(nombre);
+        for (int i = 1; i <= nombre; i++) {
+            resultats.add(WebSearchOrganicResult.from(
+                    "Résultat simulé " + i + " : " + requete,
+                    URI.create("https://exemple.invalid/recherche/" + i + "?q=" + encodee),
+                    "Extrait simulé " + i + " pour « " + requete + " ».",
+                    "Contenu simulé " + i + " de la page sur « " + requete + " »."));
+        }
+        return WebSearchResults.from(WebSearchInformationResult.from((long) nombre), resultats);
+    }
+}
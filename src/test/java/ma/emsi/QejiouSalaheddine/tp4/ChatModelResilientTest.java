@@ -0,0 +1,35 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.SocketTimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Classement des erreurs sur les codes HTTP et statuts gRPC, pas sur des sous-chaînes. */
+class ChatModelResilientTest {
+
+    @Test
+    void refusQuotaSurCodeOuStatut() {
+        assertTrue(ChatModelResilient.refusQuota(new RuntimeException("HTTP 429 Too Many Requests")));
+        assertTrue(ChatModelResilient.refusQuota(new RuntimeException("{\"status\": \"RESOURCE_EXHAUSTED\"}")));
+        assertFalse(ChatModelResilient.refusQuota(new RuntimeException("4290 tokens dans le prompt")));
+    }
+
+    @Test
+    void erreursPassageres() {
+        assertTrue(ChatModelResilient.passagere(new RuntimeException("HTTP 503 Service Unavailable")));
+        assertTrue(ChatModelResilient.passagere(new RuntimeException("{\"code\": 500, \"status\": \"INTERNAL\"}")));
+        assertTrue(ChatModelResilient.passagere(new RuntimeException(new SocketTimeoutException("Read timed out"))));
+        assertTrue(ChatModelResilient.passagere(new RuntimeException("Erreur simulée de Gemini (après 12 ms)")));
+    }
+
+    @Test
+    void nombresEtMotsOrdinairesNonPassagers() {
+        assertFalse(ChatModelResilient.passagere(new RuntimeException("Le prompt dépasse 1500 tokens")));
+        assertFalse(ChatModelResilient.passagere(new RuntimeException("Réponse reçue en 500ms, format invalide")));
+        assertFalse(ChatModelResilient.passagere(new RuntimeException("HTTP 400 : internal field missing")));
+        assertFalse(ChatModelResilient.passagere(new IllegalArgumentException((String) null)));
+    }
+}
@@ -0,0 +1,59 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Journal des mémoires après un arrêt brutal : l'enregistrement tronqué est ignoré puis coupé du fichier,
+ * et les ajouts suivants restent lisibles au redémarrage.
+ */
+class MagasinMemoiresFichierTest {
+
+    @TempDir
+    Path repertoire;
+
+    @Test
+    void enregistrementTronqueCoupeAvantLesAjoutsSuivants() throws IOException {
+        Path fichier = repertoire.resolve("memoires.log");
+        List<ChatMessage> premierTour = List.of(UserMessage.from("Bonjour"), AiMessage.from("Bonjour !"));
+        new MagasinMemoiresFichier(fichier).updateMessages("session", premierTour);
+        long tailleComplete = Files.size(fichier);
+
+        // Arrêt brutal au milieu d'un ajout : type et début de l'identifiant de session seulement
+        Files.write(fichier, new byte[]{'A', 0, 0, 0, 7, 's', 'e'}, StandardOpenOption.APPEND);
+
+        MagasinMemoiresFichier relu = new MagasinMemoiresFichier(fichier);
+        assertEquals(premierTour, relu.getMessages("session"));
+        assertEquals(tailleComplete, Files.size(fichier));
+
+        List<ChatMessage> deuxTours = List.of(premierTour.get(0), premierTour.get(1),
+                UserMessage.from("Et ensuite ?"), AiMessage.from("Voici la suite."));
+        relu.updateMessages("session", deuxTours);
+
+        assertEquals(deuxTours, new MagasinMemoiresFichier(fichier).getMessages("session"));
+    }
+
+    @Test
+    void sessionSupprimeeAbsenteAuRedemarrage() {
+        Path fichier = repertoire.resolve("memoires.log");
+        MagasinMemoiresFichier magasin = new MagasinMemoiresFichier(fichier);
+        magasin.updateMessages("a", List.of(UserMessage.from("question a")));
+        magasin.updateMessages("b", List.of(UserMessage.from("question b")));
+        magasin.deleteMessages("a");
+
+        MagasinMemoiresFichier relu = new MagasinMemoiresFichier(fichier);
+        assertEquals(1, relu.nombreSessions());
+        assertEquals(List.of(UserMessage.from("question b")), relu.getMessages("b"));
+    }
+}
@@ -0,0 +1,45 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static dev.langchain4j.store.embedding.filter.MetadataFilterBuilder.metadataKey;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/** removeAll(Filter) retire les segments du filtre, partitions ciblées ou non, et tient les tailles à jour. */
+class MagasinPartitionneTest {
+
+    @Test
+    void removeAllFiltreSurCollectionEtAutreMetadonnee() {
+        MagasinPartitionne magasin = new MagasinPartitionne("source", 3, ScanExactEmbeddingStore::new,
+                ForkJoinPool.commonPool());
+        List<Embedding> embeddings = new ArrayList<>();
+        List<TextSegment> segments = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            embeddings.add(Embedding.from(new float[]{1, i}));
+            segments.add(TextSegment.from("segment " + i, Metadata.from("source", i % 2 == 0 ? "/a.pdf" : "/b.pdf")
+                    .put("page", i % 3)));
+        }
+        magasin.addAll(embeddings, segments);
+
+        magasin.removeAll(metadataKey("source").isEqualTo("/a.pdf"));
+        assertEquals(0, magasin.taille("/a.pdf"));
+        assertEquals(15, magasin.taille("/b.pdf"));
+
+        // Filtre hors collection : toutes les partitions sont parcourues
+        magasin.removeAll(metadataKey("page").isEqualTo(0));
+        assertEquals(10, magasin.taille("/b.pdf"));
+        assertEquals(10, magasin.search(EmbeddingSearchRequest.builder()
+                .queryEmbedding(Embedding.from(new float[]{1, 0}))
+                .maxResults(30)
+                .minScore(0.0)
+                .build()).matches().size());
+    }
+}
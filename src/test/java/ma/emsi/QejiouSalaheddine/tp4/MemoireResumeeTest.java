@@ -0,0 +1,38 @@
+package ma.emsi.QejiouSalaheddine.tp4;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.UserMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/** Les passages ajoutés par le retriever sont envoyés pendant le tour, mais ni comptés ni sauvegardés. */
+class MemoireResumeeTest {
+
+    private static final String QUESTION = "Qu'est-ce que le RAG ?";
+    private static final String AUGMENTEE = QUESTION
+            + "\n\nAnswer using the following information:\nLe RAG combine une recherche et un LLM.";
+
+    @TempDir
+    Path repertoire;
+
+    @Test
+    void questionSauvegardeeSansPassages() {
+        MagasinMemoiresFichier magasin = new MagasinMemoiresFichier(repertoire.resolve("memoires.log"));
+        MemoireResumee memoire = new MemoireResumee("session", 1_000, null, magasin);
+
+        memoire.add(UserMessage.from(AUGMENTEE));
+        assertEquals(List.of(UserMessage.from(AUGMENTEE)), memoire.messages());
+        assertEquals(List.of(UserMessage.from(QUESTION)), magasin.getMessages("session"));
+        assertEquals(4 + (QUESTION.length() + 3) / 4, memoire.tokens());
+
+        memoire.add(AiMessage.from("Une recherche suivie d'une génération."));
+        memoire.add(UserMessage.from("Merci"));
+        assertEquals(List.of(UserMessage.from(QUESTION), AiMessage.from("Une recherche suivie d'une génération."),
+                UserMessage.from("Merci")), memoire.messages());
+    }
+}